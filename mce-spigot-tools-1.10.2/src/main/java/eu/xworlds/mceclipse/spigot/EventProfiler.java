@@ -0,0 +1,247 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bukkit.event.Event;
+import org.bukkit.event.HandlerList;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.RegisteredListener;
+
+/**
+ * The per listener profiles of the event dispatch.
+ * 
+ * <p>
+ * A profile is kept per event class, plugin and listener method; listeners registered again, for example per arena or session,
+ * share the profile of their method. The profiles are resolved through a cache of the registered listeners by two lookups within
+ * concurrent maps; only the first dispatch to a listener creates its cache entry. Creating an entry drops the entries of listeners no
+ * longer registered for the event, thus unregistered listeners are not kept alive by the cache. The profiles of a plugin are dropped
+ * as soon as the plugin is disabled since the profiled event classes may reference its class loader.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public final class EventProfiler
+{
+    
+    /** the profiles; key is the event class, the inner key is the plugin name and the listener method. */
+    private final Map<Class<?>, Map<String, ListenerProfile>>             profiles  = new ConcurrentHashMap<>();
+    
+    /** the profiles of the registered listeners; key is the event class. */
+    private final Map<Class<?>, Map<RegisteredListener, ListenerProfile>> listeners = new ConcurrentHashMap<>();
+    
+    /**
+     * Returns the profile of given listener; creates the cache entry on the first dispatch.
+     * 
+     * @param eventClass
+     * @param handlers
+     *            the handlers of the event
+     * @param listener
+     * @return profile
+     */
+    public ListenerProfile get(Class<? extends Event> eventClass, HandlerList handlers, RegisteredListener listener)
+    {
+        final Map<RegisteredListener, ListenerProfile> byListener = this.listeners.get(eventClass);
+        final ListenerProfile result = byListener == null ? null : byListener.get(listener);
+        return result == null ? this.create(eventClass, handlers, listener) : result;
+    }
+    
+    /**
+     * Creates the cache entry of given listener and drops the entries of unregistered listeners.
+     * 
+     * @param eventClass
+     * @param handlers
+     * @param listener
+     * @return profile
+     */
+    private ListenerProfile create(Class<? extends Event> eventClass, HandlerList handlers, RegisteredListener listener)
+    {
+        final Map<RegisteredListener, ListenerProfile> byListener = this.listeners.computeIfAbsent(eventClass, k -> new ConcurrentHashMap<>());
+        byListener.keySet().retainAll(new HashSet<>(Arrays.asList(handlers.getRegisteredListeners())));
+        final ListenerProfile profile = this.profiles.computeIfAbsent(eventClass, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(listener.getPlugin().getName() + ' ' + describe(listener), k -> new ListenerProfile(eventClass, listener));
+        byListener.put(listener, profile);
+        return profile;
+    }
+    
+    /**
+     * Returns all profiles.
+     * 
+     * @return profiles
+     */
+    public List<ListenerProfile> getProfiles()
+    {
+        final List<ListenerProfile> result = new ArrayList<>();
+        for (final Map<String, ListenerProfile> byMethod : this.profiles.values())
+        {
+            result.addAll(byMethod.values());
+        }
+        return result;
+    }
+    
+    /**
+     * Drops the profiles of given plugin.
+     * 
+     * @param plugin
+     */
+    public void remove(Plugin plugin)
+    {
+        final ClassLoader loader = plugin.getClass().getClassLoader();
+        this.profiles.keySet().removeIf(c -> c.getClassLoader() == loader);
+        this.listeners.keySet().removeIf(c -> c.getClassLoader() == loader);
+        for (final Map<String, ListenerProfile> byMethod : this.profiles.values())
+        {
+            byMethod.values().removeIf(p -> p.getPluginName().equals(plugin.getName()));
+        }
+        for (final Map<RegisteredListener, ListenerProfile> byListener : this.listeners.values())
+        {
+            byListener.keySet().removeIf(l -> l.getPlugin() == plugin);
+        }
+    }
+    
+    /**
+     * Drops all profiles.
+     */
+    public void reset()
+    {
+        this.profiles.clear();
+        this.listeners.clear();
+    }
+    
+    /**
+     * Returns the listener method of given listener.
+     * 
+     * @param listener
+     * @return method as {@code class#method}; the listener class if the method is unknown
+     */
+    static String describe(RegisteredListener listener)
+    {
+        final Method method = BukkitAccessor.getListenerMethod(listener);
+        return method == null ? listener.getListener().getClass().getName() : method.getDeclaringClass().getName() + '#' + method.getName();
+    }
+    
+    /**
+     * The profile of a single registered listener.
+     */
+    public static final class ListenerProfile
+    {
+        
+        /** the event name. */
+        private final String           eventName;
+        
+        /** the plugin name. */
+        private final String           pluginName;
+        
+        /** the listener method. */
+        private final String           listenerName;
+        
+        /** the latency of the listener. */
+        private final LatencyHistogram latency   = new LatencyHistogram();
+        
+        /** the invocations of the listener on cancelled events. */
+        private final LongAdder        cancelled = new LongAdder();
+        
+        /**
+         * Constructor
+         * 
+         * @param eventClass
+         * @param listener
+         */
+        ListenerProfile(Class<? extends Event> eventClass, RegisteredListener listener)
+        {
+            this.eventName = eventClass.getSimpleName();
+            this.pluginName = listener.getPlugin().getName();
+            this.listenerName = describe(listener);
+        }
+        
+        /**
+         * Records an invocation of the listener.
+         * 
+         * @param nanos
+         *            the time spent within the listener
+         * @param wasCancelled
+         *            {@code true} if the event was cancelled before the invocation
+         */
+        public void record(long nanos, boolean wasCancelled)
+        {
+            this.latency.record(nanos);
+            if (wasCancelled)
+            {
+                this.cancelled.increment();
+            }
+        }
+        
+        /**
+         * Returns the event name.
+         * 
+         * @return event name
+         */
+        public String getEventName()
+        {
+            return this.eventName;
+        }
+        
+        /**
+         * Returns the plugin name.
+         * 
+         * @return plugin name
+         */
+        public String getPluginName()
+        {
+            return this.pluginName;
+        }
+        
+        /**
+         * Returns the listener method.
+         * 
+         * @return listener method as {@code class#method}; the listener class if the method is unknown
+         */
+        public String getListenerName()
+        {
+            return this.listenerName;
+        }
+        
+        /**
+         * Returns the latency of the listener.
+         * 
+         * @return latency histogram
+         */
+        public LatencyHistogram getLatency()
+        {
+            return this.latency;
+        }
+        
+        /**
+         * Returns the number of invocations on cancelled events.
+         * 
+         * @return invocations on cancelled events
+         */
+        public long getCancelledCalls()
+        {
+            return this.cancelled.sum();
+        }
+        
+    }
+    
+}
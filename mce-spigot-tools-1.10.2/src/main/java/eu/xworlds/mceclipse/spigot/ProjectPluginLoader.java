@@ -16,30 +16,39 @@
 package eu.xworlds.mceclipse.spigot;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
-import java.net.MalformedURLException;
+import java.lang.reflect.Method;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.net.URLClassLoader;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.logging.Level;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.Validate;
 import org.bukkit.Bukkit;
 import org.bukkit.Server;
+import org.bukkit.command.PluginIdentifiableCommand;
 import org.bukkit.event.Event;
 import org.bukkit.event.Listener;
+import org.bukkit.permissions.Permission;
+import org.bukkit.plugin.EventExecutor;
 import org.bukkit.plugin.InvalidDescriptionException;
 import org.bukkit.plugin.InvalidPluginException;
 import org.bukkit.plugin.Plugin;
@@ -47,9 +56,10 @@ import org.bukkit.plugin.PluginDescriptionFile;
 import org.bukkit.plugin.PluginLoader;
 import org.bukkit.plugin.PluginManager;
 import org.bukkit.plugin.RegisteredListener;
+import org.bukkit.plugin.SimplePluginManager;
+import org.bukkit.plugin.TimedRegisteredListener;
 import org.bukkit.plugin.UnknownDependencyException;
 import org.bukkit.plugin.java.JavaPluginLoader;
-import org.yaml.snakeyaml.error.YAMLException;
 
 /**
  * A loader to load spigot plugins from eclipse projects.
@@ -62,8 +72,17 @@ public class ProjectPluginLoader implements PluginLoader
     /** the server. */
     private Server                server;
     
+    /** the cache directory for classpath indices; relative to the plugins folder. */
+    private static final String   INDEX_CACHE       = ".mce-cache/index"; //$NON-NLS-1$
+    
+    /** the cache directory for plugin descriptions; relative to the plugins folder. */
+    private static final String   DESCRIPTION_CACHE = ".mce-cache/descriptions"; //$NON-NLS-1$
+    
+    /** the cache directory for transformed class output folders; relative to the plugins folder. */
+    private static final String   TRANSFORMED_CACHE = ".mce-cache/transformed"; //$NON-NLS-1$
+    
     /** the plugin file filters. */
-    private final Pattern[]       fileFilters = { Pattern.compile("\\.eclipseproject$") }; //$NON-NLS-1$
+    private final Pattern[]       fileFilters       = { Pattern.compile("\\.eclipseproject$") }; //$NON-NLS-1$
     
     /** loaded classes. */
     private Map<String, Class<?>> classes;
@@ -71,6 +90,35 @@ public class ProjectPluginLoader implements PluginLoader
     private List<URLClassLoader>  loaders;
     /** the java loader. */
     private JavaPluginLoader      javaLoader;
+    /** the original plugin manager. */
+    private PluginManager         manager;
+    
+    /** the eclipse project files of loaded plugins; key is the plugin name. */
+    private final Map<String, File> projectFiles = new ConcurrentHashMap<>();
+    
+    /** the parsed eclipse project files; key is the eclipse project file. */
+    private final Map<File, ProjectDescriptor> descriptors = new ConcurrentHashMap<>();
+    
+    /** the classpath entries scanned during the parallel startup; consumed by the next load of the descriptor. */
+    private final Map<ProjectDescriptor, List<ClassPathIndex.Entry>> preparedClasspaths = new ConcurrentHashMap<>();
+    
+    /** the bytecode transformer chains; key is the list of transformer class names. */
+    private final Map<List<String>, TransformerChain> transformerChains = new ConcurrentHashMap<>();
+    
+    /** the watcher for class output changes; {@code null} if disabled. */
+    private ProjectWatcher          watcher;
+    
+    /** the negative lookup cache for cross plugin class resolution. */
+    private ClassLookupCache        lookupCache;
+    
+    /** the registry of library jars shared by project plugins; {@code null} if disabled. */
+    private SharedLibraries         sharedLibraries;
+    
+    /** the class loading statistics of project plugins; {@code null} if disabled. */
+    private ClassLoadingMonitor     classLoadingMonitor;
+    
+    /** {@code true} to replace the reflective event executors of project plugins by generated executors. */
+    private boolean                 generateExecutors;
     
     /**
      * Constructor
@@ -84,23 +132,33 @@ public class ProjectPluginLoader implements PluginLoader
         Validate.notNull(instance, "Server cannot be null"); //$NON-NLS-1$
         this.server = instance;
         
-        final PluginManager mng = ((ExtendedPluginManager) Bukkit.getServer().getPluginManager()).getDelegate();
-        final Field fileAssocField = mng.getClass().getDeclaredField("fileAssociations"); //$NON-NLS-1$
-        fileAssocField.setAccessible(true);
-        final Map<Pattern, PluginLoader> fileAssociations = (Map<Pattern, PluginLoader>) fileAssocField.get(mng);
+        final ExtendedPluginManager extMng = (ExtendedPluginManager) Bukkit.getServer().getPluginManager();
+        final PluginManager mng = extMng.getDelegate();
+        this.manager = mng;
+        final Map<Pattern, PluginLoader> fileAssociations = BukkitAccessor.getFileAssociations((SimplePluginManager) mng);
         
         for (final PluginLoader loader : fileAssociations.values())
         {
             if (loader instanceof JavaPluginLoader)
             {
                 this.javaLoader = (JavaPluginLoader) loader;
-                final Field classesField = JavaPluginLoader.class.getDeclaredField("classes"); //$NON-NLS-1$
-                classesField.setAccessible(true);
-                this.classes = (Map<String, Class<?>>) classesField.get(this.javaLoader);
+                this.classes = BukkitAccessor.getClasses(this.javaLoader);
+                this.loaders = (List<URLClassLoader>) BukkitAccessor.getLoaders(this.javaLoader);
                 
-                final Field loadersField = JavaPluginLoader.class.getDeclaredField("loaders"); //$NON-NLS-1$
-                loadersField.setAccessible(true);
-                this.loaders = (List<URLClassLoader>) loadersField.get(this.javaLoader);
+                if (Boolean.parseBoolean(System.getProperty("mceclipse.classstats", "true"))) //$NON-NLS-1$ //$NON-NLS-2$
+                {
+                    this.classLoadingMonitor = new ClassLoadingMonitor(this.server.getLogger());
+                }
+                this.lookupCache = new ClassLookupCache(Integer.getInteger("mceclipse.lookupcache.size", 4096).intValue(), this.classLoadingMonitor); //$NON-NLS-1$
+                this.classes = this.lookupCache.wrapClasses(this.classes);
+                BukkitAccessor.setClasses(this.javaLoader, this.classes);
+                this.loaders = this.lookupCache.wrapLoaders(this.loaders);
+                BukkitAccessor.setLoaders(this.javaLoader, this.loaders);
+                final JavaPluginLoader java = this.javaLoader;
+                if (!this.lookupCache.probe(name -> BukkitAccessor.getClassByName(java, name)))
+                {
+                    this.server.getLogger().warning("Unexpected class lookup of the java plugin loader; class lookup cache disabled"); //$NON-NLS-1$
+                }
             }
         }
         
@@ -108,23 +166,171 @@ public class ProjectPluginLoader implements PluginLoader
         Validate.notNull(this.classes, "classes cannot be null"); //$NON-NLS-1$
         Validate.notNull(this.loaders, "loaders cannot be null"); //$NON-NLS-1$
         
-        final File fakePath = new File("plugins/__fakePath/eu/xworlds/mceclipse/spigot"); //$NON-NLS-1$
-        if (!fakePath.exists()) fakePath.mkdirs();
-        final File fakeFile = new File(fakePath, "FakePlugin.class"); //$NON-NLS-1$
-        try (final InputStream is = this.getClass().getClassLoader().getResourceAsStream("eu/xworlds/mceclipse/spigot/FakePlugin._class")) //$NON-NLS-1$
+        extMng.setProjectLoader(this);
+        final ToolsCommand tools = new ToolsCommand(extMng);
+        extMng.setToolsCommand(tools);
+        BukkitAccessor.getCommandMap((SimplePluginManager) mng).register("mceclipse", tools); //$NON-NLS-1$
+        
+        this.generateExecutors = Boolean.getBoolean("mceclipse.executors"); //$NON-NLS-1$
+        if (Boolean.parseBoolean(System.getProperty("mceclipse.sharedlibs", "true"))) //$NON-NLS-1$ //$NON-NLS-2$
+        {
+            this.sharedLibraries = new SharedLibraries(this.javaLoader, this.javaLoader.getClass().getClassLoader(), extMng.getLeakDetector());
+        }
+        
+        if (Boolean.parseBoolean(System.getProperty("mceclipse.watch", "true"))) //$NON-NLS-1$ //$NON-NLS-2$
+        {
+            this.watcher = new ProjectWatcher(this::scheduleReload, this.server.getLogger(), Long.getLong("mceclipse.watch.debounce", 500).longValue()); //$NON-NLS-1$
+        }
+    }
+    
+    /**
+     * Returns the negative lookup cache for cross plugin class resolution.
+     * 
+     * @return lookup cache
+     */
+    public ClassLookupCache getLookupCache()
+    {
+        return this.lookupCache;
+    }
+    
+    /**
+     * Returns the class loading statistics of project plugins.
+     * 
+     * @return class loading monitor or {@code null} if disabled
+     */
+    public ClassLoadingMonitor getClassLoadingMonitor()
+    {
+        return this.classLoadingMonitor;
+    }
+    
+    /**
+     * Returns the classes loaded by the java plugin loader and the project plugin loader.
+     * 
+     * @return loaded plugin classes
+     */
+    public Collection<Class<?>> getLoadedClasses()
+    {
+        return Collections.unmodifiableCollection(this.classes.values());
+    }
+    
+    /**
+     * Stops the background services of this loader. Invoked as soon as the plugins are cleared.
+     */
+    public void close()
+    {
+        this.preparedClasspaths.clear();
+        this.lookupCache.clearLibraries();
+        if (this.watcher != null)
         {
-            try (final FileOutputStream fos = new FileOutputStream(fakeFile))
+            try
+            {
+                this.watcher.close();
+            }
+            catch (IOException ex)
             {
-                IOUtils.copy(is, fos);
+                this.server.getLogger().log(Level.WARNING, "Error closing project watcher", ex); //$NON-NLS-1$
             }
+            this.watcher = null;
+        }
+        if (this.sharedLibraries != null)
+        {
+            this.sharedLibraries.close();
+            this.sharedLibraries = null;
+        }
+        if (this.classLoadingMonitor != null)
+        {
+            this.classLoadingMonitor.close();
         }
-        
+    }
+    
+    /**
+     * Schedules the reload of a project plugin whose class outputs changed. Invoked from the watcher thread.
+     * 
+     * @param name
+     *            plugin name
+     */
+    private void scheduleReload(String name)
+    {
+        final Plugin plugin = this.manager.getPlugin(name);
+        if (plugin == null || !plugin.isEnabled())
+        {
+            this.server.getLogger().info("Detected changes in project plugin " + name + "; use /mce reload " + name + " to reload it"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            return;
+        }
+        this.server.getScheduler().runTask(plugin, () -> {
+            if (this.manager.getPlugin(name) != plugin)
+            {
+                // already reloaded
+                return;
+            }
+            try
+            {
+                this.server.getLogger().info("Detected changes in project plugin " + name + "; reloading"); //$NON-NLS-1$ //$NON-NLS-2$
+                this.reloadPlugin(plugin);
+            }
+            catch (Exception ex)
+            {
+                this.server.getLogger().log(Level.SEVERE, "Error reloading " + name, ex); //$NON-NLS-1$
+            }
+        });
     }
     
     @Override
     public Map<Class<? extends Event>, Set<RegisteredListener>> createRegisteredListeners(Listener listener, Plugin plugin)
     {
-        return this.javaLoader.createRegisteredListeners(listener, plugin);
+        final Map<Class<? extends Event>, Set<RegisteredListener>> result = this.javaLoader.createRegisteredListeners(listener, plugin);
+        if (this.generateExecutors)
+        {
+            for (final Set<RegisteredListener> registrations : result.values())
+            {
+                final List<RegisteredListener> generated = new ArrayList<>(registrations.size());
+                final Iterator<RegisteredListener> iter = registrations.iterator();
+                while (iter.hasNext())
+                {
+                    final RegisteredListener registration = iter.next();
+                    final RegisteredListener replacement = this.generateExecutor(registration);
+                    if (replacement != registration)
+                    {
+                        iter.remove();
+                        generated.add(replacement);
+                    }
+                }
+                registrations.addAll(generated);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Replaces the reflective event executor of a registered listener by a generated executor. The generated executor drops the
+     * spigot timings of the reflective executor.
+     * 
+     * @param registration
+     *            the registered listener created by the java plugin loader
+     * @return registered listener using a generated executor; the given listener if the executor cannot be generated
+     */
+    private RegisteredListener generateExecutor(RegisteredListener registration)
+    {
+        final Method method = BukkitAccessor.getListenerMethod(registration);
+        final Class<?> listenerClass = registration.getListener().getClass();
+        if (method == null || !EventExecutorGenerator.canGenerate(method, listenerClass))
+        {
+            return registration;
+        }
+        try
+        {
+            final EventExecutor executor = EventExecutorGenerator.generate(method, listenerClass);
+            if (registration instanceof TimedRegisteredListener)
+            {
+                return new TimedRegisteredListener(registration.getListener(), executor, registration.getPriority(), registration.getPlugin(), registration.isIgnoringCancelled());
+            }
+            return new RegisteredListener(registration.getListener(), executor, registration.getPriority(), registration.getPlugin(), registration.isIgnoringCancelled());
+        }
+        catch (ReflectiveOperationException | RuntimeException | LinkageError ex)
+        {
+            this.server.getLogger().log(Level.FINE, "Unable to generate event executor for " + method + "; keeping the reflective executor", ex); //$NON-NLS-1$ //$NON-NLS-2$
+            return registration;
+        }
     }
     
     @Override
@@ -146,20 +352,264 @@ public class ProjectPluginLoader implements PluginLoader
     }
     
     /**
-     * Reads properties from eclipse-project file.
+     * Returns the parsed eclipse project file; the file is only parsed again if it or the plugin.yml changed.
+     * 
+     * @param file
+     * @return descriptor
+     * @throws InvalidDescriptionException
+     */
+    private ProjectDescriptor getDescriptor(File file) throws InvalidDescriptionException
+    {
+        final ProjectDescriptor cached = this.descriptors.get(file);
+        if (cached != null && cached.isUpToDate())
+        {
+            return cached;
+        }
+        final ExtendedPluginManager extMng = (ExtendedPluginManager) this.server.getPluginManager();
+        final ProjectDescriptor result = ProjectDescriptor.read(file, extMng.getDescriptionCache(), new File(file.getParentFile(), DESCRIPTION_CACHE));
+        this.descriptors.put(file, result);
+        return result;
+    }
+    
+    /**
+     * Removes the {@code __fakePath} folder older versions extracted the fake plugin class to. Class loaders are no longer created
+     * through a fake plugin, so nothing is written to the plugins folder on startup except the caches.
+     * 
+     * @param directory
+     *            the plugins directory
+     */
+    public void removeLegacyFiles(File directory)
+    {
+        final Path fakePath = new File(directory, "__fakePath").toPath(); //$NON-NLS-1$
+        if (!Files.isDirectory(fakePath))
+        {
+            return;
+        }
+        try (final Stream<Path> paths = Files.walk(fakePath))
+        {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> {
+                try
+                {
+                    Files.deleteIfExists(p);
+                }
+                catch (@SuppressWarnings("unused") IOException ex)
+                {
+                    // may be in use by a parallel server running an older version
+                }
+            });
+        }
+        catch (IOException ex)
+        {
+            this.server.getLogger().log(Level.FINE, "Unable to remove " + fakePath, ex); //$NON-NLS-1$
+        }
+    }
+    
+    /**
+     * Reads all plugin descriptions of given directory in parallel and builds the dependency graph. Eclipse project files are memoized
+     * together with their scanned classpaths and picked up by the following sequential load through the plugin manager. Dependency
+     * cycles and unknown dependencies are reported up front.
+     * 
+     * @param directory
+     *            the plugins directory
+     * @return the dependency graph of project and jar plugins
+     */
+    public PluginGraph prepare(File directory)
+    {
+        final Map<String, PluginDescriptionFile> descriptions = new ConcurrentHashMap<>();
+        final File[] files = directory.listFiles();
+        if (files != null && files.length > 0)
+        {
+            final ForkJoinPool pool = new ForkJoinPool(Math.min(files.length, Runtime.getRuntime().availableProcessors()));
+            try
+            {
+                final List<ForkJoinTask<?>> tasks = new ArrayList<>(files.length);
+                for (final File file : files)
+                {
+                    tasks.add(pool.submit(() -> this.prepareFile(file, descriptions)));
+                }
+                for (final ForkJoinTask<?> task : tasks)
+                {
+                    task.join();
+                }
+            }
+            finally
+            {
+                pool.shutdown();
+            }
+        }
+        
+        final PluginGraph graph = new PluginGraph(descriptions);
+        final Set<String> hardCycles = new HashSet<>();
+        for (final List<String> cycle : graph.getHardCycles())
+        {
+            this.server.getLogger().severe("Circular plugin dependency: " + String.join(" -> ", cycle) + " -> " + cycle.get(0)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            hardCycles.addAll(cycle);
+        }
+        for (final List<String> cycle : graph.getCycles())
+        {
+            if (Collections.disjoint(cycle, hardCycles))
+            {
+                // broken by the server
+                this.server.getLogger().fine("Circular soft plugin dependency: " + String.join(" -> ", cycle) + " -> " + cycle.get(0)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            }
+        }
+        for (final Map.Entry<String, List<String>> entry : graph.getMissingDependencies().entrySet())
+        {
+            this.server.getLogger().warning("Plugin " + entry.getKey() + " depends on unknown plugins " + entry.getValue()); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        return graph;
+    }
+    
+    /**
+     * Reads the description of a single plugin file; invoked from the fork join pool. Eclipse project files are memoized and their
+     * classpaths are scanned.
      * 
      * @param file
-     * @return properties.
+     * @param descriptions
+     *            receives the plugin description
+     */
+    private void prepareFile(File file, Map<String, PluginDescriptionFile> descriptions)
+    {
+        try
+        {
+            if (matches(this.fileFilters, file))
+            {
+                final ProjectDescriptor descriptor = this.getDescriptor(file);
+                descriptions.putIfAbsent(descriptor.getDescription().getName(), descriptor.getDescription());
+                final URL[] urls = descriptor.getClasspathUrls();
+                if (urls.length > 0)
+                {
+                    final List<ClassPathIndex.Entry> entries = scanClasspath(urls, new File(file.getParentFile(), INDEX_CACHE));
+                    if (this.sharedLibraries != null)
+                    {
+                        this.sharedLibraries.declare(descriptor.getDescription().getName(), entries);
+                    }
+                    this.preparedClasspaths.put(descriptor, entries);
+                }
+            }
+            else if (matches(this.javaLoader.getPluginFileFilters(), file))
+            {
+                final PluginDescriptionFile description = this.javaLoader.getPluginDescription(file);
+                descriptions.putIfAbsent(description.getName(), description);
+            }
+        }
+        catch (InvalidDescriptionException | IOException | RuntimeException ex)
+        {
+            // reported by the sequential load
+            this.server.getLogger().log(Level.FINE, "Unable to prepare " + file, ex); //$NON-NLS-1$
+        }
+    }
+    
+    /**
+     * Checks if the file name matches one of the filters.
+     * 
+     * @param filters
+     * @param file
+     * @return {@code true} on matches
+     */
+    private static boolean matches(Pattern[] filters, File file)
+    {
+        for (final Pattern filter : filters)
+        {
+            if (filter.matcher(file.getName()).find())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Invokes {@link Plugin#onLoad()} of the loaded plugins on a fork join pool. Each plugin waits for the plugins it depends on;
+     * independent plugins are loaded in parallel. Plugins not covered by the dependency graph are loaded afterwards in the given
+     * order.
+     * 
+     * @param plugins
+     *            the loaded plugins
+     * @param graph
+     *            the dependency graph
+     */
+    public void loadParallel(Plugin[] plugins, PluginGraph graph)
+    {
+        final Map<String, Plugin> byName = new HashMap<>();
+        for (final Plugin plugin : plugins)
+        {
+            byName.put(plugin.getDescription().getName(), plugin);
+        }
+        
+        final Map<String, CompletableFuture<Void>> futures = new HashMap<>();
+        final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try
+        {
+            for (final String name : graph.sort())
+            {
+                final Plugin plugin = byName.get(name);
+                if (plugin == null)
+                {
+                    continue;
+                }
+                final List<CompletableFuture<Void>> deps = new ArrayList<>();
+                for (final String dep : graph.getDependencies(name))
+                {
+                    final CompletableFuture<Void> future = futures.get(dep);
+                    if (future != null)
+                    {
+                        deps.add(future);
+                    }
+                }
+                futures.put(name, CompletableFuture.allOf(deps.toArray(new CompletableFuture<?>[deps.size()])).thenRunAsync(() -> this.onLoad(plugin), pool));
+            }
+            CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[futures.size()])).join();
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        
+        for (final Plugin plugin : plugins)
+        {
+            if (!futures.containsKey(plugin.getDescription().getName()))
+            {
+                this.onLoad(plugin);
+            }
+        }
+    }
+    
+    /**
+     * Invokes {@link Plugin#onLoad()} the way the server does.
+     * 
+     * @param plugin
+     */
+    private void onLoad(Plugin plugin)
+    {
+        try
+        {
+            plugin.getLogger().info(String.format("Loading %s", plugin.getDescription().getFullName())); //$NON-NLS-1$
+            plugin.onLoad();
+        }
+        catch (Throwable ex)
+        {
+            this.server.getLogger().log(Level.SEVERE, ex.getMessage() + " initializing " + plugin.getDescription().getFullName() + " (Is it up to date?)", ex); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+    
+    /**
+     * Scans the classpath entries of a project plugin.
+     * 
+     * @param urls
+     * @param cacheDir
+     *            the index cache directory
+     * @return classpath entries
      * @throws IOException
      */
-    private Properties fetchProperties(File file) throws IOException
+    private static List<ClassPathIndex.Entry> scanClasspath(URL[] urls, File cacheDir) throws IOException
     {
-        final Properties properties = new Properties();
-        try (final InputStream is = new FileInputStream(file))
+        final List<ClassPathIndex.Entry> result = new ArrayList<>(urls.length);
+        for (final URL url : urls)
         {
-            properties.load(is);
+            result.add(ClassPathIndex.scan(url, cacheDir));
         }
-        return properties;
+        return result;
     }
     
     @SuppressWarnings("resource")
@@ -172,15 +622,17 @@ public class ProjectPluginLoader implements PluginLoader
         {
             throw new InvalidPluginException(new FileNotFoundException(file.getPath() + " does not exist")); //$NON-NLS-1$
         }
-        PluginDescriptionFile description;
+        final ProjectDescriptor descriptor;
         try
         {
-            description = getPluginDescription(file);
+            descriptor = getDescriptor(file);
         }
         catch (InvalidDescriptionException ex)
         {
             throw new InvalidPluginException(ex);
         }
+        
+        final PluginDescriptionFile description = descriptor.getDescription();
         File parentFile = file.getParentFile();
         File dataFolder = new File(parentFile, description.getName());
         
@@ -222,125 +674,417 @@ public class ProjectPluginLoader implements PluginLoader
         Plugin plugin;
         try
         {
-            final Class<? extends URLClassLoader> clazz = Class.forName("org.bukkit.plugin.java.PluginClassLoader").asSubclass(URLClassLoader.class); //$NON-NLS-1$
-            final Constructor<? extends URLClassLoader> ctor = clazz.getDeclaredConstructor(JavaPluginLoader.class, ClassLoader.class, PluginDescriptionFile.class, File.class, File.class);
-            final Properties props = fetchProperties(file);
-            final File classesDir = new File(props.getProperty("classes")); //$NON-NLS-1$
-            final URL[] additionalClasses = fetchAdditionalUrlsFromProperties(props);
-            final ClassLoader appLoader = this.javaLoader.getClass().getClassLoader();
+            final File classesDir = descriptor.getClassesDir();
+            final URL[] additionalClasses = descriptor.getClasspathUrls();
+            final TransformerChain transformers = this.getTransformers(descriptor);
+            final ClassLoadingStats stats = this.classLoadingMonitor == null ? null : this.classLoadingMonitor.register(description.getName(), classesDir);
+            ClassLoader parentLoader = this.javaLoader.getClass().getClassLoader();
+            final ClassPathIndex.Entry output = ClassPathIndex.scan(classesDir.toURI().toURL(), null);
+            List<ClassPathIndex.Entry> entries = Collections.emptyList();
             if (additionalClasses != null && additionalClasses.length > 0)
             {
-                final String oldMain = description.getMain();
-                final Field mainField = description.getClass().getDeclaredField("main"); //$NON-NLS-1$
-                mainField.setAccessible(true);
-                mainField.set(description, "eu.xworlds.mceclipse.spigot.FakePlugin"); //$NON-NLS-1$
+                entries = this.preparedClasspaths.remove(descriptor);
+                if (entries == null)
+                {
+                    entries = scanClasspath(additionalClasses, new File(parentFile, INDEX_CACHE));
+                    if (this.sharedLibraries != null)
+                    {
+                        this.sharedLibraries.declare(description.getName(), entries);
+                    }
+                }
+            }
+            final Set<String> localPackages = new HashSet<>();
+            List<SharedLibraryLoader> shared = Collections.emptyList();
+            if (this.sharedLibraries != null)
+            {
+                final Set<String> outputPackages = new HashSet<>();
+                for (final String pkg : output.getPackages())
+                {
+                    if (!ClassPathIndex.isCommon(pkg))
+                    {
+                        outputPackages.add(pkg);
+                    }
+                }
+                final List<ClassPathIndex.Entry> local = new ArrayList<>();
+                shared = this.sharedLibraries.acquire(description.getName(), entries, outputPackages, local, localPackages);
+                entries = local;
+            }
+            ProjectClassLoader projectLoader = null;
+            try
+            {
+                if (!entries.isEmpty() || !shared.isEmpty() || stats != null)
+                {
+                    // an empty project class loader identifies the plugin for the class loading statistics
+                    projectLoader = new ProjectClassLoader(ClassPathIndex.of(entries), output, shared, localPackages, transformers, stats, parentLoader);
+                    parentLoader = projectLoader;
+                }
                 
-                ctor.setAccessible(true);
-                final List<URLClassLoader> oldList = new ArrayList<>(this.loaders);
-                this.loaders.clear();
-                loader = ctor.newInstance(this.javaLoader, appLoader, description, dataFolder, new File("plugins/__fakePath")); //$NON-NLS-1$
-                this.loaders.addAll(oldList);
+                File pluginClasses = classesDir;
+                if (transformers != null)
+                {
+                    final File mirror = new File(parentFile, TRANSFORMED_CACHE + '/' + description.getName() + '-' + transformers.getId());
+                    pluginClasses = transformers.mirror(classesDir, mirror, parentLoader);
+                    if (stats != null)
+                    {
+                        stats.setClassesDir(pluginClasses);
+                    }
+                }
                 
-                mainField.set(description, oldMain);
-                final URL[] additional2 = new URL[additionalClasses.length + 1];
-                additional2[0] = classesDir.toURI().toURL();
-                System.arraycopy(additionalClasses, 0, additional2, 1, additionalClasses.length);
-                this.checkAndInject(loader, clazz, additional2, oldMain);
+                loader = BukkitAccessor.newPluginClassLoader(this.javaLoader, parentLoader, description, dataFolder, pluginClasses);
             }
-            else
+            catch (Throwable ex)
             {
-                ctor.setAccessible(true);
-                loader = ctor.newInstance(this.javaLoader, appLoader, description, dataFolder, classesDir);
+                if (projectLoader != null)
+                {
+                    projectLoader.close();
+                }
+                if (this.sharedLibraries != null)
+                {
+                    this.sharedLibraries.release(description.getName(), shared);
+                }
+                throw ex;
+            }
+            if (projectLoader != null)
+            {
+                projectLoader.bind(loader);
+                this.lookupCache.addLibraries(projectLoader);
             }
             
-            final Field field = clazz.getDeclaredField("plugin"); //$NON-NLS-1$
-            field.setAccessible(true);
-            plugin = (Plugin) field.get(loader);
+            if (this.watcher != null)
+            {
+                this.watcher.watch(description.getName(), classesDir, additionalClasses);
+            }
+            
+            plugin = BukkitAccessor.getPlugin(loader);
+        }
+        catch (InvalidPluginException ex)
+        {
+            throw ex;
         }
         catch (Throwable ex)
         {
             throw new InvalidPluginException(ex);
         }
         this.loaders.add(loader);
+        this.projectFiles.put(description.getName(), file);
         
         return plugin;
     }
     
     /**
-     * check and inject
-     * @param cl
-     * @param clazz
-     * @param additionalClasses
-     * @param main
-     * @throws Exception
+     * Returns the bytecode transformers of given project plugin; the transformers of the system property
+     * {@code mceclipse.transformers} followed by the transformers of the eclipse project file. Chains are shared by plugins and reused
+     * across reloads.
+     * 
+     * @param descriptor
+     * @return transformer chain or {@code null} if no transformer is configured
+     * @throws ReflectiveOperationException
+     *             thrown if a transformer cannot be instantiated
      */
-    private void checkAndInject(URLClassLoader cl, Class<?> clazz, URL[] additionalClasses, String main) throws Exception
+    private TransformerChain getTransformers(ProjectDescriptor descriptor) throws ReflectiveOperationException
     {
-        this.classes.remove("eu.xworlds.mceclipse.spigot.FakePlugin"); //$NON-NLS-1$
-        @SuppressWarnings("resource")
-        final URLClassLoader dummy = new URLClassLoader(additionalClasses, cl.getParent());
-        final Field ucpField = URLClassLoader.class.getDeclaredField("ucp"); //$NON-NLS-1$
-        ucpField.setAccessible(true);
-        ucpField.set(cl, ucpField.get(dummy));
+        final List<String> names = new ArrayList<>(TransformerChain.parseNames(System.getProperty("mceclipse.transformers"))); //$NON-NLS-1$
+        names.addAll(descriptor.getTransformers());
+        if (names.isEmpty())
+        {
+            return null;
+        }
+        final TransformerChain chain = this.transformerChains.get(names);
+        if (chain != null)
+        {
+            return chain;
+        }
+        final TransformerChain newChain = TransformerChain.create(names, this.javaLoader.getClass().getClassLoader(), this.server.getLogger());
+        final TransformerChain old = this.transformerChains.putIfAbsent(names, newChain);
+        return old != null ? old : newChain;
+    }
+    
+    /**
+     * Checks if given plugin was loaded from an eclipse project.
+     * 
+     * @param plugin
+     * @return {@code true} for project plugins
+     */
+    public boolean isProjectPlugin(Plugin plugin)
+    {
+        return this.projectFiles.containsKey(plugin.getDescription().getName());
+    }
+    
+    /**
+     * Reloads a project plugin in-place. The plugin is disabled, its class loader is dropped and a fresh class loader is built from
+     * the eclipse project file the plugin was loaded from. Other plugins and the loaded worlds are left untouched; however plugins
+     * holding references to classes of the reloaded plugin will still see the old classes.
+     * 
+     * <p>
+     * If the new instance cannot be loaded, fails in {@code onLoad} or does not stay enabled, it is dropped and the old instance is
+     * registered again and enabled if it was enabled before; thus a later reload can retry. The class loader of the old instance is
+     * closed only after the new instance was enabled. The permissions of the old description are replaced by the permissions of the
+     * new description since the server only registers them on startup.
+     * </p>
+     * 
+     * <p>
+     * Must be invoked from the primary server thread.
+     * </p>
+     * 
+     * @param plugin
+     * @return the new plugin instance.
+     * @throws InvalidPluginException
+     * @throws InvalidDescriptionException
+     * @throws UnknownDependencyException
+     */
+    public Plugin reloadPlugin(Plugin plugin) throws InvalidPluginException, InvalidDescriptionException, UnknownDependencyException
+    {
+        Validate.notNull(plugin, "Plugin cannot be null"); //$NON-NLS-1$
+        final String name = plugin.getDescription().getName();
+        final File file = this.projectFiles.get(name);
+        if (file == null)
+        {
+            throw new InvalidPluginException(plugin.getDescription().getFullName() + " was not loaded from an eclipse project"); //$NON-NLS-1$
+        }
+        
+        final boolean wasEnabled = plugin.isEnabled();
+        // the java plugin loader removes the classes of the plugin from the global class map while disabling it
+        final Map<String, Class<?>> pluginClasses = this.getClasses(plugin);
+        this.manager.disablePlugin(plugin);
+        pluginClasses.putAll(this.detachPlugin(plugin));
+        
+        Plugin result = null;
+        try
+        {
+            result = this.manager.loadPlugin(file);
+            if (result == null)
+            {
+                throw new InvalidPluginException("Unable to reload " + file); //$NON-NLS-1$
+            }
+            this.replacePermissions(plugin.getDescription(), result.getDescription());
+            result.onLoad();
+            if (wasEnabled)
+            {
+                this.manager.enablePlugin(result);
+                if (!result.isEnabled())
+                {
+                    throw new InvalidPluginException("Unable to enable " + result.getDescription().getFullName()); //$NON-NLS-1$
+                }
+            }
+        }
+        catch (InvalidPluginException | InvalidDescriptionException | RuntimeException | Error ex)
+        {
+            if (result != null)
+            {
+                this.discardPlugin(plugin, result, file, ex);
+            }
+            this.attachPlugin(plugin, pluginClasses);
+            if (wasEnabled)
+            {
+                this.manager.enablePlugin(plugin);
+            }
+            throw ex;
+        }
         
-        final Class<?> pluginClazz = cl.loadClass(main);
-        final Field pluginField = clazz.getDeclaredField("plugin"); //$NON-NLS-1$
-        pluginField.setAccessible(true);
-        pluginField.set(cl, null);
-        final Field pluginInitField = clazz.getDeclaredField("pluginInit"); //$NON-NLS-1$
-        pluginInitField.setAccessible(true);
-        pluginInitField.set(cl, null);
-        pluginField.set(cl, pluginClazz.newInstance());
+        if (!result.getDescription().getName().equals(name))
+        {
+            this.projectFiles.remove(name, file);
+            if (this.watcher != null)
+            {
+                this.watcher.unwatch(name);
+            }
+        }
+        try
+        {
+            this.releasePlugin(plugin);
+        }
+        catch (InvalidPluginException ex)
+        {
+            this.server.getLogger().log(Level.WARNING, "Unable to close the old class loader of " + name, ex); //$NON-NLS-1$
+        }
+        return result;
     }
     
     /**
-     * Fetched additional cloasses urls from properties
-     * @param props
-     * @return classes urls
-     * @throws MalformedURLException
+     * Returns the classes of a plugin registered within the global class map.
+     * 
+     * @param plugin
+     * @return classes of the plugin
      */
-    private URL[] fetchAdditionalUrlsFromProperties(Properties props) throws MalformedURLException
+    private Map<String, Class<?>> getClasses(Plugin plugin)
     {
-        final List<URL> result = new ArrayList<>();
-        if (props.containsKey("cpsize")) //$NON-NLS-1$
+        final ClassLoader cl = plugin.getClass().getClassLoader();
+        final Map<String, Class<?>> result = new HashMap<>();
+        for (final Map.Entry<String, Class<?>> entry : this.classes.entrySet())
         {
-            final int size = Integer.parseInt(props.getProperty("cpsize")); //$NON-NLS-1$
-            for (int i = 0; i < size; i++)
+            if (entry.getValue().getClassLoader() == cl)
             {
-                final String type = props.getProperty("cptype" + i, "file"); //$NON-NLS-1$ //$NON-NLS-2$
-                switch (type)
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Drops the new instance of a plugin whose reload failed.
+     * 
+     * @param plugin
+     *            the old instance
+     * @param result
+     *            the new instance
+     * @param file
+     *            the eclipse project file
+     * @param ex
+     *            the reload failure; receives failures while dropping the new instance
+     */
+    private void discardPlugin(Plugin plugin, Plugin result, File file, Throwable ex)
+    {
+        try
+        {
+            this.manager.disablePlugin(result);
+            this.detachPlugin(result);
+            this.replacePermissions(result.getDescription(), plugin.getDescription());
+            final String name = result.getDescription().getName();
+            if (!name.equals(plugin.getDescription().getName()))
+            {
+                this.projectFiles.remove(name, file);
+                if (this.watcher != null)
                 {
-                    case "file": //$NON-NLS-1$
-                        result.add(new File(props.getProperty("cpfile" + i)).toURI().toURL()); //$NON-NLS-1$
-                        break;
-                    default:
-                        // silently ignore
-                        break;
+                    this.watcher.unwatch(name);
                 }
             }
+            this.releasePlugin(result);
+        }
+        catch (InvalidPluginException | RuntimeException ex2)
+        {
+            ex.addSuppressed(ex2);
         }
-        return result.toArray(new URL[result.size()]);
     }
     
-    @Override
-    public PluginDescriptionFile getPluginDescription(File file) throws InvalidDescriptionException
+    /**
+     * Removes a disabled plugin from the plugin manager and the java plugin loader. The class loader is kept open until
+     * {@link #releasePlugin(Plugin)} is invoked.
+     * 
+     * @param plugin
+     * @return the classes of the plugin removed from the global class map
+     */
+    private Map<String, Class<?>> detachPlugin(Plugin plugin)
     {
-        Validate.notNull(file, "File cannot be null"); //$NON-NLS-1$
+        final ClassLoader cl = plugin.getClass().getClassLoader();
+        this.loaders.remove(cl);
+        if (cl.getParent() instanceof ProjectClassLoader)
+        {
+            this.lookupCache.removeLibraries((ProjectClassLoader) cl.getParent());
+        }
+        final Map<String, Class<?>> result = new HashMap<>();
+        final Iterator<Map.Entry<String, Class<?>>> iter = this.classes.entrySet().iterator();
+        while (iter.hasNext())
+        {
+            final Map.Entry<String, Class<?>> entry = iter.next();
+            if (entry.getValue().getClassLoader() == cl)
+            {
+                result.put(entry.getKey(), entry.getValue());
+                iter.remove();
+            }
+        }
         
+        final SimplePluginManager mng = (SimplePluginManager) this.manager;
+        BukkitAccessor.getPlugins(mng).remove(plugin);
+        BukkitAccessor.getLookupNames(mng).values().removeIf(p -> p == plugin);
+        BukkitAccessor.getKnownCommands(mng).values()
+                .removeIf(c -> c instanceof PluginIdentifiableCommand && ((PluginIdentifiableCommand) c).getPlugin() == plugin);
+        return result;
+    }
+    
+    /**
+     * Registers a detached plugin again after its reload failed.
+     * 
+     * @param plugin
+     * @param pluginClasses
+     *            the classes of the plugin removed from the global class map
+     */
+    private void attachPlugin(Plugin plugin, Map<String, Class<?>> pluginClasses)
+    {
+        final SimplePluginManager mng = (SimplePluginManager) this.manager;
+        BukkitAccessor.getPlugins(mng).add(plugin);
+        BukkitAccessor.getLookupNames(mng).put(plugin.getDescription().getName(), plugin);
+        this.classes.putAll(pluginClasses);
+        final URLClassLoader cl = (URLClassLoader) plugin.getClass().getClassLoader();
+        this.loaders.add(cl);
+        if (cl.getParent() instanceof ProjectClassLoader)
+        {
+            this.lookupCache.addLibraries((ProjectClassLoader) cl.getParent());
+        }
+    }
+    
+    /**
+     * Drops the class loader of a detached plugin.
+     * 
+     * @param plugin
+     * @throws InvalidPluginException
+     */
+    private void releasePlugin(Plugin plugin) throws InvalidPluginException
+    {
+        final ClassLoader cl = plugin.getClass().getClassLoader();
         try
         {
-            final Properties props = fetchProperties(file);
-            final File classesDir = new File(props.getProperty("classes")); //$NON-NLS-1$
-            
-            try (final InputStream is = new FileInputStream(new File(classesDir, "plugin.yml"))) //$NON-NLS-1$
+            if (cl instanceof URLClassLoader)
+            {
+                ((URLClassLoader) cl).close();
+            }
+            List<SharedLibraryLoader> shared = Collections.emptyList();
+            if (cl.getParent() instanceof ProjectClassLoader)
             {
-                return new PluginDescriptionFile(is);
+                final ProjectClassLoader projectLoader = (ProjectClassLoader) cl.getParent();
+                projectLoader.close();
+                shared = projectLoader.getSharedLoaders();
+            }
+            if (this.sharedLibraries != null)
+            {
+                this.sharedLibraries.release(plugin.getDescription().getName(), shared);
+            }
+            final ExtendedPluginManager extMng = (ExtendedPluginManager) this.server.getPluginManager();
+            extMng.dropStatistics(plugin);
+            final LeakDetector detector = extMng.getLeakDetector();
+            if (detector != null)
+            {
+                detector.track(plugin.getDescription().getName(), cl);
             }
         }
-        catch (IOException | YAMLException ex)
+        catch (IOException ex)
         {
-            throw new InvalidDescriptionException(ex);
+            throw new InvalidPluginException(ex);
         }
     }
     
+    /**
+     * Replaces the permissions declared by the old description of a reloaded plugin by the permissions of the new description; see
+     * {@code CraftServer.loadPlugin}.
+     * 
+     * @param oldDescription
+     * @param newDescription
+     */
+    private void replacePermissions(PluginDescriptionFile oldDescription, PluginDescriptionFile newDescription)
+    {
+        for (final Permission perm : oldDescription.getPermissions())
+        {
+            this.manager.removePermission(perm);
+        }
+        for (final Permission perm : newDescription.getPermissions())
+        {
+            try
+            {
+                this.manager.addPermission(perm);
+            }
+            catch (IllegalArgumentException ex)
+            {
+                this.server.getLogger().log(Level.WARNING,
+                        "Plugin " + newDescription.getFullName() + " tried to register permission '" + perm.getName() + "' but it's already registered", ex); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            }
+        }
+    }
+    
+    @Override
+    public PluginDescriptionFile getPluginDescription(File file) throws InvalidDescriptionException
+    {
+        Validate.notNull(file, "File cannot be null"); //$NON-NLS-1$
+        
+        return getDescriptor(file).getDescription();
+    }
+    
 }
@@ -0,0 +1,331 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bukkit.plugin.java.JavaPluginLoader;
+
+/**
+ * The registry of library jars shared by project plugins.
+ * 
+ * <p>
+ * Plugins declare the jars of their classpath before they are loaded; during the parallel startup all plugins are declared up front.
+ * A jar is shared if at least two plugins declare the same canonical path with the same content hash. The shared jars are grouped by
+ * the set of referencing plugins; each group is held by its own {@link SharedLibraryLoader} that is only visible to these plugins. A
+ * loader is created if none of its plugins is loaded yet; plugins loaded before the group was known keep their jars local. Loaders are
+ * reference counted and closed as soon as the last project class loader using them was released.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public class SharedLibraries implements Closeable
+{
+    
+    /** the java plugin loader resolving the references of library classes. */
+    private final JavaPluginLoader                      javaLoader;
+    
+    /** the parent of the shared loaders. */
+    private final ClassLoader                           parent;
+    
+    /** the leak detector tracking closed loaders; {@code null} if disabled. */
+    private final LeakDetector                          detector;
+    
+    /** the jars declared by the plugins; key is the plugin name, values are canonical path and content hash of the jars. */
+    private final Map<String, Set<String>>              declarations = new HashMap<>();
+    
+    /** the shared loaders; key is the set of referencing plugins. */
+    private final Map<Set<String>, SharedLibraryLoader> loaders      = new HashMap<>();
+    
+    /** the number of project class loaders of each plugin using the shared loaders. */
+    private final Map<String, Integer>                  loaded       = new HashMap<>();
+    
+    /**
+     * Constructor
+     * 
+     * @param javaLoader
+     *            the java plugin loader resolving the references of library classes
+     * @param parent
+     *            the parent of the shared loaders
+     * @param detector
+     *            the leak detector tracking closed loaders; {@code null} to disable tracking
+     */
+    public SharedLibraries(JavaPluginLoader javaLoader, ClassLoader parent, LeakDetector detector)
+    {
+        this.javaLoader = javaLoader;
+        this.parent = parent;
+        this.detector = detector;
+    }
+    
+    /**
+     * Returns the key of a jar.
+     * 
+     * @param entry
+     * @return canonical path and content hash
+     * @throws IOException
+     */
+    private static String keyOf(ClassPathIndex.Entry entry) throws IOException
+    {
+        return entry.getFile().getCanonicalPath() + '#' + entry.getHash();
+    }
+    
+    /**
+     * Declares the jars of a plugin classpath; replaces the previous declaration of the plugin.
+     * 
+     * @param plugin
+     *            the plugin name
+     * @param entries
+     *            the classpath entries
+     * @throws IOException
+     */
+    public void declare(String plugin, List<ClassPathIndex.Entry> entries) throws IOException
+    {
+        final Set<String> keys = new HashSet<>();
+        for (final ClassPathIndex.Entry entry : entries)
+        {
+            if (entry.isJar())
+            {
+                keys.add(keyOf(entry));
+            }
+        }
+        synchronized (this)
+        {
+            this.declarations.put(plugin, keys);
+        }
+    }
+    
+    /**
+     * Acquires the shared loaders for the classpath of a plugin.
+     * 
+     * @param plugin
+     *            the plugin name
+     * @param entries
+     *            the classpath entries of the plugin
+     * @param outputPackages
+     *            the packages (resource path notation) of the class output folder of the plugin; jars providing them stay local
+     * @param local
+     *            receives the entries that were not shared and remain local
+     * @param localPackages
+     *            receives the packages of the local entries that are provided by shared jars as well
+     * @return the acquired shared loaders; to be passed to {@link #release(String, List)}
+     * @throws IOException
+     */
+    public synchronized List<SharedLibraryLoader> acquire(String plugin, List<ClassPathIndex.Entry> entries, Set<String> outputPackages, List<ClassPathIndex.Entry> local,
+            Set<String> localPackages) throws IOException
+    {
+        final List<SharedLibraryLoader> result = new ArrayList<>();
+        for (final ClassPathIndex.Entry entry : entries)
+        {
+            if (!entry.isJar() || !Collections.disjoint(entry.getPackages(), outputPackages))
+            {
+                local.add(entry);
+                continue;
+            }
+            final String key = keyOf(entry);
+            final Set<String> referencers = new HashSet<>();
+            referencers.add(plugin);
+            for (final Map.Entry<String, Set<String>> declaration : this.declarations.entrySet())
+            {
+                if (declaration.getValue().contains(key))
+                {
+                    referencers.add(declaration.getKey());
+                }
+            }
+            final SharedLibraryLoader loader = referencers.size() < 2 ? null : this.getLoader(plugin, referencers);
+            if (loader == null || !loader.share(entry, entry.getFile().getCanonicalPath()))
+            {
+                local.add(entry);
+                continue;
+            }
+            if (!result.contains(loader))
+            {
+                result.add(loader);
+            }
+        }
+        for (final SharedLibraryLoader loader : result)
+        {
+            loader.references++;
+        }
+        this.loaded.merge(plugin, Integer.valueOf(1), (a, b) -> Integer.valueOf(a.intValue() + b.intValue()));
+        this.closeUnused();
+        for (final ClassPathIndex.Entry entry : local)
+        {
+            for (final String pkg : entry.getPackages())
+            {
+                for (final SharedLibraryLoader loader : result)
+                {
+                    if (loader.provides(pkg))
+                    {
+                        localPackages.add(pkg);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the loader of a set of referencing plugins; creates it if none of the other plugins is loaded yet.
+     * 
+     * @param plugin
+     *            the plugin being loaded
+     * @param referencers
+     *            the plugins referencing a jar
+     * @return loader or {@code null} if the jar has to stay local
+     */
+    private SharedLibraryLoader getLoader(String plugin, Set<String> referencers)
+    {
+        final SharedLibraryLoader loader = this.loaders.get(referencers);
+        if (loader != null)
+        {
+            return loader;
+        }
+        for (final String referencer : referencers)
+        {
+            if (!referencer.equals(plugin) && this.loaded.containsKey(referencer))
+            {
+                // already loaded with a local copy
+                return null;
+            }
+        }
+        final SharedLibraryLoader newLoader = new SharedLibraryLoader(Collections.unmodifiableSet(referencers), this, this.parent);
+        this.loaders.put(newLoader.getReferencers(), newLoader);
+        return newLoader;
+    }
+    
+    /**
+     * Releases the shared loaders of a project class loader.
+     * 
+     * @param plugin
+     *            the plugin name
+     * @param acquired
+     *            the shared loaders returned by {@link #acquire(String, List, Set, List, Set)}
+     */
+    public synchronized void release(String plugin, List<SharedLibraryLoader> acquired)
+    {
+        for (final SharedLibraryLoader loader : acquired)
+        {
+            loader.references--;
+        }
+        final Integer count = this.loaded.get(plugin);
+        if (count != null)
+        {
+            if (count.intValue() <= 1)
+            {
+                this.loaded.remove(plugin);
+            }
+            else
+            {
+                this.loaded.put(plugin, Integer.valueOf(count.intValue() - 1));
+            }
+        }
+        this.closeUnused();
+    }
+    
+    /**
+     * Closes the loaders not used by any project class loader.
+     */
+    private void closeUnused()
+    {
+        final Iterator<SharedLibraryLoader> iter = this.loaders.values().iterator();
+        while (iter.hasNext())
+        {
+            final SharedLibraryLoader loader = iter.next();
+            if (loader.references <= 0)
+            {
+                iter.remove();
+                this.closeQuietly(loader);
+            }
+        }
+    }
+    
+    /**
+     * Resolves a class referenced by a library class of a shared loader; asks the loaders of supersets of the referencing plugins and
+     * the java plugin loader.
+     * 
+     * @param loader
+     *            the shared loader
+     * @param name
+     *            binary class name
+     * @return class or {@code null} if the class cannot be found
+     */
+    Class<?> findReferencedClass(SharedLibraryLoader loader, String name)
+    {
+        final List<SharedLibraryLoader> supersets = new ArrayList<>();
+        synchronized (this)
+        {
+            for (final SharedLibraryLoader candidate : this.loaders.values())
+            {
+                if (candidate != loader && candidate.getReferencers().containsAll(loader.getReferencers()))
+                {
+                    supersets.add(candidate);
+                }
+            }
+        }
+        for (final SharedLibraryLoader candidate : supersets)
+        {
+            final Class<?> result = candidate.findLibraryClass(name);
+            if (result != null)
+            {
+                return result;
+            }
+        }
+        return BukkitAccessor.getClassByName(this.javaLoader, name);
+    }
+    
+    /**
+     * Closes a loader and tracks it for leaks.
+     * 
+     * @param loader
+     */
+    private void closeQuietly(SharedLibraryLoader loader)
+    {
+        try
+        {
+            loader.close();
+        }
+        catch (@SuppressWarnings("unused") IOException ex)
+        {
+            // ignore
+        }
+        if (this.detector != null)
+        {
+            this.detector.track("shared libraries of " + loader.getReferencers(), loader); //$NON-NLS-1$
+        }
+    }
+    
+    @Override
+    public synchronized void close()
+    {
+        for (final SharedLibraryLoader loader : this.loaders.values())
+        {
+            this.closeQuietly(loader);
+        }
+        this.loaders.clear();
+        this.loaded.clear();
+        this.declarations.clear();
+    }
+    
+}
@@ -0,0 +1,184 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.io.File;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The class loading statistics of a project plugin; collected by the {@link ClassLoadingMonitor}.
+ * 
+ * @author mepeisen
+ */
+public final class ClassLoadingStats implements ClassLoadingStatsMXBean
+{
+    
+    /** the plugin name. */
+    private final String              pluginName;
+    
+    /** the folder the plugin class loader reads the class files from; the class output folder or its transformed mirror. */
+    private volatile File             classesDir;
+    
+    /** the monitor. */
+    private final ClassLoadingMonitor monitor;
+    
+    /** the number of defined classes. */
+    private final LongAdder           classes      = new LongAdder();
+    
+    /** the number of class file bytes read. */
+    private final LongAdder           bytes        = new LongAdder();
+    
+    /** the time spent reading class files. */
+    private final LongAdder           findNanos    = new LongAdder();
+    
+    /** the time spent defining classes. */
+    private final LongAdder           defineNanos  = new LongAdder();
+    
+    /** the time spent resolving classes through other plugins. */
+    private final LongAdder           resolveNanos = new LongAdder();
+    
+    /** the number of lookups through other plugins. */
+    private final LongAdder           resolveCount = new LongAdder();
+    
+    /**
+     * Constructor
+     * 
+     * @param pluginName
+     * @param classesDir
+     * @param monitor
+     */
+    ClassLoadingStats(String pluginName, File classesDir, ClassLoadingMonitor monitor)
+    {
+        this.pluginName = pluginName;
+        this.classesDir = classesDir;
+        this.monitor = monitor;
+    }
+    
+    /**
+     * Returns the monitor collecting these statistics.
+     * 
+     * @return monitor
+     */
+    ClassLoadingMonitor getMonitor()
+    {
+        return this.monitor;
+    }
+    
+    /**
+     * Sets the folder the plugin class loader reads the class files from.
+     * 
+     * @param classesDir
+     *            the class output folder or its transformed mirror
+     */
+    void setClassesDir(File classesDir)
+    {
+        this.classesDir = classesDir;
+    }
+    
+    /**
+     * Returns the size of a class file read by the plugin class loader.
+     * 
+     * @param name
+     *            binary class name
+     * @return size in bytes; 0 if the class file does not exist
+     */
+    long sizeOf(String name)
+    {
+        return new File(this.classesDir, name.replace('.', '/').concat(".class")).length(); //$NON-NLS-1$
+    }
+    
+    /**
+     * Records a defined class.
+     * 
+     * @param size
+     *            class file size
+     * @param find
+     *            time spent reading the class file
+     * @param define
+     *            time spent defining the class
+     */
+    void defined(long size, long find, long define)
+    {
+        this.classes.increment();
+        this.bytes.add(size);
+        this.findNanos.add(find);
+        this.defineNanos.add(define);
+    }
+    
+    /**
+     * Records a lookup through other plugins.
+     * 
+     * @param time
+     */
+    void resolved(long time)
+    {
+        this.resolveCount.increment();
+        this.resolveNanos.add(time);
+    }
+    
+    /**
+     * Returns the total time spent loading classes.
+     * 
+     * @return time in nanoseconds
+     */
+    public long getTotalTime()
+    {
+        return this.getFindTime() + this.getDefineTime() + this.getResolveTime();
+    }
+    
+    @Override
+    public String getPluginName()
+    {
+        return this.pluginName;
+    }
+    
+    @Override
+    public long getDefinedClasses()
+    {
+        return this.classes.sum();
+    }
+    
+    @Override
+    public long getBytesRead()
+    {
+        return this.bytes.sum();
+    }
+    
+    @Override
+    public long getFindTime()
+    {
+        return this.findNanos.sum();
+    }
+    
+    @Override
+    public long getDefineTime()
+    {
+        return this.defineNanos.sum();
+    }
+    
+    @Override
+    public long getResolveTime()
+    {
+        return this.resolveNanos.sum();
+    }
+    
+    @Override
+    public long getResolveCount()
+    {
+        return this.resolveCount.sum();
+    }
+    
+}
@@ -0,0 +1,182 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.event.Event;
+import org.bukkit.plugin.RegisteredListener;
+
+/**
+ * Reports slow listener invocations of synchronous events.
+ * 
+ * <p>
+ * Each invocation taking longer than the threshold is logged after it returned. The outermost invocation is published to a daemon
+ * thread; if it is still running after the stuck threshold, a single stack sample of the dispatching thread is logged while the
+ * listener is running. Publishing costs a few volatile writes; the time is measured by the dispatch loop anyway.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public final class EventWatchdog
+{
+    
+    /** the threshold for slow invocations in nanoseconds. */
+    private final long                  threshold;
+    
+    /** the threshold for stuck invocations in nanoseconds. */
+    private final long                  stuckThreshold;
+    
+    /** the logger. */
+    private final Logger                logger;
+    
+    /** the running outermost invocation; {@code null} if no listener is running. */
+    private volatile RegisteredListener current;
+    
+    /** the event of the running invocation. */
+    private volatile Event              currentEvent;
+    
+    /** the dispatching thread of the running invocation. */
+    private volatile Thread             currentThread;
+    
+    /** the start time of the running invocation. */
+    private volatile long               currentStart;
+    
+    /** the start time of the last invocation reported as stuck; only accessed by the watchdog thread. */
+    private long                        reportedStart;
+    
+    /** the watchdog thread. */
+    private final Thread                thread;
+    
+    /**
+     * Constructor
+     * 
+     * @param threshold
+     *            the threshold for slow invocations in milliseconds
+     * @param stuckThreshold
+     *            the threshold for stuck invocations in milliseconds
+     * @param logger
+     */
+    public EventWatchdog(long threshold, long stuckThreshold, Logger logger)
+    {
+        this.threshold = TimeUnit.MILLISECONDS.toNanos(threshold);
+        this.stuckThreshold = TimeUnit.MILLISECONDS.toNanos(stuckThreshold);
+        this.logger = logger;
+        this.thread = new Thread(this::watch, "mce-event-watchdog"); //$NON-NLS-1$
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+    
+    /**
+     * Stops the watchdog thread. Slow invocations are still reported after they returned.
+     */
+    public void close()
+    {
+        this.thread.interrupt();
+    }
+    
+    /**
+     * Notifies the start of a listener invocation.
+     * 
+     * @param listener
+     * @param event
+     * @param start
+     *            the start time
+     * @return {@code true} if the invocation is published to the watchdog thread; {@code false} for nested invocations
+     */
+    boolean enter(RegisteredListener listener, Event event, long start)
+    {
+        if (this.current != null)
+        {
+            return false;
+        }
+        this.currentStart = start;
+        this.currentEvent = event;
+        this.currentThread = Thread.currentThread();
+        this.current = listener;
+        return true;
+    }
+    
+    /**
+     * Notifies the end of a listener invocation.
+     * 
+     * @param published
+     *            the result of {@link #enter(RegisteredListener, Event, long)}
+     * @param listener
+     * @param event
+     * @param nanos
+     *            the time spent within the listener
+     */
+    void exit(boolean published, RegisteredListener listener, Event event, long nanos)
+    {
+        if (published)
+        {
+            this.current = null;
+        }
+        if (nanos > this.threshold)
+        {
+            this.logger.warning(String.format("Slow event handler: %s %s took %d ms for %s", //$NON-NLS-1$
+                    listener.getPlugin().getName(), EventProfiler.describe(listener), TimeUnit.NANOSECONDS.toMillis(nanos), event.getEventName()));
+        }
+    }
+    
+    /**
+     * The watchdog thread.
+     */
+    private void watch()
+    {
+        final long interval = Math.max(1, TimeUnit.NANOSECONDS.toMillis(this.stuckThreshold) / 4);
+        while (true)
+        {
+            try
+            {
+                Thread.sleep(interval);
+            }
+            catch (@SuppressWarnings("unused") InterruptedException ex)
+            {
+                return;
+            }
+            final RegisteredListener listener = this.current;
+            final long start = this.currentStart;
+            final Event event = this.currentEvent;
+            final Thread thread = this.currentThread;
+            final long running = System.nanoTime() - start;
+            if (listener == null || start == this.reportedStart || running < this.stuckThreshold || this.current != listener)
+            {
+                continue;
+            }
+            this.reportedStart = start;
+            try
+            {
+                final StringBuilder message = new StringBuilder();
+                message.append(String.format("Event handler stuck: %s %s running for %d ms for %s; stack of %s:", //$NON-NLS-1$
+                        listener.getPlugin().getName(), EventProfiler.describe(listener), TimeUnit.NANOSECONDS.toMillis(running), event.getEventName(), thread.getName()));
+                for (final StackTraceElement element : thread.getStackTrace())
+                {
+                    message.append("\n\tat ").append(element); //$NON-NLS-1$
+                }
+                this.logger.warning(message.toString());
+            }
+            catch (RuntimeException ex)
+            {
+                this.logger.log(Level.FINE, "Unable to sample stuck event handler", ex); //$NON-NLS-1$
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,198 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The process wide cache of memory mapped jar files.
+ * 
+ * <p>
+ * Each jar file is mapped once and shared by all project class loaders referencing it. The mappings are reference counted; a jar
+ * that is no longer referenced lingers for a while ({@code mceclipse.jarcache.linger} milliseconds, 30 seconds by default) so that a
+ * plugin reload picks up the existing mapping of unchanged jars. A jar that changed on disk is mapped again; class loaders still
+ * holding the old mapping keep using it until they are closed.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public final class JarCache
+{
+    
+    /** the shared instance. */
+    private static final JarCache        INSTANCE = new JarCache(Long.getLong("mceclipse.jarcache.linger", 30000).longValue()); //$NON-NLS-1$
+    
+    /** the linger time of unreferenced jars in nanoseconds. */
+    private final long                   linger;
+    
+    /** the mapped jars by canonical path; nested jars by canonical path of the outer jar and nested path. */
+    private final Map<String, MappedJar> jars     = new HashMap<>();
+    
+    /**
+     * Constructor
+     * 
+     * @param linger
+     *            the linger time of unreferenced jars in milliseconds
+     */
+    private JarCache(long linger)
+    {
+        this.linger = TimeUnit.MILLISECONDS.toNanos(linger);
+    }
+    
+    /**
+     * Returns the process wide jar cache.
+     * 
+     * @return jar cache
+     */
+    public static JarCache getInstance()
+    {
+        return INSTANCE;
+    }
+    
+    /**
+     * Acquires a mapped jar; each call must be paired with a call to {@link #release(MappedJar)}.
+     * 
+     * @param file
+     *            the jar file; the outer jar file for nested jars
+     * @param nestedPath
+     *            the path within the outer jar; {@code null} if this is not a nested jar
+     * @return mapped jar
+     * @throws IOException
+     */
+    public synchronized MappedJar acquire(File file, String nestedPath) throws IOException
+    {
+        this.evict(System.nanoTime());
+        final String path = file.getCanonicalPath();
+        final String key = nestedPath == null ? path : path + "!/" + nestedPath; //$NON-NLS-1$
+        MappedJar jar = this.jars.get(key);
+        if (jar != null && !jar.isUpToDate())
+        {
+            this.jars.remove(key);
+            if (jar.refCount == 0)
+            {
+                this.dispose(jar);
+            }
+            jar = null;
+        }
+        if (jar == null)
+        {
+            if (nestedPath == null)
+            {
+                jar = MappedJar.map(file);
+            }
+            else
+            {
+                final MappedJar outer = this.acquire(file, null);
+                try
+                {
+                    jar = MappedJar.nested(outer, nestedPath);
+                }
+                catch (IOException ex)
+                {
+                    this.release(outer);
+                    throw ex;
+                }
+            }
+            this.jars.put(key, jar);
+        }
+        jar.refCount++;
+        return jar;
+    }
+    
+    /**
+     * Releases a mapped jar.
+     * 
+     * @param jar
+     */
+    public synchronized void release(MappedJar jar)
+    {
+        if (--jar.refCount == 0)
+        {
+            jar.idleSince = System.nanoTime();
+            if (!this.jars.containsValue(jar))
+            {
+                // replaced by a newer mapping
+                this.dispose(jar);
+            }
+        }
+    }
+    
+    /**
+     * Returns the number of mapped jars.
+     * 
+     * @return number of mapped jars, including nested jars
+     */
+    public synchronized int size()
+    {
+        return this.jars.size();
+    }
+    
+    /**
+     * Returns the number of mapped bytes.
+     * 
+     * @return mapped bytes, excluding nested jars
+     */
+    public synchronized long getMappedBytes()
+    {
+        long result = 0;
+        for (final MappedJar jar : this.jars.values())
+        {
+            if (jar.outer == null)
+            {
+                result += jar.size();
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Evicts all unreferenced jars whose linger time elapsed.
+     * 
+     * @param now
+     */
+    private void evict(long now)
+    {
+        final Iterator<MappedJar> iter = this.jars.values().iterator();
+        while (iter.hasNext())
+        {
+            final MappedJar jar = iter.next();
+            if (jar.refCount == 0 && now - jar.idleSince > this.linger)
+            {
+                iter.remove();
+                this.dispose(jar);
+            }
+        }
+    }
+    
+    /**
+     * Disposes an evicted jar; releases the outer jar of nested jars.
+     * 
+     * @param jar
+     */
+    private void dispose(MappedJar jar)
+    {
+        if (jar.outer != null)
+        {
+            this.release(jar.outer);
+        }
+    }
+    
+}
@@ -0,0 +1,192 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A log bucketed latency histogram in the style of HdrHistogram.
+ * 
+ * <p>
+ * Values below {@code 16} are counted exactly. Larger values are counted within buckets of a power of two, each split into
+ * {@code 8} linear sub buckets; thus a percentile is reported with a relative error of at most 12.5 percent. Values above
+ * {@code 2^40} nanoseconds (about 18 minutes) are counted within the last bucket. Recording is lock free and does not allocate.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public final class LatencyHistogram
+{
+    
+    /** the number of bits of the sub bucket index. */
+    private static final int SUB_BITS    = 3;
+    
+    /** the number of sub buckets per power of two. */
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    
+    /** the values counted exactly. */
+    private static final int LINEAR      = SUB_BUCKETS << 1;
+    
+    /** the highest power of two with its own buckets. */
+    private static final int MAX_EXP     = 40;
+    
+    /** the number of buckets. */
+    private static final int BUCKETS     = LINEAR + (MAX_EXP - SUB_BITS) * SUB_BUCKETS;
+    
+    /** the counts per bucket. */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    
+    /** the number of recorded values. */
+    private final LongAdder       count  = new LongAdder();
+    
+    /** the sum of recorded values. */
+    private final LongAdder       total  = new LongAdder();
+    
+    /** the maximum recorded value. */
+    private final AtomicLong      max    = new AtomicLong();
+    
+    /**
+     * Records a value.
+     * 
+     * @param value
+     *            the value in nanoseconds; negative values are recorded as {@code 0}
+     */
+    public void record(long value)
+    {
+        final long v = Math.max(0, value);
+        this.counts.incrementAndGet(bucketOf(v));
+        this.count.increment();
+        this.total.add(v);
+        if (v > this.max.get())
+        {
+            this.max.accumulateAndGet(v, Math::max);
+        }
+    }
+    
+    /**
+     * Returns the number of recorded values.
+     * 
+     * @return count
+     */
+    public long getCount()
+    {
+        return this.count.sum();
+    }
+    
+    /**
+     * Returns the sum of recorded values.
+     * 
+     * @return total in nanoseconds
+     */
+    public long getTotal()
+    {
+        return this.total.sum();
+    }
+    
+    /**
+     * Returns the average of recorded values.
+     * 
+     * @return average in nanoseconds; {@code 0} if no value was recorded
+     */
+    public long getAverage()
+    {
+        final long c = this.getCount();
+        return c == 0 ? 0 : this.getTotal() / c;
+    }
+    
+    /**
+     * Returns the maximum recorded value.
+     * 
+     * @return maximum in nanoseconds
+     */
+    public long getMax()
+    {
+        return this.max.get();
+    }
+    
+    /**
+     * Returns the value at given percentile; the highest value equivalent to the bucket containing the percentile.
+     * 
+     * @param percentile
+     *            the percentile, for example {@code 99.0}
+     * @return value in nanoseconds; {@code 0} if no value was recorded
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long c = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            c += this.counts.get(i);
+        }
+        final long threshold = Math.max(1, (long) Math.ceil(c * Math.min(100.0, percentile) / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += this.counts.get(i);
+            if (seen >= threshold)
+            {
+                return Math.min(highestValueOf(i), this.getMax());
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * Returns the bucket of given value.
+     * 
+     * @param value
+     * @return bucket index
+     */
+    private static int bucketOf(long value)
+    {
+        if (value < LINEAR)
+        {
+            return (int) value;
+        }
+        final int exp = 63 - Long.numberOfLeadingZeros(value);
+        if (exp > MAX_EXP)
+        {
+            return BUCKETS - 1;
+        }
+        final int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exp - SUB_BITS - 1) * SUB_BUCKETS + sub;
+    }
+    
+    /**
+     * Returns the highest value counted within given bucket.
+     * 
+     * @param bucket
+     * @return highest value
+     */
+    private static long highestValueOf(int bucket)
+    {
+        if (bucket < LINEAR)
+        {
+            return bucket;
+        }
+        if (bucket == BUCKETS - 1)
+        {
+            return Long.MAX_VALUE;
+        }
+        final int exp = (bucket - LINEAR) / SUB_BUCKETS + SUB_BITS + 1;
+        final int sub = (bucket - LINEAR) % SUB_BUCKETS;
+        final long lowest = (long) (SUB_BUCKETS + sub) << (exp - SUB_BITS);
+        return lowest + (1L << (exp - SUB_BITS)) - 1;
+    }
+    
+}
@@ -56,6 +56,11 @@ public class Main extends org.bukkit.craftbukkit.Main
      */
     public static void main(String[] args)
     {
+        if (ClassDataSharing.relaunch(Main.class, args))
+        {
+            return;
+        }
+        
         OptionParser parser = new OptionParser() {
             {
                 acceptsAll(asList("?", "help"), "Show the help");
@@ -0,0 +1,559 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Manifest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A memory mapped jar file, optionally nested within another jar file.
+ * 
+ * <p>
+ * Mapped jars are handed out by the {@link JarCache} and shared by all class loaders referencing the same file. A jar is mapped once;
+ * nested jars stored without compression are read directly from the mapping of the outer jar, compressed ones are inflated into
+ * memory once. Nothing is extracted to temporary files. The central directory is parsed on the first lookup. Resource urls are
+ * served from the mapping as well; {@code jar:} urls would open and cache a jar file of their own. The mapping is released by the
+ * garbage collector after the jar was evicted from the cache and is no longer referenced.
+ * </p>
+ * 
+ * <p>
+ * Zip64 archives are not supported.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public final class MappedJar
+{
+    
+    /** the url protocol of resources. */
+    private static final String          PROTOCOL = "mce-jar"; //$NON-NLS-1$
+    
+    /** the manifest name. */
+    private static final String          MANIFEST = "META-INF/MANIFEST.MF"; //$NON-NLS-1$
+    
+    /** signature of the end of central directory record. */
+    private static final int             EOCD_SIG = 0x06054b50;
+    
+    /** signature of a central directory header. */
+    private static final int             CEN_SIG  = 0x02014b50;
+    
+    /** signature of a local file header. */
+    private static final int             LOC_SIG  = 0x04034b50;
+    
+    /** compression method: stored. */
+    private static final int             STORED   = 0;
+    
+    /** compression method: deflated. */
+    private static final int             DEFLATED = 8;
+    
+    /** the jar url; a {@code jar:} url for nested jars. */
+    private final URL                    url;
+    
+    /** the jar file; the outer jar file for nested jars. */
+    private final File                   file;
+    
+    /** the path within the outer jar; {@code null} if this is not a nested jar. */
+    private final String                 nestedPath;
+    
+    /** the modification time of the file at mapping time. */
+    private final long                   mtime;
+    
+    /** the size of the file at mapping time. */
+    private final long                   length;
+    
+    /** the outer jar of nested jars; referenced until this jar is evicted. */
+    final MappedJar                      outer;
+    
+    /** the contents. */
+    private final ByteBuffer             data;
+    
+    /** the url stream handler of resources. */
+    private final URLStreamHandler       handler  = new Handler();
+    
+    /** the central directory; {@code null} before the first lookup. */
+    private volatile Map<String, Record> directory;
+    
+    /** the manifest; {@code null} before the first lookup. */
+    private volatile Manifest            manifest;
+    
+    /** the number of references; guarded by the jar cache. */
+    int                                  refCount;
+    
+    /** the time the last reference was released; guarded by the jar cache. */
+    long                                 idleSince;
+    
+    /**
+     * Constructor
+     * 
+     * @param url
+     * @param file
+     * @param nestedPath
+     * @param mtime
+     * @param length
+     * @param outer
+     * @param data
+     */
+    private MappedJar(URL url, File file, String nestedPath, long mtime, long length, MappedJar outer, ByteBuffer data)
+    {
+        this.url = url;
+        this.file = file;
+        this.nestedPath = nestedPath;
+        this.mtime = mtime;
+        this.length = length;
+        this.outer = outer;
+        this.data = data;
+    }
+    
+    /**
+     * Maps a jar file.
+     * 
+     * @param file
+     * @return mapped jar
+     * @throws IOException
+     */
+    static MappedJar map(File file) throws IOException
+    {
+        final long mtime = file.lastModified();
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+            {
+                throw new IOException("Jar file too large: " + file); //$NON-NLS-1$
+            }
+            return new MappedJar(file.toURI().toURL(), file, null, mtime, size, null, channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+    
+    /**
+     * Locates a jar nested within given jar.
+     * 
+     * @param outer
+     *            the mapped outer jar
+     * @param nestedPath
+     *            the path within the outer jar; multiple levels are separated by {@code !/}
+     * @return mapped nested jar
+     * @throws IOException
+     */
+    static MappedJar nested(MappedJar outer, String nestedPath) throws IOException
+    {
+        ByteBuffer result = outer.data;
+        for (final String name : nestedPath.split("!/")) //$NON-NLS-1$
+        {
+            final Record record = parse(result).get(name);
+            if (record == null || (record.method != STORED && record.method != DEFLATED))
+            {
+                throw new FileNotFoundException(outer.file + "!/" + nestedPath); //$NON-NLS-1$
+            }
+            final ByteBuffer content = content(result, record);
+            // stored jars are used in place; only compressed ones are copied
+            result = record.method == STORED ? content : ByteBuffer.wrap(inflate(content, record.size));
+        }
+        final URL url = new URL("jar:" + outer.url + "!/" + nestedPath); //$NON-NLS-1$ //$NON-NLS-2$
+        return new MappedJar(url, outer.file, nestedPath, outer.mtime, outer.length, outer, result);
+    }
+    
+    /**
+     * Checks if the file did not change since it was mapped.
+     * 
+     * @return {@code true} if the mapping is up to date
+     */
+    boolean isUpToDate()
+    {
+        return this.file.lastModified() == this.mtime && this.file.length() == this.length;
+    }
+    
+    /**
+     * Returns the jar file.
+     * 
+     * @return the jar file; the outer jar file for nested jars
+     */
+    public File getFile()
+    {
+        return this.file;
+    }
+    
+    /**
+     * Returns the path within the outer jar.
+     * 
+     * @return the nested path or {@code null} if this is not a nested jar
+     */
+    public String getNestedPath()
+    {
+        return this.nestedPath;
+    }
+    
+    /**
+     * Returns the number of mapped or inflated bytes.
+     * 
+     * @return size in bytes
+     */
+    public int size()
+    {
+        return this.data.capacity();
+    }
+    
+    /**
+     * Returns the names of all entries.
+     * 
+     * @return entry names
+     * @throws IOException
+     */
+    public Set<String> names() throws IOException
+    {
+        return Collections.unmodifiableSet(this.directory().keySet());
+    }
+    
+    /**
+     * Checks if given entry exists.
+     * 
+     * @param name
+     * @return {@code true} if the jar contains given entry
+     * @throws IOException
+     */
+    public boolean contains(String name) throws IOException
+    {
+        return this.directory().containsKey(name);
+    }
+    
+    /**
+     * Reads given entry.
+     * 
+     * @param name
+     * @return entry contents or {@code null} if the jar does not contain given entry
+     * @throws IOException
+     */
+    public byte[] read(String name) throws IOException
+    {
+        final Record record = this.directory().get(name);
+        if (record == null)
+        {
+            return null;
+        }
+        final ByteBuffer content = content(this.data, record);
+        if (record.method != STORED && record.method != DEFLATED)
+        {
+            throw new IOException("Unsupported compression method of " + name); //$NON-NLS-1$
+        }
+        if (record.method == STORED)
+        {
+            final byte[] result = new byte[content.remaining()];
+            content.get(result);
+            return result;
+        }
+        return inflate(content, record.size);
+    }
+    
+    /**
+     * Returns the manifest.
+     * 
+     * @return manifest or {@code null} if the jar does not contain a manifest
+     * @throws IOException
+     */
+    public Manifest getManifest() throws IOException
+    {
+        Manifest result = this.manifest;
+        if (result == null)
+        {
+            final byte[] bytes = this.read(MANIFEST);
+            if (bytes == null)
+            {
+                return null;
+            }
+            result = new Manifest(new ByteArrayInputStream(bytes));
+            this.manifest = result;
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the url of given resource; the url is served from the mapping.
+     * 
+     * @param name
+     * @return resource url or {@code null} if the jar does not contain given resource
+     * @throws IOException
+     */
+    public URL getResource(String name) throws IOException
+    {
+        if (!this.contains(name))
+        {
+            return null;
+        }
+        return new URL(PROTOCOL, null, -1, this.url.getPath() + "!/" + name, this.handler); //$NON-NLS-1$
+    }
+    
+    /**
+     * Returns the central directory; parses it on the first access.
+     * 
+     * @return central directory
+     * @throws IOException
+     */
+    private Map<String, Record> directory() throws IOException
+    {
+        final Map<String, Record> result = this.directory;
+        return result != null ? result : this.parseDirectory();
+    }
+    
+    /**
+     * Parses the central directory.
+     * 
+     * @return central directory
+     * @throws IOException
+     */
+    private synchronized Map<String, Record> parseDirectory() throws IOException
+    {
+        if (this.directory == null)
+        {
+            this.directory = parse(this.data);
+        }
+        return this.directory;
+    }
+    
+    /**
+     * Parses the central directory of given zip archive.
+     * 
+     * @param zip
+     * @return central directory
+     * @throws IOException
+     */
+    private static Map<String, Record> parse(ByteBuffer zip) throws IOException
+    {
+        final ByteBuffer buf = zip.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final int limit = buf.limit();
+        int eocd = -1;
+        for (int i = limit - 22, stop = Math.max(0, limit - 22 - 0xFFFF); i >= stop; i--)
+        {
+            if (buf.getInt(i) == EOCD_SIG)
+            {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd == -1)
+        {
+            throw new IOException("Not a zip archive"); //$NON-NLS-1$
+        }
+        final int count = buf.getShort(eocd + 10) & 0xFFFF;
+        final long offset = buf.getInt(eocd + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || offset == 0xFFFFFFFFL)
+        {
+            throw new IOException("Zip64 archives are not supported"); //$NON-NLS-1$
+        }
+        
+        final Map<String, Record> result = new HashMap<>(count * 2);
+        int pos = (int) offset;
+        for (int i = 0; i < count; i++)
+        {
+            if (pos + 46 > limit || buf.getInt(pos) != CEN_SIG)
+            {
+                throw new IOException("Broken central directory"); //$NON-NLS-1$
+            }
+            final int method = buf.getShort(pos + 10) & 0xFFFF;
+            final int compressedSize = buf.getInt(pos + 20);
+            final int size = buf.getInt(pos + 24);
+            final int nameLength = buf.getShort(pos + 28) & 0xFFFF;
+            final int extraLength = buf.getShort(pos + 30) & 0xFFFF;
+            final int commentLength = buf.getShort(pos + 32) & 0xFFFF;
+            final int localOffset = buf.getInt(pos + 42);
+            final byte[] name = new byte[nameLength];
+            buf.position(pos + 46);
+            buf.get(name);
+            if (nameLength > 0 && name[nameLength - 1] != '/')
+            {
+                result.put(new String(name, StandardCharsets.UTF_8), new Record(method, compressedSize, size, localOffset));
+            }
+            pos += 46 + nameLength + extraLength + commentLength;
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the raw contents of given entry without copying them.
+     * 
+     * @param zip
+     * @param record
+     * @return raw contents
+     * @throws IOException
+     */
+    private static ByteBuffer content(ByteBuffer zip, Record record) throws IOException
+    {
+        final ByteBuffer buf = zip.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final int pos = record.offset;
+        if (pos < 0 || pos + 30 > buf.limit() || buf.getInt(pos) != LOC_SIG)
+        {
+            throw new IOException("Broken local file header"); //$NON-NLS-1$
+        }
+        final int start = pos + 30 + (buf.getShort(pos + 26) & 0xFFFF) + (buf.getShort(pos + 28) & 0xFFFF);
+        if (record.compressedSize < 0 || start + record.compressedSize > buf.limit())
+        {
+            throw new IOException("Truncated zip entry"); //$NON-NLS-1$
+        }
+        buf.position(start);
+        buf.limit(start + record.compressedSize);
+        return buf.slice();
+    }
+    
+    /**
+     * Inflates given raw contents.
+     * 
+     * @param content
+     * @param size
+     *            the uncompressed size
+     * @return uncompressed contents
+     * @throws IOException
+     */
+    private static byte[] inflate(ByteBuffer content, int size) throws IOException
+    {
+        // the nowrap mode requires an extra dummy byte
+        final byte[] input = new byte[content.remaining() + 1];
+        content.get(input, 0, input.length - 1);
+        final byte[] result = new byte[size];
+        final Inflater inflater = new Inflater(true);
+        try
+        {
+            inflater.setInput(input);
+            int len = 0;
+            while (len < size)
+            {
+                final int count = inflater.inflate(result, len, size - len);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    break;
+                }
+                len += count;
+            }
+            if (len != size)
+            {
+                throw new IOException("Truncated zip entry"); //$NON-NLS-1$
+            }
+            return result;
+        }
+        catch (DataFormatException ex)
+        {
+            throw new IOException(ex);
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+    
+    /**
+     * A central directory record.
+     */
+    private static final class Record
+    {
+        /** the compression method. */
+        final int method;
+        /** the compressed size. */
+        final int compressedSize;
+        /** the uncompressed size. */
+        final int size;
+        /** the offset of the local file header. */
+        final int offset;
+        
+        /**
+         * Constructor
+         * 
+         * @param method
+         * @param compressedSize
+         * @param size
+         * @param offset
+         */
+        Record(int method, int compressedSize, int size, int offset)
+        {
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+    }
+    
+    /**
+     * The url stream handler of resources.
+     */
+    private final class Handler extends URLStreamHandler
+    {
+        
+        /**
+         * Constructor
+         */
+        Handler()
+        {
+            // empty
+        }
+        
+        @Override
+        protected URLConnection openConnection(URL u) throws IOException
+        {
+            final String file = u.getFile();
+            final String name = file.substring(file.lastIndexOf("!/") + 2); //$NON-NLS-1$
+            return new URLConnection(u) {
+                
+                @Override
+                public void connect()
+                {
+                    this.connected = true;
+                }
+                
+                @Override
+                public long getContentLengthLong()
+                {
+                    try
+                    {
+                        final Record record = MappedJar.this.directory().get(name);
+                        return record == null ? -1 : record.size;
+                    }
+                    catch (@SuppressWarnings("unused") IOException ex)
+                    {
+                        return -1;
+                    }
+                }
+                
+                @Override
+                public InputStream getInputStream() throws IOException
+                {
+                    final byte[] bytes = MappedJar.this.read(name);
+                    if (bytes == null)
+                    {
+                        throw new FileNotFoundException(u.toString());
+                    }
+                    return new ByteArrayInputStream(bytes);
+                }
+            };
+        }
+        
+    }
+    
+}
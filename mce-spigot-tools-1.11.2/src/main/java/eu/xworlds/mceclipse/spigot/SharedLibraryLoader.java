@@ -0,0 +1,157 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A class loader for library jars shared by a set of project plugins.
+ * 
+ * <p>
+ * The loaders are created and reference counted by {@link SharedLibraries}; each loader holds the jars referenced by exactly the same
+ * set of plugins and is only visible to the project class loaders of these plugins. Jars are identified by their canonical path and
+ * their content hash. A jar stays local to the project class loader if it provides packages already provided by another jar of this
+ * loader (for example a different version of the same library).
+ * </p>
+ * 
+ * <p>
+ * References of the library classes that cannot be resolved by the shared loader itself are resolved through the loaders of supersets
+ * of the referencing plugins and finally through the global class lookup of the java plugin loader.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public class SharedLibraryLoader extends ProjectClassLoader
+{
+    
+    static
+    {
+        ClassLoader.registerAsParallelCapable();
+    }
+    
+    /** the plugins referencing the jars of this loader. */
+    private final Set<String>         referencers;
+    
+    /** the registry owning this loader. */
+    private final SharedLibraries     libraries;
+    
+    /** the content hashes of the shared jars; key is the canonical path. */
+    private final Map<String, Long>   hashes    = new HashMap<>();
+    
+    /** the packages (resource path notation) of the shared jars mapped to the canonical path of the providing jar. */
+    private final Map<String, String> providers = new HashMap<>();
+    
+    /** the number of project class loaders using this loader; guarded by the registry. */
+    int                               references;
+    
+    /**
+     * Constructor
+     * 
+     * @param referencers
+     *            the plugins referencing the jars of this loader
+     * @param libraries
+     *            the registry owning this loader
+     * @param parent
+     */
+    SharedLibraryLoader(Set<String> referencers, SharedLibraries libraries, ClassLoader parent)
+    {
+        super(ClassPathIndex.of(Collections.<ClassPathIndex.Entry> emptyList()), null, Collections.<SharedLibraryLoader> emptyList(), Collections.<String> emptySet(),
+                null, null, parent);
+        this.referencers = referencers;
+        this.libraries = libraries;
+    }
+    
+    /**
+     * Returns the plugins referencing the jars of this loader.
+     * 
+     * @return plugin names
+     */
+    public Set<String> getReferencers()
+    {
+        return this.referencers;
+    }
+    
+    /**
+     * Checks if one of the shared jars provides given package.
+     * 
+     * @param pkg
+     *            package (resource path notation)
+     * @return {@code true} if the package is provided
+     */
+    public synchronized boolean provides(String pkg)
+    {
+        return this.providers.containsKey(pkg);
+    }
+    
+    /**
+     * Moves a jar file into this loader.
+     * 
+     * @param entry
+     *            the classpath entry
+     * @param path
+     *            the canonical path of the jar
+     * @return {@code true} if the jar is provided by this loader; {@code false} if it has to stay local
+     */
+    synchronized boolean share(ClassPathIndex.Entry entry, String path)
+    {
+        final Long hash = this.hashes.get(path);
+        if (hash != null)
+        {
+            return hash.longValue() == entry.getHash();
+        }
+        for (final String pkg : entry.getPackages())
+        {
+            final String provider = this.providers.get(pkg);
+            if (provider != null && !provider.equals(path))
+            {
+                return false;
+            }
+        }
+        this.hashes.put(path, Long.valueOf(entry.getHash()));
+        for (final String pkg : entry.getPackages())
+        {
+            if (!ClassPathIndex.isCommon(pkg))
+            {
+                this.providers.put(pkg, path);
+            }
+        }
+        this.addEntries(Collections.singletonList(entry));
+        return true;
+    }
+    
+    @Override
+    public Class<?> loadClass(String name) throws ClassNotFoundException
+    {
+        try
+        {
+            return super.loadClass(name, false);
+        }
+        catch (ClassNotFoundException ex)
+        {
+            // referenced by a library class
+            final Class<?> result = this.libraries.findReferencedClass(this, name);
+            if (result == null)
+            {
+                throw ex;
+            }
+            return result;
+        }
+    }
+    
+}
@@ -0,0 +1,547 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.event.HandlerList;
+import org.bukkit.plugin.RegisteredListener;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Tracks discarded plugin class loaders and reports the ones that are not collected.
+ * 
+ * <p>
+ * Discarded loaders are held through weak references. A background thread logs a warning for every loader that is still reachable
+ * after a configurable number of class unloading garbage collections. The retaining references are searched on demand from the
+ * primary server thread; the search looks for references from static fields of the loaded plugin classes, from threads, from
+ * scheduler tasks and from event listeners.
+ * </p>
+ * 
+ * <p>
+ * Class unloading collections are counted through a sentinel: a weakly referenced class loader that defined a class. Such a loader is
+ * only cleared by collections able to unload classes, for example full collections and the concurrent cycles of G1; the collection
+ * counters of the garbage collector beans do not cover the latter. The sentinel is checked by the background thread and by the
+ * report; several collections between two checks are counted once.
+ * </p>
+ * 
+ * <p>
+ * The runnable of a thread is read from a private field of {@link Thread}. Java 16 and newer deny this access unless the server is
+ * started with {@code --add-opens java.base/java.lang=ALL-UNNAMED}; the report notes that thread runnables were not inspected.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public class LeakDetector
+{
+    
+    /** the maximum number of collection or array elements inspected per value. */
+    private static final int                      MAX_ELEMENTS   = 1000;
+    
+    /** the class file of the sentinel class; a public class without members. */
+    private static final byte[]                   SENTINEL_CLASS = {
+            (byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE, 0, 0, 0, 50, // magic, java 6
+            0, 5, // constant pool
+            7, 0, 2, 1, 0, 8, 'S', 'e', 'n', 't', 'i', 'n', 'e', 'l', // this class
+            7, 0, 4, 1, 0, 16, 'j', 'a', 'v', 'a', '/', 'l', 'a', 'n', 'g', '/', 'O', 'b', 'j', 'e', 'c', 't', // super class
+            0, 0x21, 0, 1, 0, 3, // public super, this, super
+            0, 0, 0, 0, 0, 0, 0, 0 // interfaces, fields, methods, attributes
+    };
+    
+    /** accessor of the runnable of a thread; {@code null} if not accessible. */
+    private static final Function<Thread, Object> THREAD_TARGET  = threadTarget();
+    
+    /** the discarded loaders. */
+    private final Set<Tracked>                    tracked        = ConcurrentHashMap.newKeySet();
+    
+    /** the queue of collected loaders. */
+    private final ReferenceQueue<ClassLoader>     queue          = new ReferenceQueue<>();
+    
+    /** the logger. */
+    private final Logger                          logger;
+    
+    /** the number of class unloading collections a loader may survive. */
+    private final int                             cycles;
+    
+    /** the background check. */
+    private final ScheduledExecutorService        executor;
+    
+    /** the number of class unloading collections. */
+    private final AtomicLong                      collections    = new AtomicLong();
+    
+    /** the sentinel of the current collection cycle. */
+    private Reference<ClassLoader>                sentinel       = newSentinel();
+    
+    /**
+     * Constructor
+     * 
+     * @param logger
+     * @param cycles
+     *            the number of class unloading collections a discarded loader may survive
+     * @param period
+     *            the check period in seconds
+     */
+    public LeakDetector(Logger logger, int cycles, long period)
+    {
+        this.logger = logger;
+        this.cycles = cycles;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "mce-leak-detector"); //$NON-NLS-1$
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::check, period, period, TimeUnit.SECONDS);
+    }
+    
+    /**
+     * Starts tracking a discarded loader.
+     * 
+     * @param pluginName
+     * @param loader
+     */
+    public void track(String pluginName, ClassLoader loader)
+    {
+        final long gc = this.collections();
+        this.tracked.add(new Tracked(pluginName, loader, this.queue, gc));
+        if (loader != null && loader.getParent() instanceof ProjectClassLoader && !(loader.getParent() instanceof SharedLibraryLoader))
+        {
+            this.tracked.add(new Tracked(pluginName + " libraries", loader.getParent(), this.queue, gc)); //$NON-NLS-1$
+        }
+    }
+    
+    /**
+     * Returns the number of discarded loaders not collected yet.
+     * 
+     * @return tracked loaders
+     */
+    public int size()
+    {
+        this.expunge();
+        return this.tracked.size();
+    }
+    
+    /**
+     * Stops the background check.
+     */
+    public void close()
+    {
+        this.executor.shutdownNow();
+    }
+    
+    /**
+     * Reports the retaining references of the leaked loaders. Must be invoked from the primary server thread.
+     * 
+     * @param classes
+     *            the plugin classes whose static fields are inspected
+     * @return report lines; empty if there are no leaked loaders
+     */
+    public List<String> report(Collection<Class<?>> classes)
+    {
+        this.expunge();
+        final long gc = this.collections();
+        final List<String> result = new ArrayList<>();
+        for (final Tracked entry : this.tracked)
+        {
+            final ClassLoader loader = entry.get();
+            if (loader == null || gc - entry.gcCount < this.cycles)
+            {
+                continue;
+            }
+            result.add(entry.pluginName + ": discarded " + (System.currentTimeMillis() - entry.discarded) / 1000 + "s ago, survived " + (gc - entry.gcCount) //$NON-NLS-1$ //$NON-NLS-2$
+                    + " class unloading collections"); //$NON-NLS-1$
+            final List<String> paths = findRetainers(loader, classes);
+            if (paths.isEmpty())
+            {
+                result.add("  unknown (no reference from static fields, threads, scheduler tasks or listeners)"); //$NON-NLS-1$
+            }
+            for (final String path : paths)
+            {
+                result.add("  " + path); //$NON-NLS-1$
+            }
+        }
+        if (!result.isEmpty() && THREAD_TARGET == null)
+        {
+            result.add("Thread runnables were not inspected; requires --add-opens java.base/java.lang=ALL-UNNAMED"); //$NON-NLS-1$
+        }
+        return result;
+    }
+    
+    /**
+     * Removes the collected loaders.
+     */
+    private void expunge()
+    {
+        Reference<? extends ClassLoader> ref;
+        while ((ref = this.queue.poll()) != null)
+        {
+            this.tracked.remove(ref);
+        }
+    }
+    
+    /**
+     * Background check; warns once per loader.
+     */
+    private void check()
+    {
+        this.expunge();
+        final long gc = this.collections();
+        for (final Tracked entry : this.tracked)
+        {
+            if (!entry.warned && entry.get() != null && gc - entry.gcCount >= this.cycles)
+            {
+                entry.warned = true;
+                this.logger.warning("Class loader of " + entry.pluginName + " was not collected after " + (gc - entry.gcCount) //$NON-NLS-1$ //$NON-NLS-2$
+                        + " class unloading collections; use /mce leaks to find the retaining references"); //$NON-NLS-1$
+            }
+        }
+    }
+    
+    /**
+     * Returns the number of class unloading collections; starts a new cycle if the sentinel was cleared.
+     * 
+     * @return collection count
+     */
+    private synchronized long collections()
+    {
+        if (this.sentinel.get() == null)
+        {
+            this.sentinel = newSentinel();
+            return this.collections.incrementAndGet();
+        }
+        return this.collections.get();
+    }
+    
+    /**
+     * Creates a new sentinel; a class loader that defined a class and is only weakly reachable.
+     * 
+     * @return sentinel reference
+     */
+    private static Reference<ClassLoader> newSentinel()
+    {
+        final SentinelLoader loader = new SentinelLoader();
+        loader.defineSentinel();
+        return new WeakReference<>(loader);
+    }
+    
+    /**
+     * Returns the accessor of the runnable of a thread; the field {@code target} up to java 18, the field {@code task} of the field
+     * holder since java 19.
+     * 
+     * @return accessor or {@code null} if the runnable is not accessible
+     */
+    private static Function<Thread, Object> threadTarget()
+    {
+        try
+        {
+            final Field target = Thread.class.getDeclaredField("target"); //$NON-NLS-1$
+            target.setAccessible(true);
+            return thread -> get(target, thread);
+        }
+        catch (@SuppressWarnings("unused") NoSuchFieldException ex)
+        {
+            // java 19 or newer
+        }
+        catch (@SuppressWarnings("unused") RuntimeException ex)
+        {
+            return null;
+        }
+        try
+        {
+            final Field holder = Thread.class.getDeclaredField("holder"); //$NON-NLS-1$
+            holder.setAccessible(true);
+            final Field task = holder.getType().getDeclaredField("task"); //$NON-NLS-1$
+            task.setAccessible(true);
+            return thread -> {
+                final Object value = get(holder, thread);
+                return value == null ? null : get(task, value);
+            };
+        }
+        catch (@SuppressWarnings("unused") NoSuchFieldException | RuntimeException ex)
+        {
+            return null;
+        }
+    }
+    
+    /**
+     * Reads an accessible field.
+     * 
+     * @param field
+     * @param object
+     * @return field value or {@code null}
+     */
+    private static Object get(Field field, Object object)
+    {
+        try
+        {
+            return field.get(object);
+        }
+        catch (@SuppressWarnings("unused") IllegalAccessException ex)
+        {
+            return null;
+        }
+    }
+    
+    /**
+     * Searches the references retaining given loader.
+     * 
+     * @param loader
+     * @param classes
+     * @return retaining paths with category
+     */
+    private static List<String> findRetainers(ClassLoader loader, Collection<Class<?>> classes)
+    {
+        final List<String> result = new ArrayList<>();
+        
+        for (final Class<?> clazz : classes)
+        {
+            if (clazz.getClassLoader() == loader)
+            {
+                continue;
+            }
+            try
+            {
+                for (final Field field : clazz.getDeclaredFields())
+                {
+                    if (Modifier.isStatic(field.getModifiers()) && !field.getType().isPrimitive())
+                    {
+                        field.setAccessible(true);
+                        if (references(field.get(null), loader))
+                        {
+                            result.add("static field " + clazz.getName() + "." + field.getName()); //$NON-NLS-1$ //$NON-NLS-2$
+                        }
+                    }
+                }
+            }
+            catch (@SuppressWarnings("unused") ReflectiveOperationException | RuntimeException | LinkageError ex)
+            {
+                // skip classes that cannot be inspected
+            }
+        }
+        
+        for (final Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            if (thread.getContextClassLoader() == loader || thread.getClass().getClassLoader() == loader
+                    || (THREAD_TARGET != null && references(THREAD_TARGET.apply(thread), loader)))
+            {
+                result.add("thread " + thread.getName()); //$NON-NLS-1$
+            }
+        }
+        
+        for (final BukkitTask task : Bukkit.getScheduler().getPendingTasks())
+        {
+            if (references(task.getOwner(), loader) || references(fieldValue(task, "task"), loader)) //$NON-NLS-1$
+            {
+                result.add("scheduler task " + task.getTaskId() + " of " + task.getOwner().getName()); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+        }
+        
+        for (final HandlerList handlers : HandlerList.getHandlerLists())
+        {
+            for (final RegisteredListener listener : handlers.getRegisteredListeners())
+            {
+                if (references(listener.getListener(), loader) || references(listener.getPlugin(), loader))
+                {
+                    result.add("listener " + listener.getListener().getClass().getName() + " of " + listener.getPlugin().getName()); //$NON-NLS-1$ //$NON-NLS-2$
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Reads a private field declared by the class of given object or one of its super classes.
+     * 
+     * @param object
+     * @param name
+     * @return field value or {@code null}
+     */
+    private static Object fieldValue(Object object, String name)
+    {
+        for (Class<?> clazz = object.getClass(); clazz != null; clazz = clazz.getSuperclass())
+        {
+            try
+            {
+                final Field field = clazz.getDeclaredField(name);
+                field.setAccessible(true);
+                return field.get(object);
+            }
+            catch (@SuppressWarnings("unused") NoSuchFieldException ex)
+            {
+                // try super class
+            }
+            catch (@SuppressWarnings("unused") ReflectiveOperationException | RuntimeException ex)
+            {
+                return null;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Checks if given value directly references the loader, one of its classes or one of its objects. Elements of collections, maps
+     * and arrays are inspected as well.
+     * 
+     * @param value
+     * @param loader
+     * @return {@code true} if the value references the loader
+     */
+    private static boolean references(Object value, ClassLoader loader)
+    {
+        if (isOwnedBy(value, loader))
+        {
+            return true;
+        }
+        int count = 0;
+        if (value instanceof Collection)
+        {
+            for (final Object element : (Collection<?>) value)
+            {
+                if (isOwnedBy(element, loader))
+                {
+                    return true;
+                }
+                if (++count >= MAX_ELEMENTS)
+                {
+                    break;
+                }
+            }
+        }
+        else if (value instanceof Map)
+        {
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+            {
+                if (isOwnedBy(entry.getKey(), loader) || isOwnedBy(entry.getValue(), loader))
+                {
+                    return true;
+                }
+                if (++count >= MAX_ELEMENTS)
+                {
+                    break;
+                }
+            }
+        }
+        else if (value != null && value.getClass().isArray() && !value.getClass().getComponentType().isPrimitive())
+        {
+            final int length = Math.min(Array.getLength(value), MAX_ELEMENTS);
+            for (int i = 0; i < length; i++)
+            {
+                if (isOwnedBy(Array.get(value, i), loader))
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Checks if given value is the loader, a class of the loader or an object of such class.
+     * 
+     * @param value
+     * @param loader
+     * @return {@code true} if the value is owned by the loader
+     */
+    private static boolean isOwnedBy(Object value, ClassLoader loader)
+    {
+        if (value == null)
+        {
+            return false;
+        }
+        if (value == loader)
+        {
+            return true;
+        }
+        if (value instanceof Class)
+        {
+            return ((Class<?>) value).getClassLoader() == loader;
+        }
+        return value.getClass().getClassLoader() == loader;
+    }
+    
+    /**
+     * The class loader of the sentinel class.
+     */
+    private static final class SentinelLoader extends ClassLoader
+    {
+        
+        /**
+         * Constructor
+         */
+        SentinelLoader()
+        {
+            super(null);
+        }
+        
+        /**
+         * Defines the sentinel class; the class keeps the loader alive until classes are unloaded.
+         */
+        void defineSentinel()
+        {
+            this.defineClass("Sentinel", SENTINEL_CLASS, 0, SENTINEL_CLASS.length); //$NON-NLS-1$
+        }
+        
+    }
+    
+    /**
+     * A discarded loader.
+     */
+    private static final class Tracked extends WeakReference<ClassLoader>
+    {
+        /** the plugin name. */
+        final String     pluginName;
+        /** the time the loader was discarded. */
+        final long       discarded;
+        /** the number of major collections when the loader was discarded. */
+        final long       gcCount;
+        /** {@code true} if the background check already warned about this loader. */
+        volatile boolean warned;
+        
+        /**
+         * Constructor
+         * 
+         * @param pluginName
+         * @param loader
+         * @param queue
+         * @param gcCount
+         */
+        Tracked(String pluginName, ClassLoader loader, ReferenceQueue<ClassLoader> queue, long gcCount)
+        {
+            super(loader, queue);
+            this.pluginName = pluginName;
+            this.discarded = System.currentTimeMillis();
+            this.gcCount = gcCount;
+        }
+    }
+    
+}
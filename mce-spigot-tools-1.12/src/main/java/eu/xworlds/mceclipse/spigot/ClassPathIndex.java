@@ -0,0 +1,566 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * An index mapping package names to the classpath entries containing them.
+ * 
+ * <p>
+ * The index allows to resolve a class or resource with a single hash lookup instead of probing each classpath entry in turn. The
+ * package lists and content hashes of jar files are persisted within a cache directory and reused as long as the modification time
+ * and the size of the jar did not change. Directories are always scanned. Jar files nested within other jar files are addressed by
+ * {@code jar:} urls, for example {@code jar:file:/libs/fat.jar!/lib/inner.jar}; they are read through a {@link MappedJar}.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public final class ClassPathIndex
+{
+    
+    /** the cache file format version. */
+    private static final int         VERSION = 2;
+    
+    /** empty entry list. */
+    private static final int[]       NONE    = new int[0];
+    
+    /** the logger. */
+    private static final Logger      LOGGER  = Logger.getLogger(ClassPathIndex.class.getName());
+    
+    /** the classpath entries. */
+    private final Entry[]            entries;
+    
+    /** the package names (resource path notation) mapped to the indices of the entries containing them. */
+    private final Map<String, int[]> packages;
+    
+    /**
+     * Constructor
+     * 
+     * @param entries
+     */
+    private ClassPathIndex(Entry[] entries)
+    {
+        final Map<String, List<Integer>> map = new HashMap<>();
+        for (int i = 0; i < entries.length; i++)
+        {
+            for (final String name : entries[i].packages)
+            {
+                map.computeIfAbsent(name, k -> new ArrayList<>(1)).add(Integer.valueOf(i));
+            }
+        }
+        
+        final Map<String, int[]> result = new HashMap<>(map.size() * 2);
+        for (final Map.Entry<String, List<Integer>> entry : map.entrySet())
+        {
+            final int[] indices = new int[entry.getValue().size()];
+            for (int i = 0; i < indices.length; i++)
+            {
+                indices[i] = entry.getValue().get(i).intValue();
+            }
+            result.put(entry.getKey(), indices);
+        }
+        this.entries = entries;
+        this.packages = result;
+    }
+    
+    /**
+     * Builds the index for given classpath entries.
+     * 
+     * @param entries
+     * @return the index
+     */
+    public static ClassPathIndex of(List<Entry> entries)
+    {
+        return new ClassPathIndex(entries.toArray(new Entry[entries.size()]));
+    }
+    
+    /**
+     * Scans a single classpath entry.
+     * 
+     * @param url
+     *            the classpath url; file urls and jar urls of nested jars are supported
+     * @param cacheDir
+     *            the directory for the persisted jar indices; {@code null} to disable persistence
+     * @return classpath entry
+     * @throws IOException
+     */
+    public static Entry scan(URL url, File cacheDir) throws IOException
+    {
+        final File file = fileOf(url);
+        if (file == null)
+        {
+            throw new IOException("Unsupported classpath url " + url); //$NON-NLS-1$
+        }
+        if ("jar".equals(url.getProtocol())) //$NON-NLS-1$
+        {
+            final String spec = url.getPath();
+            final String path = spec.substring(spec.indexOf("!/") + 2); //$NON-NLS-1$
+            if (!path.isEmpty())
+            {
+                return file.isFile() ? scanNested(url, file, path, cacheDir) : new Entry(url, file, path, 0, Collections.<String> emptySet());
+            }
+        }
+        if (file.isDirectory())
+        {
+            final Set<String> names = new HashSet<>();
+            scanDirectory(file, "", names); //$NON-NLS-1$
+            return new Entry(url, file, null, 0, names);
+        }
+        if (file.isFile())
+        {
+            return scanJar(url, file, cacheDir);
+        }
+        return new Entry(url, file, null, 0, Collections.<String> emptySet());
+    }
+    
+    /**
+     * Returns the local file of given classpath url; the outer jar file for nested jars.
+     * 
+     * @param url
+     * @return local file or {@code null} if the url does not denote a local file
+     */
+    public static File fileOf(URL url)
+    {
+        try
+        {
+            if ("jar".equals(url.getProtocol())) //$NON-NLS-1$
+            {
+                final String spec = url.getPath();
+                final int index = spec.indexOf("!/"); //$NON-NLS-1$
+                return index == -1 ? null : fileOf(new URL(spec.substring(0, index)));
+            }
+            return new File(url.toURI());
+        }
+        catch (@SuppressWarnings("unused") URISyntaxException | IllegalArgumentException | MalformedURLException ex)
+        {
+            return null;
+        }
+    }
+    
+    /**
+     * Returns the number of classpath entries.
+     * 
+     * @return number of entries.
+     */
+    public int size()
+    {
+        return this.entries.length;
+    }
+    
+    /**
+     * Returns the classpath entry with given index.
+     * 
+     * @param index
+     * @return classpath entry.
+     */
+    public Entry getEntry(int index)
+    {
+        return this.entries[index];
+    }
+    
+    /**
+     * Returns the indices of the classpath entries that may contain given resource.
+     * 
+     * @param resourceName
+     *            resource name, for example {@code org/bukkit/Bukkit.class}
+     * @return entry indices; empty array if no entry contains the resource package
+     */
+    public int[] lookup(String resourceName)
+    {
+        final int[] result = this.packages.get(packageOf(resourceName));
+        return result == null ? NONE : result;
+    }
+    
+    /**
+     * Returns the package of given resource in resource path notation.
+     * 
+     * @param resourceName
+     * @return package name; empty string for the root package
+     */
+    static String packageOf(String resourceName)
+    {
+        final int index = resourceName.lastIndexOf('/');
+        return index == -1 ? "" : resourceName.substring(0, index); //$NON-NLS-1$
+    }
+    
+    /**
+     * Checks for packages present in nearly every classpath entry.
+     * 
+     * @param pkg
+     *            package name (resource path notation)
+     * @return {@code true} for the root package and the meta-inf folder
+     */
+    static boolean isCommon(String pkg)
+    {
+        return pkg.isEmpty() || pkg.equals("META-INF") || pkg.startsWith("META-INF/"); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+    
+    /**
+     * Scans a directory for packages.
+     * 
+     * @param dir
+     * @param name
+     *            the package name of the directory
+     * @param result
+     */
+    private static void scanDirectory(File dir, String name, Set<String> result)
+    {
+        final File[] children = dir.listFiles();
+        if (children == null)
+        {
+            return;
+        }
+        for (final File child : children)
+        {
+            if (child.isDirectory())
+            {
+                scanDirectory(child, name.isEmpty() ? child.getName() : name + '/' + child.getName(), result);
+            }
+            else
+            {
+                result.add(name);
+            }
+        }
+    }
+    
+    /**
+     * Scans a jar file; uses the persisted index if it is up to date.
+     * 
+     * @param url
+     * @param jar
+     * @param cacheDir
+     * @return classpath entry
+     * @throws IOException
+     */
+    private static Entry scanJar(URL url, File jar, File cacheDir) throws IOException
+    {
+        final String path = jar.getCanonicalPath();
+        final long mtime = jar.lastModified();
+        final long length = jar.length();
+        final File cacheFile = cacheDir == null ? null : new File(cacheDir, Integer.toHexString(path.hashCode()) + '-' + jar.getName() + ".idx"); //$NON-NLS-1$
+        final Entry cached = readCache(cacheFile, url, jar, null, path, mtime, length);
+        if (cached != null)
+        {
+            return cached;
+        }
+        
+        final Set<String> result = new HashSet<>();
+        try (final ZipFile zip = new ZipFile(jar))
+        {
+            final Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+            while (zipEntries.hasMoreElements())
+            {
+                final ZipEntry entry = zipEntries.nextElement();
+                if (!entry.isDirectory())
+                {
+                    result.add(packageOf(entry.getName()));
+                }
+            }
+        }
+        final long hash = hash(jar);
+        writeCache(cacheFile, path, mtime, length, hash, result);
+        return new Entry(url, jar, null, hash, result);
+    }
+    
+    /**
+     * Scans a nested jar file; uses the persisted index if the outer jar did not change.
+     * 
+     * @param url
+     * @param jar
+     *            the outer jar
+     * @param nestedPath
+     *            the path within the outer jar
+     * @param cacheDir
+     * @return classpath entry
+     * @throws IOException
+     */
+    private static Entry scanNested(URL url, File jar, String nestedPath, File cacheDir) throws IOException
+    {
+        final String path = jar.getCanonicalPath() + "!/" + nestedPath; //$NON-NLS-1$
+        final long mtime = jar.lastModified();
+        final long length = jar.length();
+        final String name = nestedPath.substring(nestedPath.lastIndexOf('/') + 1);
+        final File cacheFile = cacheDir == null ? null : new File(cacheDir, Integer.toHexString(path.hashCode()) + '-' + name + ".idx"); //$NON-NLS-1$
+        final Entry cached = readCache(cacheFile, url, jar, nestedPath, path, mtime, length);
+        if (cached != null)
+        {
+            return cached;
+        }
+        
+        final Set<String> result = new HashSet<>();
+        final MappedJar nested = JarCache.getInstance().acquire(jar, nestedPath);
+        try
+        {
+            for (final String entryName : nested.names())
+            {
+                result.add(packageOf(entryName));
+            }
+        }
+        finally
+        {
+            JarCache.getInstance().release(nested);
+        }
+        writeCache(cacheFile, path, mtime, length, 0, result);
+        return new Entry(url, jar, nestedPath, 0, result);
+    }
+    
+    /**
+     * Reads a persisted index.
+     * 
+     * @param cacheFile
+     *            the cache file; {@code null} if persistence is disabled
+     * @param url
+     * @param jar
+     * @param nestedPath
+     * @param path
+     *            the canonical path the index was written for
+     * @param mtime
+     * @param length
+     * @return classpath entry or {@code null} if the persisted index is missing or outdated
+     */
+    private static Entry readCache(File cacheFile, URL url, File jar, String nestedPath, String path, long mtime, long length)
+    {
+        if (cacheFile != null && cacheFile.isFile())
+        {
+            try (final DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile))))
+            {
+                if (dis.readInt() == VERSION && path.equals(dis.readUTF()) && dis.readLong() == mtime && dis.readLong() == length)
+                {
+                    final long hash = dis.readLong();
+                    final int size = dis.readInt();
+                    final Set<String> result = new HashSet<>(size * 2);
+                    for (int i = 0; i < size; i++)
+                    {
+                        result.add(dis.readUTF());
+                    }
+                    return new Entry(url, jar, nestedPath, hash, result);
+                }
+            }
+            catch (@SuppressWarnings("unused") IOException ex)
+            {
+                // broken cache file; rebuild
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Persists an index; failures are logged and ignored since the index is rebuilt on the next load.
+     * 
+     * @param cacheFile
+     *            the cache file; {@code null} if persistence is disabled
+     * @param path
+     * @param mtime
+     * @param length
+     * @param hash
+     * @param packages
+     */
+    private static void writeCache(File cacheFile, String path, long mtime, long length, long hash, Set<String> packages)
+    {
+        if (cacheFile == null)
+        {
+            return;
+        }
+        File tmpFile = null;
+        try
+        {
+            final File cacheDir = cacheFile.getParentFile();
+            cacheDir.mkdirs();
+            tmpFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheDir); //$NON-NLS-1$
+            try (final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile))))
+            {
+                dos.writeInt(VERSION);
+                dos.writeUTF(path);
+                dos.writeLong(mtime);
+                dos.writeLong(length);
+                dos.writeLong(hash);
+                dos.writeInt(packages.size());
+                for (final String name : packages)
+                {
+                    dos.writeUTF(name);
+                }
+            }
+            Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            tmpFile = null;
+        }
+        catch (IOException ex)
+        {
+            LOGGER.log(Level.FINE, "Unable to write the classpath index " + cacheFile, ex); //$NON-NLS-1$
+        }
+        finally
+        {
+            if (tmpFile != null)
+            {
+                tmpFile.delete();
+            }
+        }
+    }
+    
+    /**
+     * Calculates the content hash of given file.
+     * 
+     * @param file
+     * @return hash
+     * @throws IOException
+     */
+    private static long hash(File file) throws IOException
+    {
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[8192];
+        try (final InputStream is = new FileInputStream(file))
+        {
+            int len;
+            while ((len = is.read(buffer)) != -1)
+            {
+                crc.update(buffer, 0, len);
+            }
+        }
+        return crc.getValue();
+    }
+    
+    /**
+     * A single classpath entry.
+     */
+    public static final class Entry
+    {
+        /** the classpath url. */
+        private final URL         url;
+        /** the file or directory; the outer jar file for nested jars. */
+        private final File        file;
+        /** the path within the outer jar; {@code null} if this is not a nested jar. */
+        private final String      nestedPath;
+        /** the content hash of jar files; 0 for directories and nested jars. */
+        private final long        hash;
+        /** the packages (resource path notation). */
+        private final Set<String> packages;
+        
+        /**
+         * Constructor
+         * 
+         * @param url
+         * @param file
+         * @param nestedPath
+         * @param hash
+         * @param packages
+         */
+        Entry(URL url, File file, String nestedPath, long hash, Set<String> packages)
+        {
+            this.url = url;
+            this.file = file;
+            this.nestedPath = nestedPath;
+            this.hash = hash;
+            this.packages = packages;
+        }
+        
+        /**
+         * Returns the classpath url.
+         * 
+         * @return the url
+         */
+        public URL getUrl()
+        {
+            return this.url;
+        }
+        
+        /**
+         * Returns the file or directory.
+         * 
+         * @return the file; the outer jar file for nested jars
+         */
+        public File getFile()
+        {
+            return this.file;
+        }
+        
+        /**
+         * Returns the path within the outer jar.
+         * 
+         * @return the nested path or {@code null} if this is not a nested jar
+         */
+        public String getNestedPath()
+        {
+            return this.nestedPath;
+        }
+        
+        /**
+         * Returns the content hash.
+         * 
+         * @return the content hash of jar files; 0 for directories and nested jars
+         */
+        public long getHash()
+        {
+            return this.hash;
+        }
+        
+        /**
+         * Returns the packages of this entry.
+         * 
+         * @return packages (resource path notation)
+         */
+        public Set<String> getPackages()
+        {
+            return Collections.unmodifiableSet(this.packages);
+        }
+        
+        /**
+         * Checks if this entry is a jar file.
+         * 
+         * @return {@code true} for jar files; {@code false} for nested jars
+         */
+        public boolean isJar()
+        {
+            return this.nestedPath == null && this.file.isFile();
+        }
+        
+        /**
+         * Checks if this entry is a jar file nested within another jar file.
+         * 
+         * @return {@code true} for nested jars
+         */
+        public boolean isNested()
+        {
+            return this.nestedPath != null;
+        }
+    }
+    
+}
@@ -16,19 +16,29 @@
 package eu.xworlds.mceclipse.spigot;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Map;
 import java.util.Set;
+import java.util.logging.Level;
 
+import org.bukkit.Bukkit;
+import org.bukkit.event.Cancellable;
 import org.bukkit.event.Event;
 import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
 import org.bukkit.event.Listener;
 import org.bukkit.permissions.Permissible;
 import org.bukkit.permissions.Permission;
+import org.bukkit.plugin.AuthorNagException;
 import org.bukkit.plugin.EventExecutor;
+import org.bukkit.plugin.IllegalPluginAccessException;
 import org.bukkit.plugin.InvalidDescriptionException;
 import org.bukkit.plugin.InvalidPluginException;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.plugin.PluginLoader;
 import org.bukkit.plugin.PluginManager;
+import org.bukkit.plugin.RegisteredListener;
 import org.bukkit.plugin.UnknownDependencyException;
 import org.bukkit.plugin.java.JavaPluginLoader;
 
@@ -42,6 +52,30 @@ public class ExtendedPluginManager implements PluginManager
     /** the original plugin loader delegate. */
     private final PluginManager delegate;
     
+    /** the project plugin loader. */
+    private ProjectPluginLoader projectLoader;
+    
+    /** the plugin description cache; lives as long as the server process. */
+    private final DescriptionCache descriptions = new DescriptionCache();
+    
+    /** the class loader leak detector; lives as long as the server process. */
+    private LeakDetector leakDetector;
+    
+    /** the event dispatch profiler; {@code null} if disabled. */
+    private final EventProfiler profiler;
+    
+    /** the slow event handler watchdog; {@code null} if disabled or closed. */
+    private EventWatchdog watchdog;
+    
+    /** the allocation statistics of event listeners; {@code null} if disabled. */
+    private final AllocationStats allocations;
+    
+    /** the event recorder; {@code null} if events are not recorded. */
+    private volatile EventRecorder recorder;
+    
+    /** the tools command; {@code null} if it was not registered yet. */
+    private ToolsCommand tools;
+    
     /**
      * Constructor
      * @param delegate
@@ -49,6 +83,13 @@ public class ExtendedPluginManager implements PluginManager
     public ExtendedPluginManager(final PluginManager delegate)
     {
         this.delegate = delegate;
+        this.profiler = Boolean.getBoolean("mceclipse.profiler") ? new EventProfiler() : null; //$NON-NLS-1$
+        this.watchdog = Boolean.getBoolean("mceclipse.watchdog") //$NON-NLS-1$
+                ? new EventWatchdog(Long.getLong("mceclipse.watchdog.threshold", 10).longValue(), Long.getLong("mceclipse.watchdog.stuck", 1000).longValue(), Bukkit.getLogger()) //$NON-NLS-1$ //$NON-NLS-2$
+                : null;
+        this.allocations = Boolean.getBoolean("mceclipse.allocations") //$NON-NLS-1$
+                ? AllocationStats.create(Integer.getInteger("mceclipse.allocations.sample", 1).intValue(), Bukkit.getLogger()) //$NON-NLS-1$
+                : null;
     }
 
     /**
@@ -59,6 +100,153 @@ public class ExtendedPluginManager implements PluginManager
     {
         return this.delegate;
     }
+    
+    /**
+     * Returns the project plugin loader.
+     * @return the project plugin loader or {@code null} if it was not registered yet
+     */
+    public ProjectPluginLoader getProjectLoader()
+    {
+        return this.projectLoader;
+    }
+    
+    /**
+     * Returns the plugin description cache.
+     * @return the description cache
+     */
+    public DescriptionCache getDescriptionCache()
+    {
+        return this.descriptions;
+    }
+    
+    /**
+     * Returns the class loader leak detector.
+     * @return the leak detector or {@code null} if leak detection is disabled
+     */
+    public synchronized LeakDetector getLeakDetector()
+    {
+        if (this.leakDetector == null && Boolean.parseBoolean(System.getProperty("mceclipse.leaks", "true"))) //$NON-NLS-1$ //$NON-NLS-2$
+        {
+            this.leakDetector = new LeakDetector(Bukkit.getLogger(), Integer.getInteger("mceclipse.leaks.gccycles", 3).intValue(), 60); //$NON-NLS-1$
+        }
+        return this.leakDetector;
+    }
+    
+    /**
+     * Returns the event dispatch profiler.
+     * @return the profiler or {@code null} if profiling is disabled
+     */
+    public EventProfiler getEventProfiler()
+    {
+        return this.profiler;
+    }
+    
+    /**
+     * Returns the allocation statistics of event listeners.
+     * @return the allocation statistics or {@code null} if allocation accounting is disabled
+     */
+    public AllocationStats getAllocationStats()
+    {
+        return this.allocations;
+    }
+    
+    /**
+     * Returns the event recorder.
+     * @return the recorder or {@code null} if events are not recorded
+     */
+    public EventRecorder getRecorder()
+    {
+        return this.recorder;
+    }
+    
+    /**
+     * Starts recording the events passing through {@link #callEvent(Event)}.
+     * @param file the event log
+     * @return the recorder
+     * @throws IOException thrown if the event log cannot be created
+     * @throws IllegalStateException thrown if events are already recorded
+     */
+    public synchronized EventRecorder startRecording(File file) throws IOException
+    {
+        if (this.recorder != null)
+        {
+            throw new IllegalStateException("Already recording events to " + this.recorder.getFile()); //$NON-NLS-1$
+        }
+        this.recorder = new EventRecorder(file, Bukkit.getLogger());
+        return this.recorder;
+    }
+    
+    /**
+     * Stops recording events and closes the event log.
+     * @return the closed recorder or {@code null} if events were not recorded
+     */
+    public synchronized EventRecorder stopRecording()
+    {
+        final EventRecorder result = this.recorder;
+        this.recorder = null;
+        if (result != null)
+        {
+            result.close();
+        }
+        return result;
+    }
+    
+    /**
+     * Drops the statistics of a disabled plugin that would keep the plugin or its classes reachable.
+     * @param plugin
+     */
+    void dropStatistics(Plugin plugin)
+    {
+        if (this.profiler != null)
+        {
+            this.profiler.remove(plugin);
+        }
+        if (this.allocations != null)
+        {
+            this.allocations.remove(plugin);
+        }
+    }
+    
+    /**
+     * Sets the project plugin loader.
+     * @param projectLoader
+     */
+    void setProjectLoader(ProjectPluginLoader projectLoader)
+    {
+        this.projectLoader = projectLoader;
+    }
+    
+    /**
+     * Sets the tools command; it is notified about disabled plugins.
+     * @param tools
+     */
+    void setToolsCommand(ToolsCommand tools)
+    {
+        this.tools = tools;
+    }
+    
+    /**
+     * Reloads a plugin that was loaded from an eclipse project without restarting the server.
+     * @param paramString the plugin name
+     * @return the new plugin instance
+     * @throws InvalidPluginException
+     * @throws InvalidDescriptionException
+     * @throws UnknownDependencyException
+     * @see ProjectPluginLoader#reloadPlugin(Plugin)
+     */
+    public Plugin reloadPlugin(String paramString) throws InvalidPluginException, InvalidDescriptionException, UnknownDependencyException
+    {
+        final Plugin plugin = this.delegate.getPlugin(paramString);
+        if (plugin == null)
+        {
+            throw new InvalidPluginException("Unknown plugin " + paramString); //$NON-NLS-1$
+        }
+        if (this.projectLoader == null || !this.projectLoader.isProjectPlugin(plugin))
+        {
+            throw new InvalidPluginException(paramString + " was not loaded from an eclipse project"); //$NON-NLS-1$
+        }
+        return this.projectLoader.reloadPlugin(plugin);
+    }
 
     @Override
     public void registerInterface(Class<? extends PluginLoader> paramClass) throws IllegalArgumentException
@@ -103,31 +291,263 @@ public class ExtendedPluginManager implements PluginManager
     @Override
     public Plugin[] loadPlugins(File paramFile)
     {
-        return this.delegate.loadPlugins(paramFile);
+        final ProjectPluginLoader loader = this.projectLoader;
+        if (loader == null)
+        {
+            return this.delegate.loadPlugins(paramFile);
+        }
+        loader.removeLegacyFiles(paramFile);
+        if (!Boolean.parseBoolean(System.getProperty("mceclipse.parallelstartup", "true"))) //$NON-NLS-1$ //$NON-NLS-2$
+        {
+            return this.delegate.loadPlugins(paramFile);
+        }
+        
+        final PluginGraph graph = loader.prepare(paramFile);
+        final Plugin[] result = this.delegate.loadPlugins(paramFile);
+        if (Boolean.getBoolean("mceclipse.parallelonload") && isCalledByServerStartup()) //$NON-NLS-1$
+        {
+            // CraftServer.loadPlugins uses the returned plugins for nothing but logging "Loading ..." and invoking onLoad; both are
+            // done by loadParallel. Returning no plugins to this single caller makes the server skip exactly this loop; the plugins
+            // are registered and available through getPlugins. All other callers receive the loaded plugins.
+            loader.loadParallel(result, graph);
+            return new Plugin[0];
+        }
+        return result;
+    }
+    
+    /**
+     * Checks if {@link #loadPlugins(File)} was invoked by {@code CraftServer.loadPlugins}.
+     * @return {@code true} if the caller is the plugin startup of the server
+     */
+    private static boolean isCalledByServerStartup()
+    {
+        final StackTraceElement[] stack = new Throwable().getStackTrace();
+        // [0] is this method, [1] is loadPlugins, [2] is its caller
+        if (stack.length < 3)
+        {
+            return false;
+        }
+        final String className = stack[2].getClassName();
+        return className.startsWith("org.bukkit.craftbukkit.") && className.endsWith(".CraftServer") && "loadPlugins".equals(stack[2].getMethodName()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
     }
 
     @Override
     public void disablePlugins()
     {
         this.delegate.disablePlugins();
+        this.stopRecording();
+        this.close();
+    }
+    
+    /**
+     * Stops the background threads of the watchdog and the leak detector; invoked on server shutdown. Server reloads only invoke
+     * {@link #clearPlugins()} and keep both running.
+     */
+    private synchronized void close()
+    {
+        if (this.watchdog != null)
+        {
+            this.watchdog.close();
+            this.watchdog = null;
+        }
+        if (this.leakDetector != null)
+        {
+            this.leakDetector.close();
+            this.leakDetector = null;
+        }
     }
 
     @Override
     public void clearPlugins()
     {
+        final LeakDetector detector = this.getLeakDetector();
+        if (detector != null)
+        {
+            for (final Plugin plugin : this.delegate.getPlugins())
+            {
+                detector.track(plugin.getName(), plugin.getClass().getClassLoader());
+            }
+        }
         this.delegate.clearPlugins();
+        if (this.profiler != null)
+        {
+            this.profiler.reset();
+        }
+        if (this.allocations != null)
+        {
+            this.allocations.reset();
+        }
+        if (this.projectLoader != null)
+        {
+            this.projectLoader.close();
+            this.projectLoader = null;
+        }
     }
 
     @Override
     public void callEvent(Event paramEvent) throws IllegalStateException
     {
-        this.delegate.callEvent(paramEvent);
+        final EventRecorder rec = this.recorder;
+        if (rec != null)
+        {
+            rec.record(paramEvent);
+        }
+        if (this.profiler == null && this.watchdog == null && this.allocations == null)
+        {
+            this.delegate.callEvent(paramEvent);
+        }
+        else if (paramEvent.isAsynchronous())
+        {
+            if (Thread.holdsLock(this.delegate))
+            {
+                throw new IllegalStateException(paramEvent.getEventName() + " cannot be triggered asynchronously from inside synchronized code."); //$NON-NLS-1$
+            }
+            if (Bukkit.getServer().isPrimaryThread())
+            {
+                throw new IllegalStateException(paramEvent.getEventName() + " cannot be triggered asynchronously from primary server thread."); //$NON-NLS-1$
+            }
+            this.fireEvent(paramEvent, this.profiler);
+        }
+        else
+        {
+            synchronized (this.delegate)
+            {
+                this.fireEvent(paramEvent, this.profiler);
+            }
+        }
+    }
+    
+    /**
+     * Passes a replayed event to the registered listeners. The thread checks of {@link #callEvent(Event)} are skipped since the
+     * replaying thread dispatches synchronous and asynchronous events.
+     * @param event
+     * @param replayProfiler the profiler receiving the time spent within each listener
+     */
+    void replayEvent(Event event, EventProfiler replayProfiler)
+    {
+        if (event.isAsynchronous())
+        {
+            this.fireEvent(event, replayProfiler);
+        }
+        else
+        {
+            synchronized (this.delegate)
+            {
+                this.fireEvent(event, replayProfiler);
+            }
+        }
+    }
+    
+    /**
+     * Passes an event to the registered listeners and records the time spent within each listener; see
+     * {@code SimplePluginManager.fireEvent}.
+     * @param event
+     * @param eventProfiler the profiler receiving the time spent within each listener; {@code null} if profiling is disabled
+     */
+    private void fireEvent(Event event, EventProfiler eventProfiler)
+    {
+        final EventWatchdog monitor = event.isAsynchronous() ? null : this.watchdog;
+        final AllocationStats allocs = this.allocations;
+        final Class<? extends Event> eventClass = event.getClass();
+        final Cancellable cancellable = event instanceof Cancellable ? (Cancellable) event : null;
+        final HandlerList handlers = event.getHandlers();
+        for (final RegisteredListener registration : handlers.getRegisteredListeners())
+        {
+            if (!registration.getPlugin().isEnabled())
+            {
+                continue;
+            }
+            
+            final boolean cancelled = cancellable != null && cancellable.isCancelled();
+            final boolean invoked = !cancelled || !registration.isIgnoringCancelled();
+            final boolean sampled = allocs != null && allocs.sample();
+            final long allocated = sampled ? allocs.allocatedBytes() : 0;
+            final long start = System.nanoTime();
+            final boolean published = monitor != null && monitor.enter(registration, event, start);
+            try
+            {
+                registration.callEvent(event);
+            }
+            catch (AuthorNagException ex)
+            {
+                final Plugin plugin = registration.getPlugin();
+                if (plugin.isNaggable())
+                {
+                    plugin.setNaggable(false);
+                    Bukkit.getLogger().log(Level.SEVERE, String.format("Nag author(s): '%s' of '%s' about the following: %s", //$NON-NLS-1$
+                            plugin.getDescription().getAuthors(), plugin.getDescription().getFullName(), ex.getMessage()));
+                }
+            }
+            catch (Throwable ex)
+            {
+                Bukkit.getLogger().log(Level.SEVERE, "Could not pass event " + event.getEventName() + " to " + registration.getPlugin().getDescription().getFullName(), ex); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            final long time = System.nanoTime() - start;
+            if (sampled)
+            {
+                allocs.record(registration.getPlugin(), eventClass, allocs.allocatedBytes() - allocated);
+            }
+            if (monitor != null)
+            {
+                monitor.exit(published, registration, event, time);
+            }
+            if (invoked && eventProfiler != null)
+            {
+                eventProfiler.get(eventClass, handlers, registration).record(time, cancelled);
+            }
+        }
     }
 
     @Override
     public void registerEvents(Listener paramListener, Plugin paramPlugin)
     {
-        this.delegate.registerEvents(paramListener, paramPlugin);
+        final ProjectPluginLoader loader = this.projectLoader;
+        if (loader == null || !loader.isProjectPlugin(paramPlugin))
+        {
+            this.delegate.registerEvents(paramListener, paramPlugin);
+            return;
+        }
+        // project plugins are initialized with the java plugin loader; the simple plugin manager would ask it for the listeners
+        if (!paramPlugin.isEnabled())
+        {
+            throw new IllegalPluginAccessException("Plugin attempted to register " + paramListener + " while not enabled"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        for (final Map.Entry<Class<? extends Event>, Set<RegisteredListener>> entry : loader.createRegisteredListeners(paramListener, paramPlugin).entrySet())
+        {
+            getHandlerList(entry.getKey()).registerAll(entry.getValue());
+        }
+    }
+    
+    /**
+     * Returns the handler list of given event class; like the simple plugin manager the static method {@code getHandlerList} is
+     * searched within the event class and its super classes.
+     * 
+     * @param eventClass
+     * @return handler list
+     * @throws IllegalPluginAccessException
+     *             thrown if the event class does not declare a handler list
+     */
+    private static HandlerList getHandlerList(Class<? extends Event> eventClass)
+    {
+        Class<?> current = eventClass;
+        while (current != null && current != Event.class && Event.class.isAssignableFrom(current))
+        {
+            try
+            {
+                final Method method = current.getDeclaredMethod("getHandlerList"); //$NON-NLS-1$
+                method.setAccessible(true);
+                return (HandlerList) method.invoke(null);
+            }
+            catch (@SuppressWarnings("unused") NoSuchMethodException ex)
+            {
+                current = current.getSuperclass();
+            }
+            catch (ReflectiveOperationException | RuntimeException ex)
+            {
+                throw new IllegalPluginAccessException(ex.toString());
+            }
+        }
+        throw new IllegalPluginAccessException("Unable to find handler list for event " + eventClass.getName() + ". Static getHandlerList method required!"); //$NON-NLS-1$ //$NON-NLS-2$
     }
 
     @Override
@@ -152,6 +572,11 @@ public class ExtendedPluginManager implements PluginManager
     public void disablePlugin(Plugin paramPlugin)
     {
         this.delegate.disablePlugin(paramPlugin);
+        this.dropStatistics(paramPlugin);
+        if (this.tools != null)
+        {
+            this.tools.pluginDisabled(paramPlugin);
+        }
     }
 
     @Override
@@ -0,0 +1,521 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.bukkit.Bukkit;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * The console command giving access to the eclipse development tools.
+ * 
+ * @author mepeisen
+ */
+public class ToolsCommand extends Command
+{
+    
+    /** the sub commands. */
+    private static final String[] SUB_COMMANDS  = { "reload", "lookups", "leaks", "classes", "events", "allocations", "record", "replay" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$ //$NON-NLS-8$
+    
+    /** the number of entries printed by the events and allocations commands. */
+    private static final int      TOP_LISTENERS = 15;
+    
+    /** the plugin manager. */
+    private final ExtendedPluginManager manager;
+    
+    /** the task of the running tick-paced replay; {@code null} if no replay was started. */
+    private BukkitTask                  replayTask;
+    
+    /** the plugin owning the task of the running tick-paced replay. */
+    private Plugin                      replayOwner;
+    
+    /** the sender of the running tick-paced replay. */
+    private CommandSender               replaySender;
+    
+    /** the running tick-paced replay. */
+    private EventReplay                 replay;
+    
+    /**
+     * Constructor
+     * 
+     * @param manager
+     */
+    public ToolsCommand(ExtendedPluginManager manager)
+    {
+        super("mce", "Eclipse development tools", "/mce reload <plugin>|lookups|leaks|classes|events [reset]|allocations [reset]|record start <file>|record stop|replay <file> [paced]", Collections.<String> emptyList()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        this.setPermission("mceclipse.tools"); //$NON-NLS-1$
+        this.manager = manager;
+    }
+    
+    @Override
+    public boolean execute(CommandSender sender, String commandLabel, String[] args)
+    {
+        if (!this.testPermission(sender))
+        {
+            return true;
+        }
+        if (args.length > 0)
+        {
+            switch (args[0].toLowerCase(Locale.ROOT))
+            {
+                case "reload": //$NON-NLS-1$
+                    return this.reload(sender, args);
+                case "lookups": //$NON-NLS-1$
+                    return this.lookups(sender);
+                case "leaks": //$NON-NLS-1$
+                    return this.leaks(sender);
+                case "classes": //$NON-NLS-1$
+                    return this.classes(sender);
+                case "events": //$NON-NLS-1$
+                    return this.events(sender, args);
+                case "allocations": //$NON-NLS-1$
+                    return this.allocations(sender, args);
+                case "record": //$NON-NLS-1$
+                    return this.record(sender, args);
+                case "replay": //$NON-NLS-1$
+                    return this.replay(sender, args);
+                default:
+                    break;
+            }
+        }
+        sender.sendMessage("Usage: " + this.getUsage()); //$NON-NLS-1$
+        return false;
+    }
+    
+    /**
+     * Reloads a project plugin.
+     * 
+     * @param sender
+     * @param args
+     * @return {@code true} if the command was valid.
+     */
+    private boolean reload(CommandSender sender, String[] args)
+    {
+        if (args.length != 2)
+        {
+            sender.sendMessage("Usage: /mce reload <plugin>"); //$NON-NLS-1$
+            return false;
+        }
+        try
+        {
+            final long start = System.currentTimeMillis();
+            final Plugin plugin = this.manager.reloadPlugin(args[1]);
+            sender.sendMessage("Reloaded " + plugin.getDescription().getFullName() + " in " + (System.currentTimeMillis() - start) + "ms"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+        catch (Exception ex)
+        {
+            sender.getServer().getLogger().log(Level.SEVERE, "Error reloading " + args[1], ex); //$NON-NLS-1$
+            sender.sendMessage("Error reloading " + args[1] + ": " + ex.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        return true;
+    }
+    
+    /**
+     * Prints the statistics of the negative lookup cache and the jar cache.
+     * 
+     * @param sender
+     * @return {@code true} if the command was valid.
+     */
+    private boolean lookups(CommandSender sender)
+    {
+        final ProjectPluginLoader loader = this.manager.getProjectLoader();
+        if (loader == null)
+        {
+            sender.sendMessage("Project plugin loader not registered"); //$NON-NLS-1$
+            return true;
+        }
+        final ClassLookupCache cache = loader.getLookupCache();
+        sender.sendMessage("Class lookup cache: " + cache.getHits() + " hits, " + cache.getMisses() + " misses, " + cache.size() + " cached" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+                + (cache.isPassThrough() ? ", pass-through" : "")); //$NON-NLS-1$ //$NON-NLS-2$
+        final JarCache jars = JarCache.getInstance();
+        sender.sendMessage("Jar cache: " + jars.size() + " jars, " + (jars.getMappedBytes() >> 10) + " KiB mapped"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        return true;
+    }
+    
+    /**
+     * Forces a garbage collection and prints the class loaders of discarded plugins that are still reachable.
+     * 
+     * @param sender
+     * @return {@code true} if the command was valid.
+     */
+    private boolean leaks(CommandSender sender)
+    {
+        final LeakDetector detector = this.manager.getLeakDetector();
+        if (detector == null)
+        {
+            sender.sendMessage("Leak detection is disabled"); //$NON-NLS-1$
+            return true;
+        }
+        System.gc();
+        final ProjectPluginLoader loader = this.manager.getProjectLoader();
+        final List<String> report = detector.report(loader == null ? Collections.<Class<?>> emptyList() : loader.getLoadedClasses());
+        if (report.isEmpty())
+        {
+            sender.sendMessage("No leaked class loaders; " + detector.size() + " discarded loaders not collected yet"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        for (final String line : report)
+        {
+            sender.sendMessage(line);
+        }
+        return true;
+    }
+    
+    /**
+     * Prints the class loading statistics of project plugins, the most expensive first.
+     * 
+     * @param sender
+     * @return {@code true} if the command was valid.
+     */
+    private boolean classes(CommandSender sender)
+    {
+        final ProjectPluginLoader loader = this.manager.getProjectLoader();
+        final ClassLoadingMonitor monitor = loader == null ? null : loader.getClassLoadingMonitor();
+        if (monitor == null)
+        {
+            sender.sendMessage("Class loading statistics are disabled"); //$NON-NLS-1$
+            return true;
+        }
+        final List<ClassLoadingStats> stats = new ArrayList<>(monitor.getStats());
+        stats.sort(Comparator.comparingLong(ClassLoadingStats::getTotalTime).reversed());
+        for (final ClassLoadingStats stat : stats)
+        {
+            sender.sendMessage(String.format("%s: %d classes, %d KiB, find %d ms, define %d ms, resolve %d ms (%d lookups)", //$NON-NLS-1$
+                    stat.getPluginName(), stat.getDefinedClasses(), stat.getBytesRead() >> 10, TimeUnit.NANOSECONDS.toMillis(stat.getFindTime()),
+                    TimeUnit.NANOSECONDS.toMillis(stat.getDefineTime()), TimeUnit.NANOSECONDS.toMillis(stat.getResolveTime()), stat.getResolveCount()));
+        }
+        if (stats.isEmpty())
+        {
+            sender.sendMessage("No project plugins loaded"); //$NON-NLS-1$
+        }
+        return true;
+    }
+    
+    /**
+     * Prints the event listeners with the highest total time or resets the profiles.
+     * 
+     * @param sender
+     * @param args
+     * @return {@code true} if the command was valid.
+     */
+    private boolean events(CommandSender sender, String[] args)
+    {
+        final EventProfiler profiler = this.manager.getEventProfiler();
+        if (profiler == null)
+        {
+            sender.sendMessage("Event profiling is disabled"); //$NON-NLS-1$
+            return true;
+        }
+        if (args.length == 2 && "reset".equalsIgnoreCase(args[1])) //$NON-NLS-1$
+        {
+            profiler.reset();
+            sender.sendMessage("Event profiles reset"); //$NON-NLS-1$
+            return true;
+        }
+        this.printProfiles(sender, profiler);
+        return true;
+    }
+    
+    /**
+     * Prints the event listeners with the highest total time.
+     * 
+     * @param sender
+     * @param profiler
+     */
+    private void printProfiles(CommandSender sender, EventProfiler profiler)
+    {
+        final List<EventProfiler.ListenerProfile> profiles = profiler.getProfiles();
+        profiles.sort(Comparator.comparingLong((EventProfiler.ListenerProfile p) -> p.getLatency().getTotal()).reversed());
+        for (final EventProfiler.ListenerProfile profile : profiles.subList(0, Math.min(TOP_LISTENERS, profiles.size())))
+        {
+            final LatencyHistogram latency = profile.getLatency();
+            sender.sendMessage(String.format("%s %s %s: %d calls, total %d ms, avg %d us, p99 %d us, max %d us, %d on cancelled events", //$NON-NLS-1$
+                    profile.getEventName(), profile.getPluginName(), profile.getListenerName(), latency.getCount(), TimeUnit.NANOSECONDS.toMillis(latency.getTotal()),
+                    TimeUnit.NANOSECONDS.toMicros(latency.getAverage()), TimeUnit.NANOSECONDS.toMicros(latency.getValueAtPercentile(99.0)),
+                    TimeUnit.NANOSECONDS.toMicros(latency.getMax()), profile.getCancelledCalls()));
+        }
+        if (profiles.isEmpty())
+        {
+            sender.sendMessage("No events dispatched yet"); //$NON-NLS-1$
+        }
+    }
+    
+    /**
+     * Prints the bytes allocated by event listeners per plugin and per event type or resets the statistics.
+     * 
+     * @param sender
+     * @param args
+     * @return {@code true} if the command was valid.
+     */
+    private boolean allocations(CommandSender sender, String[] args)
+    {
+        final AllocationStats stats = this.manager.getAllocationStats();
+        if (stats == null)
+        {
+            sender.sendMessage("Allocation accounting is disabled"); //$NON-NLS-1$
+            return true;
+        }
+        if (args.length == 2 && "reset".equalsIgnoreCase(args[1])) //$NON-NLS-1$
+        {
+            stats.reset();
+            sender.sendMessage("Allocation statistics reset"); //$NON-NLS-1$
+            return true;
+        }
+        sender.sendMessage("Allocations of event listeners; " + stats.getSamples() + " samples, 1 in " + stats.getSampleInterval() + " invocations measured"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        this.printAllocations(sender, "Plugin", stats.getPluginAllocations()); //$NON-NLS-1$
+        this.printAllocations(sender, "Event", stats.getEventAllocations()); //$NON-NLS-1$
+        return true;
+    }
+    
+    /**
+     * Prints allocated bytes, the highest first.
+     * 
+     * @param sender
+     * @param label
+     * @param bytes
+     */
+    private void printAllocations(CommandSender sender, String label, Map<String, Long> bytes)
+    {
+        final List<Map.Entry<String, Long>> entries = new ArrayList<>(bytes.entrySet());
+        entries.sort(Map.Entry.<String, Long> comparingByValue().reversed());
+        for (final Map.Entry<String, Long> entry : entries.subList(0, Math.min(TOP_LISTENERS, entries.size())))
+        {
+            sender.sendMessage(label + ' ' + entry.getKey() + ": " + (entry.getValue().longValue() >> 10) + " KiB"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+    
+    /**
+     * Starts or stops recording events.
+     * 
+     * @param sender
+     * @param args
+     * @return {@code true} if the command was valid.
+     */
+    private boolean record(CommandSender sender, String[] args)
+    {
+        if (args.length == 3 && "start".equalsIgnoreCase(args[1])) //$NON-NLS-1$
+        {
+            if (this.isReplaying())
+            {
+                sender.sendMessage("Cannot record events while a replay is running"); //$NON-NLS-1$
+                return true;
+            }
+            try
+            {
+                final EventRecorder recorder = this.manager.startRecording(new File(args[2]));
+                sender.sendMessage("Recording events to " + recorder.getFile().getAbsolutePath()); //$NON-NLS-1$
+            }
+            catch (IOException | IllegalStateException ex)
+            {
+                sender.sendMessage("Unable to record events: " + ex.getMessage()); //$NON-NLS-1$
+            }
+            return true;
+        }
+        if (args.length == 2 && "stop".equalsIgnoreCase(args[1])) //$NON-NLS-1$
+        {
+            final EventRecorder recorder = this.manager.stopRecording();
+            if (recorder == null)
+            {
+                sender.sendMessage("Events are not recorded"); //$NON-NLS-1$
+            }
+            else
+            {
+                sender.sendMessage("Recorded " + recorder.getEvents() + " events to " + recorder.getFile().getAbsolutePath() + "; " //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                        + recorder.getUnsupported() + " values of unsupported types skipped"); //$NON-NLS-1$
+            }
+            return true;
+        }
+        sender.sendMessage("Usage: /mce record start <file>|stop"); //$NON-NLS-1$
+        return false;
+    }
+    
+    /**
+     * Replays an event log at full speed or tick-paced and prints the listener profiles of the replay.
+     * 
+     * @param sender
+     * @param args
+     * @return {@code true} if the command was valid.
+     */
+    private boolean replay(CommandSender sender, String[] args)
+    {
+        final boolean paced = args.length == 3 && "paced".equalsIgnoreCase(args[2]); //$NON-NLS-1$
+        if (args.length != 2 && !paced)
+        {
+            sender.sendMessage("Usage: /mce replay <file> [paced]"); //$NON-NLS-1$
+            return false;
+        }
+        if (this.manager.getRecorder() != null || this.isReplaying())
+        {
+            sender.sendMessage("Cannot replay events while events are recorded or another replay is running"); //$NON-NLS-1$
+            return true;
+        }
+        final EventReplay replay;
+        try
+        {
+            replay = EventReplay.load(new File(args[1]), this.manager);
+        }
+        catch (IOException ex)
+        {
+            sender.getServer().getLogger().log(Level.SEVERE, "Error loading " + args[1], ex); //$NON-NLS-1$
+            sender.sendMessage("Error loading " + args[1] + ": " + ex.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+            return true;
+        }
+        sender.sendMessage("Replaying " + replay.getEvents() + " events of " + replay.getTicks() + " ticks"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        if (replay.getAsynchronous() > 0)
+        {
+            sender.sendMessage(replay.getAsynchronous() + " asynchronous events are replayed on the main thread; thread checks of their listeners do not apply"); //$NON-NLS-1$
+        }
+        if (!paced)
+        {
+            replay.run();
+            this.printReplay(sender, replay);
+            return true;
+        }
+        Plugin owner = null;
+        for (final Plugin plugin : this.manager.getPlugins())
+        {
+            if (plugin.isEnabled())
+            {
+                owner = plugin;
+                break;
+            }
+        }
+        if (owner == null)
+        {
+            sender.sendMessage("Tick-paced replay requires an enabled plugin owning the replay task"); //$NON-NLS-1$
+            return true;
+        }
+        this.replayOwner = owner;
+        this.replaySender = sender;
+        this.replay = replay;
+        this.replayTask = sender.getServer().getScheduler().runTaskTimer(owner, () -> {
+            if (!replay.tick())
+            {
+                this.finishReplay(null);
+            }
+        }, 1, 1);
+        sender.sendMessage("The replay task is owned by " + owner.getName() + "; disabling it stops the replay"); //$NON-NLS-1$ //$NON-NLS-2$
+        return true;
+    }
+    
+    /**
+     * Checks for a running tick-paced replay; reports a replay whose task was cancelled by the scheduler.
+     * 
+     * @return {@code true} if a replay is running
+     */
+    private boolean isReplaying()
+    {
+        if (this.replayTask != null && !Bukkit.getScheduler().isQueued(this.replayTask.getTaskId()))
+        {
+            this.finishReplay("Tick-paced replay was cancelled with the tasks of " + this.replayOwner.getName()); //$NON-NLS-1$
+        }
+        return this.replayTask != null;
+    }
+    
+    /**
+     * Notifies that a plugin was disabled; stops the tick-paced replay if the plugin owns its task.
+     * 
+     * @param plugin
+     */
+    void pluginDisabled(Plugin plugin)
+    {
+        if (this.replayTask != null && this.replayOwner == plugin)
+        {
+            this.finishReplay("Tick-paced replay stopped; " + plugin.getName() + " owning the replay task was disabled"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+    
+    /**
+     * Stops the tick-paced replay and prints its results.
+     * 
+     * @param reason
+     *            the reason the replay stopped early; {@code null} if all events were replayed
+     */
+    private void finishReplay(String reason)
+    {
+        final BukkitTask task = this.replayTask;
+        final CommandSender sender = this.replaySender;
+        final EventReplay finished = this.replay;
+        this.replayTask = null;
+        this.replayOwner = null;
+        this.replaySender = null;
+        this.replay = null;
+        if (task == null)
+        {
+            return;
+        }
+        task.cancel();
+        if (reason != null)
+        {
+            sender.sendMessage(reason);
+        }
+        this.printReplay(sender, finished);
+    }
+    
+    /**
+     * Prints the throughput of a replay and its listener profiles.
+     * 
+     * @param sender
+     * @param replay
+     */
+    private void printReplay(CommandSender sender, EventReplay replay)
+    {
+        final long busy = Math.max(1, replay.getBusyTime());
+        sender.sendMessage(String.format("Replayed %d events in %d ms, %d events/s; %d events of unknown types skipped", //$NON-NLS-1$
+                replay.getDispatched(), TimeUnit.NANOSECONDS.toMillis(busy), replay.getDispatched() * TimeUnit.SECONDS.toNanos(1) / busy, replay.getSkipped()));
+        this.printProfiles(sender, replay.getProfiler());
+    }
+    
+    @Override
+    public List<String> tabComplete(CommandSender sender, String alias, String[] args) throws IllegalArgumentException
+    {
+        final List<String> result = new ArrayList<>();
+        if (args.length == 1)
+        {
+            for (final String sub : SUB_COMMANDS)
+            {
+                if (sub.startsWith(args[0].toLowerCase(Locale.ROOT)))
+                {
+                    result.add(sub);
+                }
+            }
+        }
+        else if (args.length == 2 && "reload".equalsIgnoreCase(args[0]) && this.manager.getProjectLoader() != null) //$NON-NLS-1$
+        {
+            for (final Plugin plugin : this.manager.getPlugins())
+            {
+                if (this.manager.getProjectLoader().isProjectPlugin(plugin) && plugin.getName().toLowerCase(Locale.ROOT).startsWith(args[1].toLowerCase(Locale.ROOT)))
+                {
+                    result.add(plugin.getName());
+                }
+            }
+        }
+        return result;
+    }
+    
+}
@@ -0,0 +1,345 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A chain of bytecode transformers applied to the workspace classes of project plugins.
+ * 
+ * <p>
+ * Transformers implement {@link ClassFileTransformer} and are instantiated from the server classpath by their no-arg constructor. They
+ * are configured by the system property {@code mceclipse.transformers} for all project plugins and by the {@code transformers}
+ * property of the eclipse project file for a single plugin; both take a comma separated list of class names. Only classes of the
+ * workspace are transformed: the class output folder of the plugin and directory entries of its classpath. Library jars, bukkit,
+ * craftbukkit and minecraft classes are never passed to a transformer.
+ * </p>
+ * 
+ * <p>
+ * The plugin class loader of bukkit reads the class output folder on its own. Thus the output folder is mirrored to a cache directory
+ * and the transformed classes are written to the mirror; unchanged files are kept from the previous load. The mirror is rebuilt as
+ * soon as the class files of the transformers change. Transformers are invoked without a protection domain; for mirrored classes the
+ * loader argument is a temporary loader of the untransformed class output folder, thus transformers computing stack map frames are
+ * able to resolve the plugin classes.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public final class TransformerChain
+{
+    
+    /** the transformer class names. */
+    private final List<String>               names;
+    
+    /** the transformers. */
+    private final List<ClassFileTransformer> transformers;
+    
+    /** the fingerprint of the transformer implementations. */
+    private final String                     fingerprint;
+    
+    /** the logger. */
+    private final Logger                     logger;
+    
+    /**
+     * Constructor
+     * 
+     * @param names
+     * @param transformers
+     * @param logger
+     */
+    private TransformerChain(List<String> names, List<ClassFileTransformer> transformers, Logger logger)
+    {
+        this.names = names;
+        this.transformers = transformers;
+        this.logger = logger;
+        final StringBuilder builder = new StringBuilder();
+        for (final ClassFileTransformer transformer : transformers)
+        {
+            builder.append(transformer.getClass().getName()).append('@').append(fingerprintOf(transformer.getClass())).append('\n');
+        }
+        this.fingerprint = builder.toString();
+    }
+    
+    /**
+     * Returns the fingerprint of the code source of given class; size and modification time of the jar file or the latest
+     * modification time of the class folder.
+     * 
+     * @param cls
+     * @return fingerprint
+     */
+    private static String fingerprintOf(Class<?> cls)
+    {
+        final CodeSource source = cls.getProtectionDomain().getCodeSource();
+        if (source == null || source.getLocation() == null)
+        {
+            return "<unknown>"; //$NON-NLS-1$
+        }
+        try
+        {
+            final File file = new File(source.getLocation().toURI());
+            return file.isDirectory() ? file + ":" + lastModified(file) : file + ":" + file.length() + ':' + file.lastModified(); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        catch (URISyntaxException | IllegalArgumentException ex)
+        {
+            return source.getLocation().toString();
+        }
+    }
+    
+    /**
+     * Returns the latest modification time of the files within given directory.
+     * 
+     * @param dir
+     * @return modification time
+     */
+    private static long lastModified(File dir)
+    {
+        long result = dir.lastModified();
+        final File[] children = dir.listFiles();
+        if (children != null)
+        {
+            for (final File child : children)
+            {
+                result = Math.max(result, child.isDirectory() ? lastModified(child) : child.lastModified());
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Creates a transformer chain.
+     * 
+     * @param names
+     *            the transformer class names
+     * @param loader
+     *            the class loader to load the transformers from
+     * @param logger
+     * @return transformer chain
+     * @throws ReflectiveOperationException
+     *             thrown if a transformer cannot be instantiated
+     */
+    public static TransformerChain create(List<String> names, ClassLoader loader, Logger logger) throws ReflectiveOperationException
+    {
+        final List<ClassFileTransformer> result = new ArrayList<>(names.size());
+        for (final String name : names)
+        {
+            result.add(Class.forName(name, true, loader).asSubclass(ClassFileTransformer.class).getConstructor().newInstance());
+        }
+        return new TransformerChain(Collections.unmodifiableList(new ArrayList<>(names)), Collections.unmodifiableList(result), logger);
+    }
+    
+    /**
+     * Parses a comma separated list of transformer class names.
+     * 
+     * @param spec
+     *            the list; may be {@code null}
+     * @return transformer class names
+     */
+    public static List<String> parseNames(String spec)
+    {
+        if (spec == null)
+        {
+            return Collections.emptyList();
+        }
+        final List<String> result = new ArrayList<>();
+        for (final String name : spec.split(",")) //$NON-NLS-1$
+        {
+            if (!name.trim().isEmpty())
+            {
+                result.add(name.trim());
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the transformer class names.
+     * 
+     * @return class names
+     */
+    public List<String> getNames()
+    {
+        return this.names;
+    }
+    
+    /**
+     * Returns an identifier of this chain, used to separate the mirrors of different chains.
+     * 
+     * @return identifier
+     */
+    public String getId()
+    {
+        return Integer.toHexString(this.names.hashCode());
+    }
+    
+    /**
+     * Applies the transformers to given class.
+     * 
+     * @param loader
+     *            the defining loader
+     * @param name
+     *            the binary class name
+     * @param bytes
+     *            the class file
+     * @return the transformed class file
+     */
+    public byte[] transform(ClassLoader loader, String name, byte[] bytes)
+    {
+        final String internalName = name.replace('.', '/');
+        byte[] result = bytes;
+        for (final ClassFileTransformer transformer : this.transformers)
+        {
+            try
+            {
+                final byte[] transformed = transformer.transform(loader, internalName, null, null, result);
+                if (transformed != null)
+                {
+                    result = transformed;
+                }
+            }
+            catch (IllegalClassFormatException | RuntimeException ex)
+            {
+                // like the instrumentation api: a failing transformer leaves the class unchanged
+                this.logger.log(Level.WARNING, "Transformer " + transformer.getClass().getName() + " failed for " + name, ex); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Mirrors a class output folder; class files are transformed, other files are copied. Files that did not change since the last
+     * call are kept, files that were removed from the class output folder are deleted. The whole mirror is rebuilt if the transformer
+     * implementations changed since the last call.
+     * 
+     * @param source
+     *            the class output folder
+     * @param target
+     *            the mirror
+     * @param parent
+     *            the parent of the plugin class loader
+     * @return the mirror
+     * @throws IOException
+     */
+    public File mirror(File source, File target, ClassLoader parent) throws IOException
+    {
+        final File stamp = new File(target.getParentFile(), target.getName() + ".stamp"); //$NON-NLS-1$
+        if (!stamp.isFile() || !this.fingerprint.equals(new String(Files.readAllBytes(stamp.toPath()), StandardCharsets.UTF_8)))
+        {
+            delete(target);
+            Files.deleteIfExists(stamp.toPath());
+        }
+        target.getParentFile().mkdirs();
+        try (final URLClassLoader loader = new URLClassLoader(new URL[] { source.toURI().toURL() }, parent))
+        {
+            this.mirror(source, target, "", loader); //$NON-NLS-1$
+        }
+        Files.write(stamp.toPath(), this.fingerprint.getBytes(StandardCharsets.UTF_8));
+        return target;
+    }
+    
+    /**
+     * Mirrors a directory.
+     * 
+     * @param source
+     * @param target
+     * @param pkg
+     *            the package name of the directory in binary notation; empty for the root package
+     * @param loader
+     * @throws IOException
+     */
+    private void mirror(File source, File target, String pkg, ClassLoader loader) throws IOException
+    {
+        final File[] children = source.listFiles();
+        if (children == null)
+        {
+            return;
+        }
+        target.mkdirs();
+        final Set<String> names = new HashSet<>();
+        for (final File child : children)
+        {
+            names.add(child.getName());
+            final File out = new File(target, child.getName());
+            if (child.isDirectory())
+            {
+                this.mirror(child, out, pkg.isEmpty() ? child.getName() : pkg + '.' + child.getName(), loader);
+            }
+            else if (!out.isFile() || out.lastModified() != child.lastModified())
+            {
+                if (child.getName().endsWith(".class")) //$NON-NLS-1$
+                {
+                    final String simpleName = child.getName().substring(0, child.getName().length() - 6);
+                    final String name = pkg.isEmpty() ? simpleName : pkg + '.' + simpleName;
+                    final File tmpFile = new File(target, child.getName() + ".tmp"); //$NON-NLS-1$
+                    Files.write(tmpFile.toPath(), this.transform(loader, name, Files.readAllBytes(child.toPath())));
+                    Files.move(tmpFile.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                else
+                {
+                    Files.copy(child.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                out.setLastModified(child.lastModified());
+            }
+        }
+        final File[] mirrored = target.listFiles();
+        if (mirrored != null)
+        {
+            for (final File child : mirrored)
+            {
+                if (!names.contains(child.getName()))
+                {
+                    delete(child);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Deletes a file or directory.
+     * 
+     * @param file
+     * @throws IOException
+     */
+    private static void delete(File file) throws IOException
+    {
+        final File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (final File child : children)
+            {
+                delete(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+    
+}
@@ -0,0 +1,214 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.bukkit.Server;
+import org.bukkit.plugin.InvalidPluginException;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.plugin.java.JavaPluginLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the per plugin load cost of the project plugin loader before and after the {@link BukkitAccessor}.
+ * 
+ * <p>
+ * Each invocation creates the plugin class loader of a minimal plugin, which defines and instantiates the main class, reads the
+ * plugin from the class loader and registers the class loader within the java plugin loader. The reflective variant resolves the
+ * constructor and the fields on every load like the loader did before; the accessor variant uses the cached method handles. The
+ * class loader is unregistered and closed after each invocation. Run by
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=eu.xworlds.mceclipse.spigot.BukkitAccessorBenchmark}
+ * or from the ide.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BukkitAccessorBenchmark
+{
+    
+    /** the java plugin loader. */
+    private JavaPluginLoader javaLoader;
+    
+    /** the parent of the plugin class loaders; hides the main class of the benchmark plugin. */
+    private ClassLoader      parent;
+    
+    /** the class folder of the benchmark plugin. */
+    private File             classesDir;
+    
+    /** the data folder of the benchmark plugin. */
+    private File             dataFolder;
+    
+    /** the class loader created by the last invocation. */
+    private URLClassLoader   loader;
+    
+    /**
+     * Creates the java plugin loader and the class folder of the benchmark plugin.
+     * 
+     * @throws IOException
+     */
+    @Setup
+    public void setup() throws IOException
+    {
+        final Server server = (Server) Proxy.newProxyInstance(Server.class.getClassLoader(), new Class<?>[] { Server.class },
+                (proxy, method, args) -> "getLogger".equals(method.getName()) ? Logger.getLogger("bench") : null); //$NON-NLS-1$ //$NON-NLS-2$
+        this.javaLoader = new JavaPluginLoader(server);
+        this.classesDir = Files.createTempDirectory("mce-bench").toFile(); //$NON-NLS-1$
+        this.dataFolder = new File(this.classesDir, "data"); //$NON-NLS-1$
+        final String resource = BenchPlugin.class.getName().replace('.', '/') + ".class"; //$NON-NLS-1$
+        final File classFile = new File(this.classesDir, resource);
+        classFile.getParentFile().mkdirs();
+        try (final InputStream is = BenchPlugin.class.getClassLoader().getResourceAsStream(resource))
+        {
+            Files.copy(is, classFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        final ClassLoader appLoader = JavaPluginLoader.class.getClassLoader();
+        this.parent = new ClassLoader(appLoader) {
+            @Override
+            protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException
+            {
+                if (name.equals(BenchPlugin.class.getName()))
+                {
+                    // defined by the plugin class loader
+                    throw new ClassNotFoundException(name);
+                }
+                return super.loadClass(name, resolve);
+            }
+        };
+    }
+    
+    /**
+     * Returns the description of the benchmark plugin.
+     * 
+     * @return description
+     */
+    private static PluginDescriptionFile description()
+    {
+        return new PluginDescriptionFile("Bench", "1.0", BenchPlugin.class.getName()); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+    
+    /**
+     * Loads the plugin through core reflection.
+     * 
+     * @return the plugin
+     * @throws ReflectiveOperationException
+     */
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public Plugin reflection() throws ReflectiveOperationException
+    {
+        final Class<? extends URLClassLoader> clazz = Class.forName("org.bukkit.plugin.java.PluginClassLoader").asSubclass(URLClassLoader.class); //$NON-NLS-1$
+        final Constructor<? extends URLClassLoader> ctor = clazz.getDeclaredConstructor(JavaPluginLoader.class, ClassLoader.class, PluginDescriptionFile.class, File.class, File.class);
+        ctor.setAccessible(true);
+        this.loader = ctor.newInstance(this.javaLoader, this.parent, description(), this.dataFolder, this.classesDir);
+        final Field pluginField = clazz.getDeclaredField("plugin"); //$NON-NLS-1$
+        pluginField.setAccessible(true);
+        final Plugin plugin = (Plugin) pluginField.get(this.loader);
+        final Field loadersField = JavaPluginLoader.class.getDeclaredField("loaders"); //$NON-NLS-1$
+        loadersField.setAccessible(true);
+        ((List<URLClassLoader>) loadersField.get(this.javaLoader)).add(this.loader);
+        return plugin;
+    }
+    
+    /**
+     * Loads the plugin through the accessor.
+     * 
+     * @return the plugin
+     * @throws InvalidPluginException
+     */
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public Plugin accessor() throws InvalidPluginException
+    {
+        this.loader = BukkitAccessor.newPluginClassLoader(this.javaLoader, this.parent, description(), this.dataFolder, this.classesDir);
+        final Plugin plugin = BukkitAccessor.getPlugin(this.loader);
+        ((List<URLClassLoader>) BukkitAccessor.getLoaders(this.javaLoader)).add(this.loader);
+        return plugin;
+    }
+    
+    /**
+     * Unregisters and closes the class loader of the last invocation.
+     * 
+     * @throws IOException
+     */
+    @TearDown(Level.Invocation)
+    public void unload() throws IOException
+    {
+        if (this.loader != null)
+        {
+            ((List<?>) BukkitAccessor.getLoaders(this.javaLoader)).remove(this.loader);
+            final Map<String, Class<?>> classes = BukkitAccessor.getClasses(this.javaLoader);
+            classes.remove(BenchPlugin.class.getName());
+            this.loader.close();
+            this.loader = null;
+        }
+    }
+    
+    /**
+     * Runs the benchmark.
+     * 
+     * @param args
+     * @throws RunnerException
+     */
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(BukkitAccessorBenchmark.class.getSimpleName()).build()).run();
+    }
+    
+    /**
+     * The main class of the benchmark plugin; defined by each plugin class loader.
+     */
+    public static final class BenchPlugin extends JavaPlugin
+    {
+        // empty
+    }
+    
+}
@@ -0,0 +1,206 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.event.Event;
+import org.bukkit.event.EventException;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.plugin.EventExecutor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the reflective event executor of the java plugin loader with the executor generated by the
+ * {@link EventExecutorGenerator}.
+ * 
+ * <p>
+ * Run by {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=eu.xworlds.mceclipse.spigot.EventExecutorBenchmark}
+ * or from the ide.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventExecutorBenchmark
+{
+    
+    /** the listener. */
+    private BenchListener listener;
+    
+    /** the event. */
+    private BenchEvent    event;
+    
+    /** the executor of the java plugin loader. */
+    private EventExecutor reflective;
+    
+    /** the generated executor. */
+    private EventExecutor generated;
+    
+    /**
+     * Creates the executors.
+     * 
+     * @throws ReflectiveOperationException
+     */
+    @Setup
+    public void setup() throws ReflectiveOperationException
+    {
+        this.listener = new BenchListener();
+        this.event = new BenchEvent();
+        final Method method = BenchListener.class.getMethod("onEvent", BenchEvent.class); //$NON-NLS-1$
+        this.reflective = reflectiveExecutor(method, BenchEvent.class);
+        this.generated = EventExecutorGenerator.generate(method, BenchListener.class);
+    }
+    
+    /**
+     * Creates an executor like the java plugin loader does.
+     * 
+     * @param method
+     * @param eventClass
+     * @return executor
+     */
+    private static EventExecutor reflectiveExecutor(final Method method, final Class<? extends Event> eventClass)
+    {
+        method.setAccessible(true);
+        return (listener, event) -> {
+            try
+            {
+                if (!eventClass.isAssignableFrom(event.getClass()))
+                {
+                    return;
+                }
+                method.invoke(listener, event);
+            }
+            catch (InvocationTargetException ex)
+            {
+                throw new EventException(ex.getCause());
+            }
+            catch (Throwable t)
+            {
+                throw new EventException(t);
+            }
+        };
+    }
+    
+    /**
+     * Calls the listener through the reflective executor.
+     * 
+     * @return the listener counter
+     * @throws EventException
+     */
+    @Benchmark
+    public int reflective() throws EventException
+    {
+        this.reflective.execute(this.listener, this.event);
+        return this.listener.count;
+    }
+    
+    /**
+     * Calls the listener through the generated executor.
+     * 
+     * @return the listener counter
+     * @throws EventException
+     */
+    @Benchmark
+    public int generated() throws EventException
+    {
+        this.generated.execute(this.listener, this.event);
+        return this.listener.count;
+    }
+    
+    /**
+     * Runs the benchmark.
+     * 
+     * @param args
+     * @throws RunnerException
+     */
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(EventExecutorBenchmark.class.getSimpleName()).build()).run();
+    }
+    
+    /**
+     * The benchmark event.
+     */
+    public static final class BenchEvent extends Event
+    {
+        
+        /** the handlers. */
+        private static final HandlerList HANDLERS = new HandlerList();
+        
+        @Override
+        public HandlerList getHandlers()
+        {
+            return HANDLERS;
+        }
+        
+        /**
+         * Returns the handlers.
+         * 
+         * @return handlers
+         */
+        public static HandlerList getHandlerList()
+        {
+            return HANDLERS;
+        }
+        
+    }
+    
+    /**
+     * The benchmark listener.
+     */
+    public static final class BenchListener implements Listener
+    {
+        
+        /** the number of received events. */
+        int count;
+        
+        /**
+         * Receives an event.
+         * 
+         * @param event
+         */
+        @EventHandler
+        public void onEvent(BenchEvent event)
+        {
+            this.count++;
+        }
+        
+    }
+    
+}
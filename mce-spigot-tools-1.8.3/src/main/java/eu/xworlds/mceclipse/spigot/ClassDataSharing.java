@@ -0,0 +1,333 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The launcher mode for application class data sharing (AppCDS).
+ * 
+ * <p>
+ * Enabled by the system property {@code mceclipse.cds}. The server is started in a child jvm with the same classpath and jvm options.
+ * The first run is a training run recording the loaded classes; as soon as it terminates, a class data sharing archive is built from the
+ * recorded list. Following runs map the archive instead of loading, verifying and parsing the classes of spigot and the tools again.
+ * </p>
+ * 
+ * <p>
+ * Only jar files can be archived; directories of the classpath are moved behind the jar files. Archives are stored within
+ * {@code .mce-cache/cds} of the working directory. The archive name is a hash of the jvm and of the path, size and modification time of
+ * all jar files; thus an archive is rebuilt by a training run as soon as spigot or the tools jar change. Archives of outdated
+ * classpaths are deleted. Requires java 11 or newer; the launcher mode is skipped on older jvms and if a debug agent is attached since
+ * the child jvm cannot take over the debug connection.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public final class ClassDataSharing
+{
+    
+    /** the system property marking the child jvm. */
+    private static final String       CHILD_PROPERTY = "mceclipse.cds.child"; //$NON-NLS-1$
+    
+    /** the cache directory for archives and class lists. */
+    private static final String       CDS_CACHE      = ".mce-cache/cds"; //$NON-NLS-1$
+    
+    /** the jvm options controlling class data sharing; removed from the options passed to the child jvm. */
+    private static final List<String> CDS_OPTIONS    = Arrays.asList("-Xshare:", "-XX:SharedArchiveFile=", "-XX:SharedClassListFile=", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            "-XX:DumpLoadedClassList=", "-XX:ArchiveClassesAtExit=", "-XX:+UseAppCDS"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    
+    /** the logger. */
+    private static final Logger       LOGGER         = Logger.getLogger(ClassDataSharing.class.getName());
+    
+    /**
+     * Hidden constructor
+     */
+    private ClassDataSharing()
+    {
+        // empty
+    }
+    
+    /**
+     * Runs the server in a child jvm using a class data sharing archive if the launcher mode is enabled.
+     * 
+     * @param mainClass
+     *            the main class to be started in the child jvm
+     * @param args
+     *            the command line arguments
+     * @return {@code true} if the server was run by a child jvm; {@code false} to start the server within this jvm
+     */
+    public static boolean relaunch(Class<?> mainClass, String[] args)
+    {
+        if (!Boolean.getBoolean("mceclipse.cds") || Boolean.getBoolean(CHILD_PROPERTY)) //$NON-NLS-1$
+        {
+            return false;
+        }
+        if (featureVersion() < 11)
+        {
+            LOGGER.warning("Class data sharing for the dev server requires java 11 or newer"); //$NON-NLS-1$
+            return false;
+        }
+        final List<String> jvmOptions = new ArrayList<>();
+        for (final String option : ManagementFactory.getRuntimeMXBean().getInputArguments())
+        {
+            if (option.startsWith("-agentlib:jdwp") || option.startsWith("-Xrunjdwp")) //$NON-NLS-1$ //$NON-NLS-2$
+            {
+                LOGGER.warning("Class data sharing for the dev server is disabled while debugging"); //$NON-NLS-1$
+                return false;
+            }
+            if (CDS_OPTIONS.stream().noneMatch(option::startsWith))
+            {
+                jvmOptions.add(option);
+            }
+        }
+        
+        // only jar files can be archived; they must be a prefix of the runtime classpath
+        final List<String> jars = new ArrayList<>();
+        final List<String> others = new ArrayList<>();
+        for (final String entry : System.getProperty("java.class.path").split(File.pathSeparator)) //$NON-NLS-1$
+        {
+            (new File(entry).isFile() ? jars : others).add(entry);
+        }
+        if (jars.isEmpty())
+        {
+            return false;
+        }
+        
+        try
+        {
+            final String archiveClasspath = String.join(File.pathSeparator, jars);
+            final List<String> classpath = new ArrayList<>(jars);
+            classpath.addAll(others);
+            final File cacheDir = new File(CDS_CACHE);
+            final String key = key(jars);
+            final File archive = new File(cacheDir, key + ".jsa"); //$NON-NLS-1$
+            final File classList = new File(cacheDir, key + ".classlist"); //$NON-NLS-1$
+            cacheDir.mkdirs();
+            removeOutdated(cacheDir, key);
+            
+            final List<String> command = new ArrayList<>();
+            command.add(javaExecutable());
+            command.addAll(jvmOptions);
+            command.add("-D" + CHILD_PROPERTY + "=true"); //$NON-NLS-1$ //$NON-NLS-2$
+            final boolean training = !archive.isFile();
+            if (training)
+            {
+                LOGGER.info("Training run; recording loaded classes to build a class data sharing archive on exit"); //$NON-NLS-1$
+                command.add("-Xshare:off"); //$NON-NLS-1$
+                command.add("-XX:DumpLoadedClassList=" + classList.getAbsolutePath()); //$NON-NLS-1$
+            }
+            else
+            {
+                command.add("-Xshare:auto"); //$NON-NLS-1$
+                command.add("-XX:SharedArchiveFile=" + archive.getAbsolutePath()); //$NON-NLS-1$
+            }
+            command.add("-cp"); //$NON-NLS-1$
+            command.add(String.join(File.pathSeparator, classpath));
+            command.add(mainClass.getName());
+            command.addAll(Arrays.asList(args));
+            
+            final int exitCode = run(command);
+            if (training && classList.length() > 0)
+            {
+                dump(archiveClasspath, jvmOptions, classList, archive);
+            }
+            if (exitCode != 0)
+            {
+                System.exit(exitCode);
+            }
+            return true;
+        }
+        catch (IOException ex)
+        {
+            LOGGER.log(Level.WARNING, "Unable to start the dev server with class data sharing", ex); //$NON-NLS-1$
+            return false;
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+    }
+    
+    /**
+     * Builds the class data sharing archive from a recorded class list.
+     * 
+     * @param classpath
+     *            the jar files of the classpath
+     * @param jvmOptions
+     *            the jvm options of the server
+     * @param classList
+     *            the recorded class list
+     * @param archive
+     *            the archive to be created
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private static void dump(String classpath, List<String> jvmOptions, File classList, File archive) throws IOException, InterruptedException
+    {
+        LOGGER.info("Building class data sharing archive " + archive); //$NON-NLS-1$
+        final File tmpFile = new File(archive.getParentFile(), archive.getName() + ".tmp"); //$NON-NLS-1$
+        final List<String> command = new ArrayList<>();
+        command.add(javaExecutable());
+        for (final String option : jvmOptions)
+        {
+            // the archive depends on the heap and gc settings
+            if (option.startsWith("-Xm") || option.startsWith("-XX:+Use") || option.startsWith("-XX:-Use")) //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            {
+                command.add(option);
+            }
+        }
+        command.add("-Xshare:dump"); //$NON-NLS-1$
+        command.add("-XX:SharedClassListFile=" + classList.getAbsolutePath()); //$NON-NLS-1$
+        command.add("-XX:SharedArchiveFile=" + tmpFile.getAbsolutePath()); //$NON-NLS-1$
+        command.add("-cp"); //$NON-NLS-1$
+        command.add(classpath);
+        if (run(command) == 0 && tmpFile.isFile())
+        {
+            Files.move(tmpFile.toPath(), archive.toPath());
+            Files.deleteIfExists(classList.toPath());
+        }
+        else
+        {
+            LOGGER.warning("Unable to build class data sharing archive; the next run is a training run again"); //$NON-NLS-1$
+            Files.deleteIfExists(tmpFile.toPath());
+            Files.deleteIfExists(classList.toPath());
+        }
+    }
+    
+    /**
+     * Runs a child jvm sharing the console of this jvm; the child is destroyed if this jvm terminates.
+     * 
+     * @param command
+     * @return exit code
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private static int run(List<String> command) throws IOException, InterruptedException
+    {
+        final Process process = new ProcessBuilder(command).inheritIO().start();
+        final Thread hook = new Thread(process::destroy, "mce-cds-shutdown"); //$NON-NLS-1$
+        Runtime.getRuntime().addShutdownHook(hook);
+        try
+        {
+            return process.waitFor();
+        }
+        finally
+        {
+            try
+            {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            }
+            catch (@SuppressWarnings("unused") IllegalStateException ex)
+            {
+                // shutdown in progress
+            }
+        }
+    }
+    
+    /**
+     * Deletes archives and class lists of other classpaths.
+     * 
+     * @param cacheDir
+     * @param key
+     *            the key of the current classpath
+     * @throws IOException
+     */
+    private static void removeOutdated(File cacheDir, String key) throws IOException
+    {
+        final File[] files = cacheDir.listFiles();
+        if (files != null)
+        {
+            for (final File file : files)
+            {
+                if (!file.getName().startsWith(key + '.'))
+                {
+                    Files.deleteIfExists(file.toPath());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Calculates the archive key of given jar files.
+     * 
+     * @param jars
+     * @return key
+     */
+    private static String key(List<String> jars)
+    {
+        try
+        {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1"); //$NON-NLS-1$
+            digest.update((System.getProperty("java.home") + '|' + System.getProperty("java.vm.version")).getBytes(StandardCharsets.UTF_8)); //$NON-NLS-1$ //$NON-NLS-2$
+            for (final String entry : jars)
+            {
+                final File file = new File(entry).getAbsoluteFile();
+                digest.update(('|' + file.getPath() + '|' + file.length() + '|' + file.lastModified()).getBytes(StandardCharsets.UTF_8));
+            }
+            final StringBuilder result = new StringBuilder();
+            for (final byte b : digest.digest())
+            {
+                result.append(String.format("%02x", Byte.valueOf(b))); //$NON-NLS-1$
+            }
+            return result.toString();
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    /**
+     * Returns the java executable of this jvm.
+     * 
+     * @return java executable
+     */
+    private static String javaExecutable()
+    {
+        return new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath(); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+    
+    /**
+     * Returns the feature version of this jvm.
+     * 
+     * @return feature version; 8 for java 1.8
+     */
+    private static int featureVersion()
+    {
+        final String version = System.getProperty("java.specification.version"); //$NON-NLS-1$
+        try
+        {
+            return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version); //$NON-NLS-1$
+        }
+        catch (@SuppressWarnings("unused") NumberFormatException ex)
+        {
+            return 0;
+        }
+    }
+    
+}
@@ -0,0 +1,780 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.net.URLClassLoader;
+import java.util.AbstractCollection;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A bounded negative lookup cache for the cross plugin class resolution of the java plugin loader.
+ * 
+ * <p>
+ * If a class cannot be found within the global class map the java plugin loader asks each registered plugin class loader in turn.
+ * The cache wraps the {@code classes} map and the {@code loaders} collection of the java plugin loader: an unsuccessful lookup
+ * within the class map arms the cache for the current thread; the next iteration over the loaders either returns nothing for a
+ * known miss or records a miss after it was completed without a result. Any other access to the class map or a change of the
+ * loaders disarms the cache again; thus an unsuccessful lookup that is not followed by a loader walk never leaks into an
+ * unrelated iteration. The cache is invalidated as soon as a loader is added or removed; misses of walks started before the
+ * invalidation are dropped. The same hooks feed the {@link ClassLoadingMonitor}.
+ * </p>
+ * 
+ * <p>
+ * The hooks depend on the call order within {@code JavaPluginLoader.getClassByName}. The pattern is verified by
+ * {@link #probe(Function)} once the cache is installed; if it is not seen, or if an armed lookup is still pending on the next access
+ * of the class map, the cache falls back to pass-through and only the library classes are resolved.
+ * </p>
+ * 
+ * <p>
+ * The library classes of project plugins are defined by their {@link ProjectClassLoader} and never registered within the class map;
+ * the cache consults the project class loaders before the loaders are walked. The class map hook binds the plugin class loader to its
+ * project class loader as soon as the first plugin class is registered.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public class ClassLookupCache
+{
+    
+    /** the maximum number of cached misses. */
+    private final int                      maxSize;
+    
+    /** the known misses. */
+    private final Set<String>              misses     = ConcurrentHashMap.newKeySet();
+    
+    /** the lookup that was not answered by the class map; consumed by the next loader iteration. */
+    private final ThreadLocal<Lookup>      pending    = new ThreadLocal<>();
+    
+    /** the generation of the cached misses; incremented on each invalidation. */
+    private final AtomicLong               generation = new AtomicLong();
+    
+    /** lookups answered from the cache. */
+    private final LongAdder                hitCount   = new LongAdder();
+    
+    /** lookups walking all loaders without a result. */
+    private final LongAdder                missCount  = new LongAdder();
+    
+    /** the class loading monitor notified about lookups; {@code null} if disabled. */
+    private final ClassLoadingMonitor      monitor;
+    
+    /** the project class loaders providing library classes. */
+    private final List<ProjectClassLoader> libraries  = new CopyOnWriteArrayList<>();
+    
+    /** {@code true} if lookups are passed through since the expected call pattern was not seen. */
+    private volatile boolean               passThrough;
+    
+    /**
+     * Constructor
+     * 
+     * @param maxSize
+     *            the maximum number of cached misses
+     * @param monitor
+     *            the class loading monitor notified about lookups; {@code null} to disable notifications
+     */
+    public ClassLookupCache(int maxSize, ClassLoadingMonitor monitor)
+    {
+        this.maxSize = maxSize;
+        this.monitor = monitor;
+    }
+    
+    /**
+     * Returns the number of lookups answered from the cache.
+     * 
+     * @return hit count
+     */
+    public long getHits()
+    {
+        return this.hitCount.sum();
+    }
+    
+    /**
+     * Returns the number of lookups that walked all loaders without a result.
+     * 
+     * @return miss count
+     */
+    public long getMisses()
+    {
+        return this.missCount.sum();
+    }
+    
+    /**
+     * Checks if the cache passes all lookups through.
+     * 
+     * @return {@code true} if the expected call pattern of the java plugin loader was not seen
+     */
+    public boolean isPassThrough()
+    {
+        return this.passThrough;
+    }
+    
+    /**
+     * Verifies that an unsuccessful lookup within the class map is followed by a walk over the loaders. Falls back to pass-through
+     * otherwise.
+     * 
+     * @param lookup
+     *            the cross plugin lookup of the java plugin loader
+     * @return {@code true} if the expected call pattern was seen
+     */
+    public boolean probe(Function<String, Class<?>> lookup)
+    {
+        final String name = ClassLookupCache.class.getName() + "$Probe" + System.nanoTime(); //$NON-NLS-1$
+        try
+        {
+            if (lookup.apply(name) == null && this.pending.get() == null && this.misses.remove(name))
+            {
+                this.missCount.decrement();
+                return true;
+            }
+        }
+        finally
+        {
+            this.disarm();
+        }
+        this.fallback();
+        return false;
+    }
+    
+    /**
+     * Switches to pass-through.
+     */
+    private void fallback()
+    {
+        this.passThrough = true;
+        this.invalidate();
+    }
+    
+    /**
+     * Falls back to pass-through if an armed lookup of the current thread was not consumed by a loader walk.
+     */
+    void checkDisarmed()
+    {
+        if (this.pending.get() != null)
+        {
+            this.fallback();
+        }
+    }
+    
+    /**
+     * Returns the number of cached misses.
+     * 
+     * @return cache size
+     */
+    public int size()
+    {
+        return this.misses.size();
+    }
+    
+    /**
+     * Clears the cached misses.
+     */
+    public void invalidate()
+    {
+        this.disarm();
+        this.generation.incrementAndGet();
+        this.misses.clear();
+    }
+    
+    /**
+     * Adds a project class loader providing library classes to other plugins.
+     * 
+     * @param loader
+     */
+    public void addLibraries(ProjectClassLoader loader)
+    {
+        this.invalidate();
+        this.libraries.add(loader);
+    }
+    
+    /**
+     * Removes a project class loader providing library classes.
+     * 
+     * @param loader
+     */
+    public void removeLibraries(ProjectClassLoader loader)
+    {
+        this.invalidate();
+        this.libraries.remove(loader);
+    }
+    
+    /**
+     * Removes all project class loaders providing library classes.
+     */
+    public void clearLibraries()
+    {
+        this.invalidate();
+        this.libraries.clear();
+    }
+    
+    /**
+     * Finds a library class of a project plugin.
+     * 
+     * @param name
+     * @return library class or {@code null} if no project class loader provides the class
+     */
+    Class<?> findLibraryClass(String name)
+    {
+        for (final ProjectClassLoader loader : this.libraries)
+        {
+            final Class<?> result = loader.findLibraryClass(name);
+            if (result != null)
+            {
+                return result;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Wraps the global class map of the java plugin loader.
+     * 
+     * @param classes
+     * @return wrapped class map
+     */
+    public Map<String, Class<?>> wrapClasses(Map<String, Class<?>> classes)
+    {
+        return new ClassesMap(classes);
+    }
+    
+    /**
+     * Wraps the loader list of the java plugin loader. The returned list is backed by a {@link LoaderRegistry} initialized with the
+     * current loaders.
+     * 
+     * @param loaders
+     * @return wrapped loader list
+     */
+    public <T> List<T> wrapLoaders(List<T> loaders)
+    {
+        return new LoaderList<>(loaders);
+    }
+    
+    /**
+     * Wraps the loader map of the java plugin loader. The returned map is backed by a {@link LoaderRegistry} initialized with the
+     * current loaders.
+     * 
+     * @param loaders
+     * @return wrapped loader map
+     */
+    public <T> Map<String, T> wrapLoaders(Map<String, T> loaders)
+    {
+        return new LoaderMap<>(loaders);
+    }
+    
+    /**
+     * Returns the iterator for a loader walk.
+     * 
+     * @param delegate
+     * @return iterator
+     */
+    <T> Iterator<T> iterator(Iterator<T> delegate)
+    {
+        final Lookup lookup = this.pending.get();
+        if (lookup == null)
+        {
+            return delegate;
+        }
+        // consumed by this walk, whatever its outcome
+        this.pending.remove();
+        final String name = lookup.name;
+        if (this.passThrough)
+        {
+            return delegate;
+        }
+        if (this.misses.contains(name))
+        {
+            this.hitCount.increment();
+            if (this.monitor != null)
+            {
+                this.monitor.lookupFinished(name);
+            }
+            return Collections.emptyIterator();
+        }
+        return new Iterator<T>() {
+            
+            @Override
+            public boolean hasNext()
+            {
+                final boolean result = delegate.hasNext();
+                if (!result)
+                {
+                    ClassLookupCache.this.recordMiss(name, lookup.generation);
+                }
+                return result;
+            }
+            
+            @Override
+            public T next()
+            {
+                final T result = delegate.next();
+                if (ClassLookupCache.this.monitor != null)
+                {
+                    ClassLookupCache.this.monitor.lookupVisits(name, result);
+                }
+                return result;
+            }
+            
+            @Override
+            public void remove()
+            {
+                delegate.remove();
+            }
+        };
+    }
+    
+    /**
+     * Disarms the cache for the current thread.
+     */
+    void disarm()
+    {
+        this.pending.remove();
+    }
+    
+    /**
+     * Records a miss.
+     * 
+     * @param name
+     * @param gen
+     *            the generation read before the loaders were walked
+     */
+    void recordMiss(String name, long gen)
+    {
+        this.missCount.increment();
+        if (this.monitor != null)
+        {
+            this.monitor.lookupFinished(name);
+        }
+        if (this.misses.size() >= this.maxSize)
+        {
+            this.misses.clear();
+        }
+        this.misses.add(name);
+        if (this.generation.get() != gen)
+        {
+            // invalidated during the walk; a new loader may provide the class
+            this.misses.remove(name);
+        }
+    }
+    
+    /**
+     * An unsuccessful lookup within the class map.
+     */
+    private static final class Lookup
+    {
+        
+        /** binary class name. */
+        final String name;
+        
+        /** the generation of the cached misses before the lookup was started. */
+        final long   generation;
+        
+        /**
+         * Constructor
+         * 
+         * @param name
+         * @param generation
+         */
+        Lookup(String name, long generation)
+        {
+            this.name = name;
+            this.generation = generation;
+        }
+        
+    }
+    
+    /**
+     * Wrapper of the global class map.
+     */
+    private final class ClassesMap extends AbstractMap<String, Class<?>>
+    {
+        
+        /** the original map. */
+        private final Map<String, Class<?>> delegate;
+        
+        /**
+         * Constructor
+         * 
+         * @param delegate
+         */
+        ClassesMap(Map<String, Class<?>> delegate)
+        {
+            this.delegate = delegate;
+        }
+        
+        @Override
+        public Class<?> get(Object key)
+        {
+            ClassLookupCache.this.checkDisarmed();
+            final long gen = ClassLookupCache.this.generation.get();
+            Class<?> result = this.delegate.get(key);
+            if (result == null && key instanceof String)
+            {
+                if (!ClassLookupCache.this.misses.contains(key))
+                {
+                    result = ClassLookupCache.this.findLibraryClass((String) key);
+                    if (result != null)
+                    {
+                        return result;
+                    }
+                }
+                if (ClassLookupCache.this.passThrough)
+                {
+                    return null;
+                }
+                // JavaPluginLoader.getClassByName invokes classes.get(name) and walks the loaders immediately after a miss; there is
+                // no other access in between. The lookup is armed for this walk only: the walk consumes it (see iterator), any other
+                // access of the class map finds it still pending and disables the cache.
+                ClassLookupCache.this.pending.set(new Lookup((String) key, gen));
+                if (ClassLookupCache.this.monitor != null)
+                {
+                    ClassLookupCache.this.monitor.lookupStarted((String) key);
+                }
+            }
+            return result;
+        }
+        
+        @Override
+        public Class<?> put(String key, Class<?> value)
+        {
+            ClassLookupCache.this.checkDisarmed();
+            final Class<?> result = this.delegate.put(key, value);
+            final ClassLoader loader = value == null ? null : value.getClassLoader();
+            if (loader instanceof URLClassLoader && loader.getParent() instanceof ProjectClassLoader)
+            {
+                ((ProjectClassLoader) loader.getParent()).bind((URLClassLoader) loader);
+            }
+            if (ClassLookupCache.this.monitor != null)
+            {
+                ClassLookupCache.this.monitor.classRegistered(key, value);
+            }
+            return result;
+        }
+        
+        @Override
+        public Class<?> remove(Object key)
+        {
+            ClassLookupCache.this.checkDisarmed();
+            return this.delegate.remove(key);
+        }
+        
+        @Override
+        public boolean containsKey(Object key)
+        {
+            ClassLookupCache.this.checkDisarmed();
+            return this.delegate.containsKey(key);
+        }
+        
+        @Override
+        public int size()
+        {
+            return this.delegate.size();
+        }
+        
+        @Override
+        public void clear()
+        {
+            this.delegate.clear();
+        }
+        
+        @Override
+        public Set<Entry<String, Class<?>>> entrySet()
+        {
+            return this.delegate.entrySet();
+        }
+        
+        @Override
+        public Set<String> keySet()
+        {
+            return this.delegate.keySet();
+        }
+        
+        @Override
+        public Collection<Class<?>> values()
+        {
+            return this.delegate.values();
+        }
+        
+    }
+    
+    /**
+     * Wrapper of the loader list.
+     * 
+     * @param <T>
+     *            loader type
+     */
+    private final class LoaderList<T> extends AbstractList<T>
+    {
+        
+        /** the loader registry. */
+        private final LoaderRegistry<T> registry = new LoaderRegistry<>();
+        
+        /** the loaders for index access; {@code null} after a change. */
+        private volatile Object[]       indexed;
+        
+        /**
+         * Constructor
+         * 
+         * @param loaders
+         *            the original loaders
+         */
+        LoaderList(List<T> loaders)
+        {
+            for (final T loader : loaders)
+            {
+                this.registry.add(loader);
+            }
+        }
+        
+        @Override
+        public Iterator<T> iterator()
+        {
+            return ClassLookupCache.this.iterator(this.registry.iterator());
+        }
+        
+        @Override
+        public T get(int index)
+        {
+            Object[] loaders = this.indexed;
+            if (loaders == null)
+            {
+                loaders = this.index();
+            }
+            if (index < 0 || index >= loaders.length)
+            {
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+            }
+            @SuppressWarnings("unchecked")
+            final T result = (T) loaders[index];
+            return result;
+        }
+        
+        /**
+         * Copies the registered loaders for index access.
+         * 
+         * @return loaders in registration order
+         */
+        private synchronized Object[] index()
+        {
+            Object[] loaders = this.indexed;
+            if (loaders == null)
+            {
+                final List<T> list = new ArrayList<>();
+                for (final T loader : this.registry)
+                {
+                    list.add(loader);
+                }
+                loaders = list.toArray();
+                this.indexed = loaders;
+            }
+            return loaders;
+        }
+        
+        @Override
+        public int size()
+        {
+            return this.registry.size();
+        }
+        
+        @Override
+        public boolean contains(Object o)
+        {
+            return this.registry.contains(o);
+        }
+        
+        @Override
+        public synchronized boolean add(T e)
+        {
+            ClassLookupCache.this.invalidate();
+            this.registry.add(e);
+            this.indexed = null;
+            return true;
+        }
+        
+        @Override
+        public synchronized boolean remove(Object o)
+        {
+            ClassLookupCache.this.invalidate();
+            final boolean result = this.registry.removeLoader(o);
+            this.indexed = null;
+            return result;
+        }
+        
+        @Override
+        public synchronized void clear()
+        {
+            ClassLookupCache.this.invalidate();
+            this.registry.clear();
+            this.indexed = null;
+        }
+        
+    }
+    
+    /**
+     * Wrapper of the loader map.
+     * 
+     * @param <T>
+     *            loader type
+     */
+    private final class LoaderMap<T> extends AbstractMap<String, T>
+    {
+        
+        /** the loader registry. */
+        final LoaderRegistry<T> registry = new LoaderRegistry<>();
+        
+        /**
+         * Constructor
+         * 
+         * @param loaders
+         *            the original loaders
+         */
+        LoaderMap(Map<String, T> loaders)
+        {
+            for (final Map.Entry<String, T> entry : loaders.entrySet())
+            {
+                this.registry.put(entry.getKey(), entry.getValue());
+            }
+        }
+        
+        @Override
+        public T get(Object key)
+        {
+            return key instanceof String ? this.registry.get((String) key) : null;
+        }
+        
+        @Override
+        public boolean containsKey(Object key)
+        {
+            return key instanceof String && this.registry.containsName((String) key);
+        }
+        
+        @Override
+        public T put(String key, T value)
+        {
+            ClassLookupCache.this.invalidate();
+            return this.registry.put(key, value);
+        }
+        
+        @Override
+        public T remove(Object key)
+        {
+            ClassLookupCache.this.invalidate();
+            return key instanceof String ? this.registry.remove((String) key) : null;
+        }
+        
+        @Override
+        public boolean remove(Object key, Object value)
+        {
+            ClassLookupCache.this.invalidate();
+            return key instanceof String && this.registry.remove((String) key, value);
+        }
+        
+        @Override
+        public void clear()
+        {
+            ClassLookupCache.this.invalidate();
+            this.registry.clear();
+        }
+        
+        @Override
+        public int size()
+        {
+            return this.registry.size();
+        }
+        
+        @Override
+        public Set<Entry<String, T>> entrySet()
+        {
+            return new AbstractSet<Entry<String, T>>() {
+                
+                @Override
+                public Iterator<Entry<String, T>> iterator()
+                {
+                    return LoaderMap.this.registry.entries();
+                }
+                
+                @Override
+                public int size()
+                {
+                    return LoaderMap.this.registry.size();
+                }
+            };
+        }
+        
+        @Override
+        public Set<String> keySet()
+        {
+            return new AbstractSet<String>() {
+                
+                @Override
+                public Iterator<String> iterator()
+                {
+                    return ClassLookupCache.this.iterator(LoaderMap.this.registry.names());
+                }
+                
+                @Override
+                public int size()
+                {
+                    return LoaderMap.this.registry.size();
+                }
+                
+                @Override
+                public boolean contains(Object o)
+                {
+                    return LoaderMap.this.containsKey(o);
+                }
+                
+                @Override
+                public boolean remove(Object o)
+                {
+                    return LoaderMap.this.remove(o) != null;
+                }
+            };
+        }
+        
+        @Override
+        public Collection<T> values()
+        {
+            return new AbstractCollection<T>() {
+                
+                @Override
+                public Iterator<T> iterator()
+                {
+                    return ClassLookupCache.this.iterator(LoaderMap.this.registry.iterator());
+                }
+                
+                @Override
+                public int size()
+                {
+                    return LoaderMap.this.registry.size();
+                }
+            };
+        }
+        
+    }
+    
+}
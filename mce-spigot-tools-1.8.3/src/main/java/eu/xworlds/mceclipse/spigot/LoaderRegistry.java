@@ -0,0 +1,374 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * A lock-free registry of plugin class loaders.
+ * 
+ * <p>
+ * The registry replaces the loader list (or loader map) of the java plugin loader. Loaders are kept in registration order; adding a
+ * loader and replacing the loader of a plugin name are O(1) and never expose an intermediate state to concurrent lookups. Iterators
+ * are weakly consistent and never throw a {@link java.util.ConcurrentModificationException}.
+ * </p>
+ * 
+ * @param <T>
+ *            loader type
+ * 
+ * @author mepeisen
+ */
+public final class LoaderRegistry<T> implements Iterable<T>
+{
+    
+    /** the registrations in registration order. */
+    private final ConcurrentLinkedDeque<Registration<T>> order  = new ConcurrentLinkedDeque<>();
+    
+    /** the named registrations; key is the plugin name. */
+    private final ConcurrentMap<String, Registration<T>> byName = new ConcurrentHashMap<>();
+    
+    /** the number of registrations. */
+    private final AtomicInteger                          count  = new AtomicInteger();
+    
+    /**
+     * Adds an unnamed loader.
+     * 
+     * @param loader
+     */
+    public void add(T loader)
+    {
+        this.order.add(new Registration<>(null, loader));
+        this.count.incrementAndGet();
+    }
+    
+    /**
+     * Registers a loader for given plugin name. An existing loader of the same name is replaced in-place; it keeps its position.
+     * 
+     * @param name
+     * @param loader
+     * @return the replaced loader or {@code null}
+     */
+    public T put(String name, T loader)
+    {
+        final Object[] old = new Object[1];
+        this.byName.compute(name, (k, reg) -> {
+            if (reg != null)
+            {
+                synchronized (reg)
+                {
+                    old[0] = reg.loader;
+                    reg.loader = loader;
+                }
+                return reg;
+            }
+            final Registration<T> result = new Registration<>(name, loader);
+            this.order.add(result);
+            this.count.incrementAndGet();
+            return result;
+        });
+        @SuppressWarnings("unchecked")
+        final T result = (T) old[0];
+        return result;
+    }
+    
+    /**
+     * Replaces the loader of given plugin name if it is still registered with the expected loader.
+     * 
+     * @param name
+     * @param expected
+     * @param loader
+     * @return {@code true} if the loader was replaced
+     */
+    public boolean replace(String name, T expected, T loader)
+    {
+        final Registration<T> reg = this.byName.get(name);
+        if (reg == null)
+        {
+            return false;
+        }
+        synchronized (reg)
+        {
+            if (reg.loader != expected)
+            {
+                return false;
+            }
+            reg.loader = loader;
+            return true;
+        }
+    }
+    
+    /**
+     * Returns the loader of given plugin name.
+     * 
+     * @param name
+     * @return loader or {@code null}
+     */
+    public T get(String name)
+    {
+        final Registration<T> reg = this.byName.get(name);
+        return reg == null ? null : reg.loader;
+    }
+    
+    /**
+     * Checks if a loader is registered for given plugin name.
+     * 
+     * @param name
+     * @return {@code true} if the name is registered
+     */
+    public boolean containsName(String name)
+    {
+        return this.byName.containsKey(name);
+    }
+    
+    /**
+     * Checks if given loader is registered.
+     * 
+     * @param loader
+     * @return {@code true} if the loader is registered
+     */
+    public boolean contains(Object loader)
+    {
+        return this.find(loader) != null;
+    }
+    
+    /**
+     * Removes the loader of given plugin name.
+     * 
+     * @param name
+     * @return the removed loader or {@code null}
+     */
+    public T remove(String name)
+    {
+        final Registration<T> reg = this.byName.remove(name);
+        if (reg == null)
+        {
+            return null;
+        }
+        this.unlink(reg);
+        return reg.loader;
+    }
+    
+    /**
+     * Removes the loader of given plugin name if it is registered with given loader.
+     * 
+     * @param name
+     * @param loader
+     * @return {@code true} if the loader was removed
+     */
+    public boolean remove(String name, Object loader)
+    {
+        final Registration<T> reg = this.byName.get(name);
+        if (reg == null || reg.loader != loader || !this.byName.remove(name, reg))
+        {
+            return false;
+        }
+        this.unlink(reg);
+        return true;
+    }
+    
+    /**
+     * Removes given loader.
+     * 
+     * @param loader
+     * @return {@code true} if the loader was removed
+     */
+    public boolean removeLoader(Object loader)
+    {
+        final Registration<T> reg = this.find(loader);
+        if (reg == null)
+        {
+            return false;
+        }
+        if (reg.name != null)
+        {
+            this.byName.remove(reg.name, reg);
+        }
+        return this.unlink(reg);
+    }
+    
+    /**
+     * Removes all loaders.
+     */
+    public void clear()
+    {
+        for (final Registration<T> reg : this.order)
+        {
+            if (reg.name != null)
+            {
+                this.byName.remove(reg.name, reg);
+            }
+            this.unlink(reg);
+        }
+    }
+    
+    /**
+     * Returns the number of registered loaders.
+     * 
+     * @return size
+     */
+    public int size()
+    {
+        return this.count.get();
+    }
+    
+    @Override
+    public Iterator<T> iterator()
+    {
+        return new RegistrationIterator<>(reg -> reg.loader);
+    }
+    
+    /**
+     * Returns the plugin names in registration order.
+     * 
+     * @return names iterator; unnamed loaders are reported as {@code null}
+     */
+    public Iterator<String> names()
+    {
+        return new RegistrationIterator<>(reg -> reg.name);
+    }
+    
+    /**
+     * Returns the plugin names and loaders in registration order.
+     * 
+     * @return entries iterator
+     */
+    public Iterator<Map.Entry<String, T>> entries()
+    {
+        return new RegistrationIterator<>(reg -> new AbstractMap.SimpleImmutableEntry<>(reg.name, reg.loader));
+    }
+    
+    /**
+     * Finds the registration of given loader.
+     * 
+     * @param loader
+     * @return registration or {@code null}
+     */
+    private Registration<T> find(Object loader)
+    {
+        for (final Registration<T> reg : this.order)
+        {
+            if (reg.loader == loader)
+            {
+                return reg;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Removes a registration from the order.
+     * 
+     * @param reg
+     * @return {@code true} if the registration was removed
+     */
+    private boolean unlink(Registration<T> reg)
+    {
+        if (this.order.removeFirstOccurrence(reg))
+        {
+            this.count.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * A single registration.
+     * 
+     * @param <T>
+     *            loader type
+     */
+    private static final class Registration<T>
+    {
+        /** the plugin name; {@code null} for unnamed loaders. */
+        final String name;
+        /** the loader. */
+        volatile T   loader;
+        
+        /**
+         * Constructor
+         * 
+         * @param name
+         * @param loader
+         */
+        Registration(String name, T loader)
+        {
+            this.name = name;
+            this.loader = loader;
+        }
+    }
+    
+    /**
+     * Weakly consistent iterator over the registrations.
+     * 
+     * @param <E>
+     *            element type
+     */
+    private final class RegistrationIterator<E> implements Iterator<E>
+    {
+        /** the registration iterator. */
+        private final Iterator<Registration<T>>    delegate = LoaderRegistry.this.order.iterator();
+        /** the element mapping. */
+        private final Function<Registration<T>, E> mapping;
+        /** the current registration. */
+        private Registration<T>                    current;
+        
+        /**
+         * Constructor
+         * 
+         * @param mapping
+         */
+        RegistrationIterator(Function<Registration<T>, E> mapping)
+        {
+            this.mapping = mapping;
+        }
+        
+        @Override
+        public boolean hasNext()
+        {
+            return this.delegate.hasNext();
+        }
+        
+        @Override
+        public E next()
+        {
+            this.current = this.delegate.next();
+            return this.mapping.apply(this.current);
+        }
+        
+        @Override
+        public void remove()
+        {
+            if (this.current == null)
+            {
+                throw new IllegalStateException();
+            }
+            if (this.current.name != null)
+            {
+                LoaderRegistry.this.byName.remove(this.current.name, this.current);
+            }
+            LoaderRegistry.this.unlink(this.current);
+            this.current = null;
+        }
+    }
+    
+}
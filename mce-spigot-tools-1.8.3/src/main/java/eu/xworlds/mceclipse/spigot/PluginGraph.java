@@ -0,0 +1,281 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.bukkit.plugin.PluginDescriptionFile;
+
+/**
+ * The dependency graph of the plugins within the plugins folder.
+ * 
+ * <p>
+ * The graph covers project plugins and jar plugins. An edge from plugin a to plugin b means that b has to be loaded before a; edges
+ * are created for {@code depend} and {@code softdepend} entries of a and for {@code loadbefore} entries of b. Soft dependencies and
+ * load before entries naming unknown plugins are ignored. Only cycles of {@code depend} entries prevent the server from loading the
+ * plugins; cycles involving soft dependencies or load before entries are broken by the server.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public final class PluginGraph
+{
+    
+    /** the plugins mapped to the plugins that have to be loaded before. */
+    private final Map<String, Set<String>>  dependencies = new LinkedHashMap<>();
+    
+    /** the plugins mapped to their known hard dependencies. */
+    private final Map<String, Set<String>>  hard         = new LinkedHashMap<>();
+    
+    /** the plugins mapped to their unknown hard dependencies. */
+    private final Map<String, List<String>> missing      = new LinkedHashMap<>();
+    
+    /**
+     * Constructor
+     * 
+     * @param descriptions
+     *            the plugin descriptions; key is the plugin name
+     */
+    public PluginGraph(Map<String, PluginDescriptionFile> descriptions)
+    {
+        final Map<String, PluginDescriptionFile> sorted = new TreeMap<>(descriptions);
+        for (final String name : sorted.keySet())
+        {
+            this.dependencies.put(name, new LinkedHashSet<String>());
+            this.hard.put(name, new LinkedHashSet<String>());
+        }
+        for (final Map.Entry<String, PluginDescriptionFile> entry : sorted.entrySet())
+        {
+            final String name = entry.getKey();
+            final Set<String> deps = this.dependencies.get(name);
+            for (final String dep : entry.getValue().getDepend())
+            {
+                if (this.dependencies.containsKey(dep))
+                {
+                    deps.add(dep);
+                    this.hard.get(name).add(dep);
+                }
+                else
+                {
+                    this.missing.computeIfAbsent(name, k -> new ArrayList<>()).add(dep);
+                }
+            }
+            for (final String dep : entry.getValue().getSoftDepend())
+            {
+                if (this.dependencies.containsKey(dep))
+                {
+                    deps.add(dep);
+                }
+            }
+            for (final String before : entry.getValue().getLoadBefore())
+            {
+                final Set<String> beforeDeps = this.dependencies.get(before);
+                if (beforeDeps != null)
+                {
+                    beforeDeps.add(name);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns the plugins that have to be loaded before given plugin.
+     * 
+     * @param name
+     * @return dependencies; empty set for unknown plugins
+     */
+    public Set<String> getDependencies(String name)
+    {
+        final Set<String> result = this.dependencies.get(name);
+        return result == null ? Collections.<String> emptySet() : Collections.unmodifiableSet(result);
+    }
+    
+    /**
+     * Returns the unknown hard dependencies.
+     * 
+     * @return plugins mapped to their unknown dependencies
+     */
+    public Map<String, List<String>> getMissingDependencies()
+    {
+        return Collections.unmodifiableMap(this.missing);
+    }
+    
+    /**
+     * Returns the dependency cycles including soft dependencies and load before entries.
+     * 
+     * @return the cycles; each cycle lists the plugins in dependency order
+     */
+    public List<List<String>> getCycles()
+    {
+        return this.getCycles(this.dependencies);
+    }
+    
+    /**
+     * Returns the cycles of hard dependencies.
+     * 
+     * @return the cycles; each cycle lists the plugins in dependency order
+     */
+    public List<List<String>> getHardCycles()
+    {
+        return this.getCycles(this.hard);
+    }
+    
+    /**
+     * Returns the cycles of given edges.
+     * 
+     * @param edges
+     *            the plugins mapped to the plugins that have to be loaded before
+     * @return the cycles
+     */
+    private List<List<String>> getCycles(Map<String, Set<String>> edges)
+    {
+        final Tarjan tarjan = new Tarjan(edges);
+        for (final String name : edges.keySet())
+        {
+            if (!tarjan.index.containsKey(name))
+            {
+                tarjan.visit(name);
+            }
+        }
+        return tarjan.cycles;
+    }
+    
+    /**
+     * Returns the plugins in topological order. Plugins within a cycle and plugins depending on them are not returned.
+     * 
+     * @return the plugins; each plugin is listed after its dependencies
+     */
+    public List<String> sort()
+    {
+        final Map<String, Integer> pending = new HashMap<>();
+        final Map<String, List<String>> dependents = new HashMap<>();
+        final Deque<String> ready = new ArrayDeque<>();
+        for (final Map.Entry<String, Set<String>> entry : this.dependencies.entrySet())
+        {
+            pending.put(entry.getKey(), Integer.valueOf(entry.getValue().size()));
+            if (entry.getValue().isEmpty())
+            {
+                ready.add(entry.getKey());
+            }
+            for (final String dep : entry.getValue())
+            {
+                dependents.computeIfAbsent(dep, k -> new ArrayList<>()).add(entry.getKey());
+            }
+        }
+        
+        final List<String> result = new ArrayList<>(this.dependencies.size());
+        while (!ready.isEmpty())
+        {
+            final String name = ready.poll();
+            result.add(name);
+            for (final String dependent : dependents.getOrDefault(name, Collections.<String> emptyList()))
+            {
+                final int count = pending.get(dependent).intValue() - 1;
+                pending.put(dependent, Integer.valueOf(count));
+                if (count == 0)
+                {
+                    ready.add(dependent);
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Tarjan's algorithm for strongly connected components.
+     */
+    private final class Tarjan
+    {
+        /** the edges. */
+        final Map<String, Set<String>> edges;
+        /** the visit index of the nodes. */
+        final Map<String, Integer>     index   = new HashMap<>();
+        /** the lowest reachable index of the nodes. */
+        final Map<String, Integer>     lowlink = new HashMap<>();
+        /** the node stack. */
+        final Deque<String>            stack   = new ArrayDeque<>();
+        /** the nodes on the stack. */
+        final Set<String>              onStack = new LinkedHashSet<>();
+        /** the found cycles. */
+        final List<List<String>>       cycles  = new ArrayList<>();
+        
+        /**
+         * Constructor
+         * 
+         * @param edges
+         */
+        Tarjan(Map<String, Set<String>> edges)
+        {
+            this.edges = edges;
+        }
+        
+        /**
+         * Visits a node.
+         * 
+         * @param name
+         */
+        void visit(String name)
+        {
+            final Integer current = Integer.valueOf(this.index.size());
+            this.index.put(name, current);
+            this.lowlink.put(name, current);
+            this.stack.push(name);
+            this.onStack.add(name);
+            
+            for (final String dep : this.edges.get(name))
+            {
+                if (!this.index.containsKey(dep))
+                {
+                    this.visit(dep);
+                    this.lowlink.put(name, Integer.valueOf(Math.min(this.lowlink.get(name).intValue(), this.lowlink.get(dep).intValue())));
+                }
+                else if (this.onStack.contains(dep))
+                {
+                    this.lowlink.put(name, Integer.valueOf(Math.min(this.lowlink.get(name).intValue(), this.index.get(dep).intValue())));
+                }
+            }
+            
+            if (this.lowlink.get(name).equals(current))
+            {
+                final List<String> component = new ArrayList<>();
+                String member;
+                do
+                {
+                    member = this.stack.pop();
+                    this.onStack.remove(member);
+                    component.add(member);
+                }
+                while (!member.equals(name));
+                if (component.size() > 1 || this.edges.get(name).contains(name))
+                {
+                    Collections.reverse(component);
+                    this.cycles.add(component);
+                }
+            }
+        }
+    }
+    
+}
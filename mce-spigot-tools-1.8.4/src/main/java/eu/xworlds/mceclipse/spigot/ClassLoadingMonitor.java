@@ -0,0 +1,475 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Collects the class loading statistics of project plugins and publishes them as MBeans.
+ * 
+ * <p>
+ * Classes of the classpath entries are defined by the {@link ProjectClassLoader}; they are measured exactly. Classes of the class
+ * output folder are defined by the plugin class loader of bukkit. Its work is observed through the hooks of the
+ * {@link ClassLookupCache}: the search starts when the project class loader (the parent) could not find a class, the lookup through
+ * other plugins is the walk over the loaders of the java plugin loader without the time spent in the plugin's own loader and the
+ * search ends as soon as the class is registered within the global class map. Reading and defining these classes cannot be told
+ * apart; both are recorded as define time.
+ * </p>
+ * 
+ * <p>
+ * Nested loads are tracked on a stack per thread; the define time of a class excludes the time spent loading the classes triggered
+ * by its definition. Searches that end without a class leave a stale entry that is dropped as soon as an outer search ends; thus the
+ * times are a close approximation rather than exact values.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public final class ClassLoadingMonitor
+{
+    
+    /** the maximum depth of the per thread stack; deeper stacks are considered stale and cleared. */
+    private static final int                     MAX_DEPTH = 64;
+    
+    /** the statistics; key is the plugin name. */
+    private final Map<String, ClassLoadingStats> stats     = new ConcurrentHashMap<>();
+    
+    /** the per thread state. */
+    private final ThreadLocal<State>             state     = ThreadLocal.withInitial(State::new);
+    
+    /** the logger. */
+    private final Logger                         logger;
+    
+    /**
+     * Constructor
+     * 
+     * @param logger
+     */
+    public ClassLoadingMonitor(Logger logger)
+    {
+        this.logger = logger;
+    }
+    
+    /**
+     * Creates the statistics for a new class loader of given plugin; replaces the statistics of a previous class loader.
+     * 
+     * @param pluginName
+     * @param classesDir
+     *            the class output folder
+     * @return statistics
+     */
+    public ClassLoadingStats register(String pluginName, File classesDir)
+    {
+        final ClassLoadingStats result = new ClassLoadingStats(pluginName, classesDir, this);
+        final ClassLoadingStats old = this.stats.put(pluginName, result);
+        try
+        {
+            final ObjectName name = objectName(pluginName);
+            if (old != null && ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+            {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+            ManagementFactory.getPlatformMBeanServer().registerMBean(result, name);
+        }
+        catch (JMException ex)
+        {
+            this.logger.log(Level.WARNING, "Unable to register class loading statistics of " + pluginName, ex); //$NON-NLS-1$
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the statistics of all project plugins.
+     * 
+     * @return statistics
+     */
+    public Collection<ClassLoadingStats> getStats()
+    {
+        return new ArrayList<>(this.stats.values());
+    }
+    
+    /**
+     * Unregisters all MBeans.
+     */
+    public void close()
+    {
+        for (final String pluginName : this.stats.keySet())
+        {
+            try
+            {
+                final ObjectName name = objectName(pluginName);
+                if (ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+                {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+                }
+            }
+            catch (JMException ex)
+            {
+                this.logger.log(Level.FINE, "Unable to unregister class loading statistics of " + pluginName, ex); //$NON-NLS-1$
+            }
+        }
+        this.stats.clear();
+    }
+    
+    /**
+     * Returns the MBean name of given plugin.
+     * 
+     * @param pluginName
+     * @return object name
+     * @throws JMException
+     */
+    private static ObjectName objectName(String pluginName) throws JMException
+    {
+        return new ObjectName("eu.xworlds.mceclipse:type=ClassLoading,plugin=" + ObjectName.quote(pluginName)); //$NON-NLS-1$
+    }
+    
+    /**
+     * Starts the definition of a class by a project class loader.
+     * 
+     * @param owner
+     *            the statistics of the project class loader
+     * @param name
+     *            binary class name
+     * @return frame to be passed to {@link #exit(Frame, Class, long, long)}
+     */
+    Frame enter(ClassLoadingStats owner, String name)
+    {
+        return this.state.get().push(new Frame(owner, name, System.nanoTime(), false));
+    }
+    
+    /**
+     * Ends the definition of a class by a project class loader.
+     * 
+     * @param frame
+     * @param result
+     *            the defined class; {@code null} if the definition failed
+     * @param size
+     *            class file size
+     * @param find
+     *            time spent reading the class file
+     */
+    void exit(Frame frame, Class<?> result, long size, long find)
+    {
+        final State current = this.state.get();
+        if (!current.remove(frame))
+        {
+            return;
+        }
+        final long total = System.nanoTime() - frame.start;
+        current.addChild(total + find);
+        if (result != null)
+        {
+            frame.owner.defined(size, find, Math.max(0, total - frame.child));
+        }
+    }
+    
+    /**
+     * Notifies that a project class loader could not find a class; its plugin class loader will search the class on its own.
+     * 
+     * @param owner
+     *            the statistics of the project class loader
+     * @param name
+     *            binary class name
+     */
+    void parentMissed(ClassLoadingStats owner, String name)
+    {
+        final State current = this.state.get();
+        current.hintName = name;
+        current.hintOwner = owner;
+        current.hintStart = System.nanoTime();
+    }
+    
+    /**
+     * Notifies that the java plugin loader starts the lookup of a class through the loaders of all plugins.
+     * 
+     * @param name
+     *            binary class name
+     */
+    void lookupStarted(String name)
+    {
+        final State current = this.state.get();
+        if (name.equals(current.hintName))
+        {
+            final Frame frame = current.push(new Frame(current.hintOwner, name, current.hintStart, true));
+            frame.walkStart = System.nanoTime();
+            current.hintName = null;
+            current.hintOwner = null;
+        }
+    }
+    
+    /**
+     * Notifies that the lookup of a class through the loaders of all plugins visits the next loader. The time spent within the
+     * plugin class loader of the searching plugin is not part of the lookup through other plugins.
+     * 
+     * @param name
+     *            binary class name
+     * @param loader
+     *            the visited loader or the name of its plugin
+     */
+    void lookupVisits(String name, Object loader)
+    {
+        final Frame frame = this.state.get().findLookup(name);
+        if (frame == null || frame.walkEnd != 0)
+        {
+            return;
+        }
+        final long now = System.nanoTime();
+        frame.leaveOwner(now);
+        if (loader instanceof ClassLoader ? statsOf((ClassLoader) loader) == frame.owner : frame.owner.getPluginName().equals(loader))
+        {
+            frame.ownerStart = now;
+        }
+    }
+    
+    /**
+     * Notifies that the lookup of a class through the loaders of all plugins completed without a result.
+     * 
+     * @param name
+     *            binary class name
+     */
+    void lookupFinished(String name)
+    {
+        final Frame frame = this.state.get().findLookup(name);
+        if (frame != null && frame.walkEnd == 0)
+        {
+            frame.walkEnd = System.nanoTime();
+            frame.leaveOwner(frame.walkEnd);
+        }
+    }
+    
+    /**
+     * Notifies that a class was registered within the global class map of the java plugin loader.
+     * 
+     * @param name
+     *            binary class name
+     * @param cls
+     */
+    void classRegistered(String name, Class<?> cls)
+    {
+        final ClassLoadingStats owner = ownerOf(cls);
+        final State current = this.state.get();
+        final Frame frame = current.findLookup(name);
+        long define = 0;
+        if (frame != null)
+        {
+            current.remove(frame);
+            final long now = System.nanoTime();
+            if (frame.walkEnd == 0)
+            {
+                // defined while walking the loaders; by the searching plugin itself or by another plugin
+                frame.walkEnd = now;
+                frame.leaveOwner(now);
+            }
+            final long total = now - frame.start;
+            final long walk = Math.max(0, frame.walkEnd - frame.walkStart - frame.ownerNanos);
+            current.addChild(total);
+            frame.owner.resolved(walk);
+            if (owner == frame.owner)
+            {
+                define = Math.max(0, total - frame.child - walk);
+            }
+        }
+        if (owner != null)
+        {
+            owner.defined(owner.sizeOf(name), 0, define);
+        }
+    }
+    
+    /**
+     * Returns the statistics of the plugin defining given class.
+     * 
+     * @param cls
+     * @return statistics or {@code null} if the class was not defined by a project plugin
+     */
+    private static ClassLoadingStats ownerOf(Class<?> cls)
+    {
+        return cls == null ? null : statsOf(cls.getClassLoader());
+    }
+    
+    /**
+     * Returns the statistics of the plugin owning given plugin class loader.
+     * 
+     * @param loader
+     * @return statistics or {@code null} if the loader does not belong to a project plugin
+     */
+    private static ClassLoadingStats statsOf(ClassLoader loader)
+    {
+        if (loader != null && loader.getParent() instanceof ProjectClassLoader)
+        {
+            return ((ProjectClassLoader) loader.getParent()).getStats();
+        }
+        return null;
+    }
+    
+    /**
+     * A class being loaded.
+     */
+    static final class Frame
+    {
+        /** the statistics of the loading plugin. */
+        final ClassLoadingStats owner;
+        /** the binary class name. */
+        final String            name;
+        /** the start time. */
+        final long              start;
+        /** {@code true} for searches of the plugin class loader. */
+        final boolean           lookup;
+        /** the time spent loading nested classes. */
+        long                    child;
+        /** the start time of the lookup through other plugins. */
+        long                    walkStart;
+        /** the end time of the lookup through other plugins; 0 while the lookup is running. */
+        long                    walkEnd;
+        /** the time the lookup entered the plugin class loader of the searching plugin; 0 outside of it. */
+        long                    ownerStart;
+        /** the time the lookup spent within the plugin class loader of the searching plugin. */
+        long                    ownerNanos;
+        
+        /**
+         * Constructor
+         * 
+         * @param owner
+         * @param name
+         * @param start
+         * @param lookup
+         */
+        Frame(ClassLoadingStats owner, String name, long start, boolean lookup)
+        {
+            this.owner = owner;
+            this.name = name;
+            this.start = start;
+            this.lookup = lookup;
+        }
+        
+        /**
+         * Leaves the plugin class loader of the searching plugin.
+         * 
+         * @param now
+         */
+        void leaveOwner(long now)
+        {
+            if (this.ownerStart != 0)
+            {
+                this.ownerNanos += now - this.ownerStart;
+                this.ownerStart = 0;
+            }
+        }
+    }
+    
+    /**
+     * The per thread state.
+     */
+    private static final class State
+    {
+        /** the classes being loaded; the innermost first. */
+        final ArrayDeque<Frame> frames = new ArrayDeque<>();
+        /** the class the project class loader did not find. */
+        String                  hintName;
+        /** the statistics of the project class loader that did not find the class. */
+        ClassLoadingStats       hintOwner;
+        /** the time the project class loader did not find the class. */
+        long                    hintStart;
+        
+        /**
+         * Constructor
+         */
+        State()
+        {
+            // empty
+        }
+        
+        /**
+         * Pushes a frame.
+         * 
+         * @param frame
+         * @return the frame
+         */
+        Frame push(Frame frame)
+        {
+            if (this.frames.size() >= MAX_DEPTH)
+            {
+                this.frames.clear();
+            }
+            this.frames.push(frame);
+            return frame;
+        }
+        
+        /**
+         * Removes a frame and all stale frames above it.
+         * 
+         * @param frame
+         * @return {@code true} if the frame was found
+         */
+        boolean remove(Frame frame)
+        {
+            if (!this.frames.contains(frame))
+            {
+                return false;
+            }
+            while (this.frames.pop() != frame)
+            {
+                // drop stale frames
+            }
+            return true;
+        }
+        
+        /**
+         * Adds the time of a completed frame to the enclosing frame.
+         * 
+         * @param time
+         */
+        void addChild(long time)
+        {
+            final Frame parent = this.frames.peek();
+            if (parent != null)
+            {
+                parent.child += time;
+            }
+        }
+        
+        /**
+         * Finds the innermost search of the plugin class loader for given class.
+         * 
+         * @param name
+         * @return frame or {@code null}
+         */
+        Frame findLookup(String name)
+        {
+            final Iterator<Frame> iter = this.frames.iterator();
+            while (iter.hasNext())
+            {
+                final Frame frame = iter.next();
+                if (frame.lookup && frame.name.equals(name))
+                {
+                    return frame;
+                }
+            }
+            return null;
+        }
+    }
+    
+}
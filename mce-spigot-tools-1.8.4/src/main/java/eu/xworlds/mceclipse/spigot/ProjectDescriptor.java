@@ -0,0 +1,328 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.bukkit.plugin.InvalidDescriptionException;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.yaml.snakeyaml.error.YAMLException;
+
+/**
+ * The parsed contents of an eclipse project file.
+ * 
+ * <p>
+ * A descriptor is read once and passed through the whole plugin load. It remembers the modification times and sizes of the eclipse
+ * project file and the plugin.yml to detect whether it is still up to date.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public final class ProjectDescriptor
+{
+    
+    /** the eclipse project file. */
+    private final File                  file;
+    
+    /** the modification time of the eclipse project file. */
+    private final long                  mtime;
+    
+    /** the size of the eclipse project file. */
+    private final long                  length;
+    
+    /** the class output folder. */
+    private final File                  classesDir;
+    
+    /** the plugin.yml file. */
+    private final File                  pluginYml;
+    
+    /** the modification time of the plugin.yml. */
+    private final long                  pluginYmlMtime;
+    
+    /** the size of the plugin.yml. */
+    private final long                  pluginYmlLength;
+    
+    /** the additional classpath entries. */
+    private final List<ClasspathEntry>  classpath;
+    
+    /** the class names of the bytecode transformers. */
+    private final List<String>          transformers;
+    
+    /** the plugin description. */
+    private final PluginDescriptionFile description;
+    
+    /**
+     * Constructor
+     * 
+     * @param file
+     * @param mtime
+     * @param length
+     * @param classesDir
+     * @param classpath
+     * @param transformers
+     * @param description
+     */
+    private ProjectDescriptor(File file, long mtime, long length, File classesDir, List<ClasspathEntry> classpath, List<String> transformers,
+            PluginDescriptionFile description)
+    {
+        this.file = file;
+        this.mtime = mtime;
+        this.length = length;
+        this.classesDir = classesDir;
+        this.pluginYml = new File(classesDir, "plugin.yml"); //$NON-NLS-1$
+        this.pluginYmlMtime = this.pluginYml.lastModified();
+        this.pluginYmlLength = this.pluginYml.length();
+        this.classpath = classpath;
+        this.transformers = transformers;
+        this.description = description;
+    }
+    
+    /**
+     * Reads the eclipse project file and the plugin description.
+     * 
+     * @param file
+     *            the eclipse project file
+     * @param descriptions
+     *            the description cache
+     * @param cacheDir
+     *            the directory for persisted descriptions; {@code null} to disable persistence
+     * @return descriptor
+     * @throws InvalidDescriptionException
+     */
+    public static ProjectDescriptor read(File file, DescriptionCache descriptions, File cacheDir) throws InvalidDescriptionException
+    {
+        try
+        {
+            final long mtime = file.lastModified();
+            final long length = file.length();
+            final Properties props = new Properties();
+            try (final InputStream is = new FileInputStream(file))
+            {
+                props.load(is);
+            }
+            
+            final String classes = props.getProperty("classes"); //$NON-NLS-1$
+            if (classes == null)
+            {
+                throw new InvalidDescriptionException("Missing classes entry in " + file); //$NON-NLS-1$
+            }
+            final File classesDir = new File(classes);
+            
+            final List<ClasspathEntry> classpath = new ArrayList<>();
+            final int size = Integer.parseInt(props.getProperty("cpsize", "0")); //$NON-NLS-1$ //$NON-NLS-2$
+            for (int i = 0; i < size; i++)
+            {
+                classpath.add(new ClasspathEntry(props.getProperty("cptype" + i, "file"), props.getProperty("cpfile" + i))); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            }
+            
+            final PluginDescriptionFile description = descriptions.get(new File(classesDir, "plugin.yml"), cacheDir); //$NON-NLS-1$
+            final List<String> transformers = TransformerChain.parseNames(props.getProperty("transformers")); //$NON-NLS-1$
+            return new ProjectDescriptor(file, mtime, length, classesDir, Collections.unmodifiableList(classpath), Collections.unmodifiableList(transformers),
+                    description);
+        }
+        catch (IOException | YAMLException | NumberFormatException ex)
+        {
+            throw new InvalidDescriptionException(ex);
+        }
+    }
+    
+    /**
+     * Checks if the eclipse project file and the plugin.yml did not change since this descriptor was read.
+     * 
+     * @return {@code true} if this descriptor is up to date
+     */
+    public boolean isUpToDate()
+    {
+        return this.file.lastModified() == this.mtime && this.file.length() == this.length && this.pluginYml.lastModified() == this.pluginYmlMtime
+                && this.pluginYml.length() == this.pluginYmlLength;
+    }
+    
+    /**
+     * Returns the eclipse project file.
+     * 
+     * @return the eclipse project file
+     */
+    public File getFile()
+    {
+        return this.file;
+    }
+    
+    /**
+     * Returns the class output folder.
+     * 
+     * @return the classes dir
+     */
+    public File getClassesDir()
+    {
+        return this.classesDir;
+    }
+    
+    /**
+     * Returns the additional classpath entries.
+     * 
+     * @return the classpath entries
+     */
+    public List<ClasspathEntry> getClasspath()
+    {
+        return this.classpath;
+    }
+    
+    /**
+     * Returns the class names of the bytecode transformers for this plugin.
+     * 
+     * @return transformer class names; empty if the eclipse project file does not declare transformers
+     */
+    public List<String> getTransformers()
+    {
+        return this.transformers;
+    }
+    
+    /**
+     * Returns the urls of the additional classpath entries. Supported entry types are
+     * <ul>
+     * <li>{@code file}: a jar file or directory</li>
+     * <li>{@code dir}: a directory</li>
+     * <li>{@code maven}: an artifact of the local maven repository given by {@code groupId:artifactId:version[:classifier]}</li>
+     * <li>{@code nested}: a jar file within a jar file given by {@code outer.jar!/path/inner.jar}</li>
+     * </ul>
+     * Entries of unknown type are silently ignored.
+     * 
+     * @return classpath urls
+     * @throws IOException
+     *             thrown if a maven artifact is missing or an entry is malformed
+     */
+    public URL[] getClasspathUrls() throws IOException
+    {
+        final List<URL> result = new ArrayList<>(this.classpath.size());
+        for (final ClasspathEntry entry : this.classpath)
+        {
+            switch (entry.getType())
+            {
+                case "file": //$NON-NLS-1$
+                case "dir": //$NON-NLS-1$
+                    result.add(new File(entry.getPath()).toURI().toURL());
+                    break;
+                case "maven": //$NON-NLS-1$
+                    result.add(resolveMaven(entry.getPath()).toURI().toURL());
+                    break;
+                case "nested": //$NON-NLS-1$
+                {
+                    final int index = entry.getPath().indexOf("!/"); //$NON-NLS-1$
+                    if (index <= 0 || index + 2 == entry.getPath().length())
+                    {
+                        throw new IOException("Invalid nested classpath entry " + entry.getPath()); //$NON-NLS-1$
+                    }
+                    final URL outer = new File(entry.getPath().substring(0, index)).toURI().toURL();
+                    result.add(new URL("jar:" + outer + entry.getPath().substring(index))); //$NON-NLS-1$
+                    break;
+                }
+                default:
+                    // silently ignore
+                    break;
+            }
+        }
+        return result.toArray(new URL[result.size()]);
+    }
+    
+    /**
+     * Returns the plugin description.
+     * 
+     * @return the plugin description
+     */
+    public PluginDescriptionFile getDescription()
+    {
+        return this.description;
+    }
+    
+    /**
+     * Resolves an artifact from the local maven repository; the repository is never updated from remote.
+     * 
+     * @param coordinates
+     *            {@code groupId:artifactId:version[:classifier]}
+     * @return artifact jar
+     * @throws IOException
+     *             thrown if the coordinates are malformed or the artifact is missing
+     */
+    static File resolveMaven(String coordinates) throws IOException
+    {
+        final String[] parts = coordinates.split(":"); //$NON-NLS-1$
+        if (parts.length < 3 || parts.length > 4)
+        {
+            throw new IOException("Invalid maven coordinates " + coordinates); //$NON-NLS-1$
+        }
+        final String repo = System.getProperty("maven.repo.local", System.getProperty("user.home") + "/.m2/repository"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        final String name = parts[1] + '-' + parts[2] + (parts.length == 4 ? '-' + parts[3] : "") + ".jar"; //$NON-NLS-1$ //$NON-NLS-2$
+        final File result = new File(new File(new File(new File(repo), parts[0].replace('.', '/')), parts[1] + '/' + parts[2]), name);
+        if (!result.isFile())
+        {
+            throw new FileNotFoundException("Maven artifact " + coordinates + " not found in local repository at " + result); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        return result;
+    }
+    
+    /**
+     * A classpath entry of the eclipse project file.
+     */
+    public static final class ClasspathEntry
+    {
+        /** the entry type. */
+        private final String type;
+        /** the entry path. */
+        private final String path;
+        
+        /**
+         * Constructor
+         * 
+         * @param type
+         * @param path
+         */
+        ClasspathEntry(String type, String path)
+        {
+            this.type = type;
+            this.path = path;
+        }
+        
+        /**
+         * Returns the entry type.
+         * 
+         * @return the type, for example {@code file}
+         */
+        public String getType()
+        {
+            return this.type;
+        }
+        
+        /**
+         * Returns the entry path.
+         * 
+         * @return the path
+         */
+        public String getPath()
+        {
+            return this.path;
+        }
+    }
+    
+}
@@ -0,0 +1,630 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.io.File;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandMap;
+import org.bukkit.command.SimpleCommandMap;
+import org.bukkit.plugin.EventExecutor;
+import org.bukkit.plugin.InvalidDescriptionException;
+import org.bukkit.plugin.InvalidPluginException;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.PluginLoader;
+import org.bukkit.plugin.RegisteredListener;
+import org.bukkit.plugin.SimplePluginManager;
+import org.bukkit.plugin.java.JavaPluginLoader;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * Access to the bukkit internals used by the project plugin loader.
+ * 
+ * <p>
+ * The private fields, methods and constructors are resolved once into method handles. Static final method handles are constants
+ * for the jit compiler; invoking them costs about the same as a direct field access and avoids the access checks of core
+ * reflection.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public final class BukkitAccessor
+{
+    
+    /** the lookup. */
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    
+    /** getter for SimplePluginManager.fileAssociations. */
+    private static final MethodHandle         FILE_ASSOCIATIONS;
+    
+    /** getter for SimplePluginManager.plugins. */
+    private static final MethodHandle         PLUGINS;
+    
+    /** getter for SimplePluginManager.lookupNames. */
+    private static final MethodHandle         LOOKUP_NAMES;
+    
+    /** getter for SimplePluginManager.commandMap. */
+    private static final MethodHandle         COMMAND_MAP;
+    
+    /** getter for SimpleCommandMap.knownCommands. */
+    private static final MethodHandle         KNOWN_COMMANDS;
+    
+    /** getter for JavaPluginLoader.classes. */
+    private static final MethodHandle         CLASSES_GETTER;
+    
+    /** setter for JavaPluginLoader.classes. */
+    private static final MethodHandle         CLASSES_SETTER;
+    
+    /** getter for JavaPluginLoader.loaders; a list or a map depending on the bukkit version. */
+    private static final MethodHandle         LOADERS_GETTER;
+    
+    /** setter for JavaPluginLoader.loaders. */
+    private static final MethodHandle         LOADERS_SETTER;
+    
+    /** constructor of PluginClassLoader. */
+    private static final MethodHandle         PLUGIN_CLASS_LOADER;
+    
+    /** getter for PluginClassLoader.plugin. */
+    private static final MethodHandle         PLUGIN;
+    
+    /** PluginDescriptionFile.loadMap; {@code null} if not available. */
+    private static final MethodHandle         LOAD_MAP;
+    
+    /** getter for the yaml parser of PluginDescriptionFile; {@code null} if not available. */
+    private static final MethodHandle         YAML;
+    
+    /** getter for RegisteredListener.executor. */
+    private static final MethodHandle         EXECUTOR;
+    
+    /** JavaPluginLoader.getClassByName. */
+    private static final MethodHandle         GET_CLASS_BY_NAME;
+    
+    /** URLClassLoader.addURL; {@code null} if not available. */
+    private static final MethodHandle         ADD_URL;
+    
+    static
+    {
+        try
+        {
+            FILE_ASSOCIATIONS = getter(SimplePluginManager.class, "fileAssociations", Map.class, SimplePluginManager.class); //$NON-NLS-1$
+            PLUGINS = getter(SimplePluginManager.class, "plugins", List.class, SimplePluginManager.class); //$NON-NLS-1$
+            LOOKUP_NAMES = getter(SimplePluginManager.class, "lookupNames", Map.class, SimplePluginManager.class); //$NON-NLS-1$
+            COMMAND_MAP = getter(SimplePluginManager.class, "commandMap", SimpleCommandMap.class, SimplePluginManager.class); //$NON-NLS-1$
+            KNOWN_COMMANDS = getter(SimpleCommandMap.class, "knownCommands", Map.class, SimpleCommandMap.class); //$NON-NLS-1$
+            CLASSES_GETTER = getter(JavaPluginLoader.class, "classes", Map.class, JavaPluginLoader.class); //$NON-NLS-1$
+            CLASSES_SETTER = setter(JavaPluginLoader.class, "classes", Map.class); //$NON-NLS-1$
+            LOADERS_GETTER = getter(JavaPluginLoader.class, "loaders", Object.class, JavaPluginLoader.class); //$NON-NLS-1$
+            LOADERS_SETTER = setter(JavaPluginLoader.class, "loaders", Object.class); //$NON-NLS-1$
+            
+            final Class<?> pluginClassLoader = Class.forName("org.bukkit.plugin.java.PluginClassLoader"); //$NON-NLS-1$
+            final Constructor<?> ctor = pluginClassLoader.getDeclaredConstructor(JavaPluginLoader.class, ClassLoader.class, PluginDescriptionFile.class, File.class, File.class);
+            ctor.setAccessible(true);
+            PLUGIN_CLASS_LOADER = LOOKUP.unreflectConstructor(ctor)
+                    .asType(MethodType.methodType(URLClassLoader.class, JavaPluginLoader.class, ClassLoader.class, PluginDescriptionFile.class, File.class, File.class));
+            PLUGIN = getter(pluginClassLoader, "plugin", Plugin.class, URLClassLoader.class); //$NON-NLS-1$
+            EXECUTOR = getter(RegisteredListener.class, "executor", EventExecutor.class, RegisteredListener.class); //$NON-NLS-1$
+            
+            final Method getClassByName = JavaPluginLoader.class.getDeclaredMethod("getClassByName", String.class); //$NON-NLS-1$
+            getClassByName.setAccessible(true);
+            GET_CLASS_BY_NAME = LOOKUP.unreflect(getClassByName).asType(MethodType.methodType(Class.class, JavaPluginLoader.class, String.class));
+        }
+        catch (ReflectiveOperationException ex)
+        {
+            throw new ExceptionInInitializerError(ex);
+        }
+        
+        MethodHandle loadMap = null;
+        try
+        {
+            final Method method = PluginDescriptionFile.class.getDeclaredMethod("loadMap", Map.class); //$NON-NLS-1$
+            method.setAccessible(true);
+            loadMap = LOOKUP.unreflect(method).asType(MethodType.methodType(void.class, PluginDescriptionFile.class, Map.class));
+        }
+        catch (@SuppressWarnings("unused") ReflectiveOperationException | SecurityException ex)
+        {
+            // fall back to the yaml parser
+        }
+        LOAD_MAP = loadMap;
+        
+        MethodHandle yaml = null;
+        try
+        {
+            // a thread local holding the parser with the constructor for plugin awareness tags
+            final Field field = PluginDescriptionFile.class.getDeclaredField("YAML"); //$NON-NLS-1$
+            if (Modifier.isStatic(field.getModifiers()) && (field.getType() == ThreadLocal.class || field.getType() == Yaml.class))
+            {
+                field.setAccessible(true);
+                yaml = LOOKUP.unreflectGetter(field).asType(MethodType.methodType(Object.class));
+            }
+        }
+        catch (@SuppressWarnings("unused") ReflectiveOperationException | SecurityException ex)
+        {
+            // fall back to the description constructor
+        }
+        YAML = yaml;
+        
+        MethodHandle addUrl = null;
+        try
+        {
+            final Method method = URLClassLoader.class.getDeclaredMethod("addURL", URL.class); //$NON-NLS-1$
+            method.setAccessible(true);
+            addUrl = LOOKUP.unreflect(method);
+        }
+        catch (@SuppressWarnings("unused") ReflectiveOperationException | RuntimeException ex)
+        {
+            // split packages are defined by the project class loader
+        }
+        ADD_URL = addUrl;
+    }
+    
+    /**
+     * hidden constructor
+     */
+    private BukkitAccessor()
+    {
+        // empty
+    }
+    
+    /**
+     * Creates a getter for a private field.
+     * 
+     * @param owner
+     *            the declaring class
+     * @param name
+     *            the field name
+     * @param type
+     *            the return type of the handle
+     * @param receiver
+     *            the receiver type of the handle
+     * @return getter handle
+     * @throws ReflectiveOperationException
+     */
+    private static MethodHandle getter(Class<?> owner, String name, Class<?> type, Class<?> receiver) throws ReflectiveOperationException
+    {
+        final Field field = owner.getDeclaredField(name);
+        field.setAccessible(true);
+        return LOOKUP.unreflectGetter(field).asType(MethodType.methodType(type, receiver));
+    }
+    
+    /**
+     * Creates a setter for a private field of the java plugin loader.
+     * 
+     * @param owner
+     *            the declaring class
+     * @param name
+     *            the field name
+     * @param type
+     *            the value type of the handle
+     * @return setter handle
+     * @throws ReflectiveOperationException
+     */
+    private static MethodHandle setter(Class<?> owner, String name, Class<?> type) throws ReflectiveOperationException
+    {
+        final Field field = owner.getDeclaredField(name);
+        field.setAccessible(true);
+        return LOOKUP.unreflectSetter(field).asType(MethodType.methodType(void.class, owner, type));
+    }
+    
+    /**
+     * Converts a throwable thrown by a method handle.
+     * 
+     * @param ex
+     * @return runtime exception to be thrown
+     */
+    private static RuntimeException unchecked(Throwable ex)
+    {
+        if (ex instanceof RuntimeException)
+        {
+            return (RuntimeException) ex;
+        }
+        if (ex instanceof Error)
+        {
+            throw (Error) ex;
+        }
+        return new IllegalStateException(ex);
+    }
+    
+    /**
+     * Returns the file associations of the plugin manager.
+     * 
+     * @param manager
+     * @return file associations
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<Pattern, PluginLoader> getFileAssociations(SimplePluginManager manager)
+    {
+        try
+        {
+            return (Map<Pattern, PluginLoader>) FILE_ASSOCIATIONS.invokeExact(manager);
+        }
+        catch (Throwable ex)
+        {
+            throw unchecked(ex);
+        }
+    }
+    
+    /**
+     * Returns the plugin list of the plugin manager.
+     * 
+     * @param manager
+     * @return plugins
+     */
+    @SuppressWarnings("unchecked")
+    public static List<Plugin> getPlugins(SimplePluginManager manager)
+    {
+        try
+        {
+            return (List<Plugin>) PLUGINS.invokeExact(manager);
+        }
+        catch (Throwable ex)
+        {
+            throw unchecked(ex);
+        }
+    }
+    
+    /**
+     * Returns the plugin name lookup map of the plugin manager.
+     * 
+     * @param manager
+     * @return plugins by name
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Plugin> getLookupNames(SimplePluginManager manager)
+    {
+        try
+        {
+            return (Map<String, Plugin>) LOOKUP_NAMES.invokeExact(manager);
+        }
+        catch (Throwable ex)
+        {
+            throw unchecked(ex);
+        }
+    }
+    
+    /**
+     * Returns the command map of the plugin manager.
+     * 
+     * @param manager
+     * @return command map
+     */
+    public static CommandMap getCommandMap(SimplePluginManager manager)
+    {
+        try
+        {
+            return (SimpleCommandMap) COMMAND_MAP.invokeExact(manager);
+        }
+        catch (Throwable ex)
+        {
+            throw unchecked(ex);
+        }
+    }
+    
+    /**
+     * Returns the known commands of the command map of the plugin manager.
+     * 
+     * @param manager
+     * @return known commands
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Command> getKnownCommands(SimplePluginManager manager)
+    {
+        try
+        {
+            return (Map<String, Command>) KNOWN_COMMANDS.invokeExact((SimpleCommandMap) COMMAND_MAP.invokeExact(manager));
+        }
+        catch (Throwable ex)
+        {
+            throw unchecked(ex);
+        }
+    }
+    
+    /**
+     * Returns the global class map of the java plugin loader.
+     * 
+     * @param loader
+     * @return classes
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Class<?>> getClasses(JavaPluginLoader loader)
+    {
+        try
+        {
+            return (Map<String, Class<?>>) CLASSES_GETTER.invokeExact(loader);
+        }
+        catch (Throwable ex)
+        {
+            throw unchecked(ex);
+        }
+    }
+    
+    /**
+     * Replaces the global class map of the java plugin loader.
+     * 
+     * @param loader
+     * @param classes
+     */
+    public static void setClasses(JavaPluginLoader loader, Map<String, Class<?>> classes)
+    {
+        try
+        {
+            CLASSES_SETTER.invokeExact(loader, (Map<?, ?>) classes);
+        }
+        catch (Throwable ex)
+        {
+            throw unchecked(ex);
+        }
+    }
+    
+    /**
+     * Returns the registered plugin class loaders of the java plugin loader.
+     * 
+     * @param loader
+     * @return the loader list (1.10 and above) or the loader map (1.9.4 and below)
+     */
+    public static Object getLoaders(JavaPluginLoader loader)
+    {
+        try
+        {
+            return LOADERS_GETTER.invokeExact(loader);
+        }
+        catch (Throwable ex)
+        {
+            throw unchecked(ex);
+        }
+    }
+    
+    /**
+     * Replaces the registered plugin class loaders of the java plugin loader.
+     * 
+     * @param loader
+     * @param loaders
+     *            the loader list (1.10 and above) or the loader map (1.9.4 and below)
+     */
+    public static void setLoaders(JavaPluginLoader loader, Object loaders)
+    {
+        try
+        {
+            LOADERS_SETTER.invokeExact(loader, loaders);
+        }
+        catch (Throwable ex)
+        {
+            throw unchecked(ex);
+        }
+    }
+    
+    /**
+     * Creates a new plugin class loader; the plugin main class is instantiated by the constructor.
+     * 
+     * @param javaLoader
+     * @param parent
+     * @param description
+     * @param dataFolder
+     * @param file
+     * @return plugin class loader
+     * @throws InvalidPluginException
+     */
+    public static URLClassLoader newPluginClassLoader(JavaPluginLoader javaLoader, ClassLoader parent, PluginDescriptionFile description, File dataFolder, File file)
+            throws InvalidPluginException
+    {
+        try
+        {
+            return (URLClassLoader) PLUGIN_CLASS_LOADER.invokeExact(javaLoader, parent, description, dataFolder, file);
+        }
+        catch (InvalidPluginException | RuntimeException | Error ex)
+        {
+            throw ex;
+        }
+        catch (Throwable ex)
+        {
+            throw new InvalidPluginException(ex);
+        }
+    }
+    
+    /**
+     * Finds a class within the global class map and the plugin class loaders.
+     * 
+     * @param loader
+     * @param name
+     *            binary class name
+     * @return class or {@code null} if no plugin provides the class
+     */
+    public static Class<?> getClassByName(JavaPluginLoader loader, String name)
+    {
+        try
+        {
+            return (Class<?>) GET_CLASS_BY_NAME.invokeExact(loader, name);
+        }
+        catch (Throwable ex)
+        {
+            throw unchecked(ex);
+        }
+    }
+    
+    /**
+     * Returns the plugin of a plugin class loader.
+     * 
+     * @param loader
+     * @return plugin
+     */
+    public static Plugin getPlugin(URLClassLoader loader)
+    {
+        try
+        {
+            return (Plugin) PLUGIN.invokeExact(loader);
+        }
+        catch (Throwable ex)
+        {
+            throw unchecked(ex);
+        }
+    }
+    
+    /**
+     * Returns the event executor of a registered listener.
+     * 
+     * @param listener
+     * @return event executor
+     */
+    public static EventExecutor getExecutor(RegisteredListener listener)
+    {
+        try
+        {
+            return (EventExecutor) EXECUTOR.invokeExact(listener);
+        }
+        catch (Throwable ex)
+        {
+            throw unchecked(ex);
+        }
+    }
+    
+    /**
+     * Returns the listener method invoked by a registered listener. The executors created by the java plugin loader keep the method
+     * within a synthetic field.
+     * 
+     * @param listener
+     * @return listener method or {@code null} if the executor does not reveal the method
+     */
+    public static Method getListenerMethod(RegisteredListener listener)
+    {
+        final EventExecutor executor = getExecutor(listener);
+        if (executor == null)
+        {
+            return null;
+        }
+        try
+        {
+            for (final Field field : executor.getClass().getDeclaredFields())
+            {
+                if (field.getType() == Method.class)
+                {
+                    field.setAccessible(true);
+                    return (Method) field.get(executor);
+                }
+            }
+        }
+        catch (@SuppressWarnings("unused") ReflectiveOperationException | RuntimeException ex)
+        {
+            // fall back to the listener class
+        }
+        return null;
+    }
+    
+    /**
+     * Checks if urls can be appended to plugin class loaders.
+     * 
+     * @return {@code true} if {@link #addURL(URLClassLoader, URL)} is available
+     */
+    public static boolean canAddURL()
+    {
+        return ADD_URL != null;
+    }
+    
+    /**
+     * Appends an url to a plugin class loader.
+     * 
+     * @param loader
+     * @param url
+     */
+    public static void addURL(URLClassLoader loader, URL url)
+    {
+        try
+        {
+            ADD_URL.invokeExact(loader, url);
+        }
+        catch (Throwable ex)
+        {
+            throw unchecked(ex);
+        }
+    }
+    
+    /**
+     * Checks if descriptions can be created from yaml trees.
+     * 
+     * @return {@code true} if {@link #loadMap(PluginDescriptionFile, Map)} is available
+     */
+    public static boolean canLoadMap()
+    {
+        return LOAD_MAP != null;
+    }
+    
+    /**
+     * Checks if plugin descriptions can be parsed the way {@link PluginDescriptionFile} does.
+     * 
+     * @return {@code true} if {@link #loadYaml(InputStream)} is available
+     */
+    public static boolean canLoadYaml()
+    {
+        return YAML != null;
+    }
+    
+    /**
+     * Parses a plugin description with the yaml parser of {@link PluginDescriptionFile}.
+     * 
+     * @param is
+     * @return yaml tree
+     */
+    public static Object loadYaml(InputStream is)
+    {
+        final Object holder;
+        try
+        {
+            holder = YAML.invokeExact();
+        }
+        catch (Throwable ex)
+        {
+            throw unchecked(ex);
+        }
+        final Yaml yaml = (Yaml) (holder instanceof ThreadLocal ? ((ThreadLocal<?>) holder).get() : holder);
+        return yaml.load(is);
+    }
+    
+    /**
+     * Loads a description from the yaml tree.
+     * 
+     * @param description
+     * @param map
+     * @throws InvalidDescriptionException
+     */
+    public static void loadMap(PluginDescriptionFile description, Map<?, ?> map) throws InvalidDescriptionException
+    {
+        try
+        {
+            LOAD_MAP.invokeExact(description, map);
+        }
+        catch (InvalidDescriptionException | RuntimeException | Error ex)
+        {
+            throw ex;
+        }
+        catch (Throwable ex)
+        {
+            throw new InvalidDescriptionException(ex);
+        }
+    }
+    
+}
@@ -0,0 +1,216 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.bukkit.plugin.Plugin;
+
+/**
+ * The bytes allocated by event listeners, aggregated per plugin and per event type.
+ * 
+ * <p>
+ * The allocated bytes of the dispatching thread are read through the hotspot {@link com.sun.management.ThreadMXBean} before and after
+ * a listener invocation. Only one of {@code sampleInterval} invocations is measured; the measured bytes are scaled by the interval.
+ * Reading the counter allocates on older jvms; this overhead is measured once and subtracted from each sample.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public final class AllocationStats implements AllocationStatsMXBean
+{
+    
+    /** the thread management bean. */
+    private final com.sun.management.ThreadMXBean threads;
+    
+    /** the sample interval. */
+    private final int                             sampleInterval;
+    
+    /** the bytes allocated by reading the counter. */
+    private final long                            overhead;
+    
+    /** the counter of listener invocations; races of asynchronous events only skew the sampling. */
+    private int                                   invocations;
+    
+    /** the number of samples. */
+    private final LongAdder                       samples = new LongAdder();
+    
+    /** the allocated bytes; key is the plugin name. */
+    private final Map<String, LongAdder>          plugins = new ConcurrentHashMap<>();
+    
+    /** the allocated bytes; key is the event class. */
+    private final Map<Class<?>, LongAdder>        events  = new ConcurrentHashMap<>();
+    
+    /**
+     * Constructor
+     * 
+     * @param threads
+     *            the thread management bean
+     * @param sampleInterval
+     *            one of this number of listener invocations is measured
+     */
+    private AllocationStats(com.sun.management.ThreadMXBean threads, int sampleInterval)
+    {
+        this.threads = threads;
+        this.sampleInterval = sampleInterval;
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < 16; i++)
+        {
+            final long start = this.allocatedBytes();
+            min = Math.min(min, this.allocatedBytes() - start);
+        }
+        this.overhead = min;
+    }
+    
+    /**
+     * Creates the allocation statistics and registers the MBean {@code eu.xworlds.mceclipse:type=Allocations}.
+     * 
+     * @param sampleInterval
+     *            one of this number of listener invocations is measured
+     * @param logger
+     * @return allocation statistics or {@code null} if the jvm does not support allocation accounting
+     */
+    public static AllocationStats create(int sampleInterval, Logger logger)
+    {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean) || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported())
+        {
+            logger.warning("Allocation accounting is not supported by this jvm"); //$NON-NLS-1$
+            return null;
+        }
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        threads.setThreadAllocatedMemoryEnabled(true);
+        final AllocationStats result = new AllocationStats(threads, Math.max(1, sampleInterval));
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(result, new ObjectName("eu.xworlds.mceclipse:type=Allocations")); //$NON-NLS-1$
+        }
+        catch (JMException ex)
+        {
+            logger.log(Level.WARNING, "Unable to register allocation statistics", ex); //$NON-NLS-1$
+        }
+        return result;
+    }
+    
+    /**
+     * Decides whether the next listener invocation is measured.
+     * 
+     * @return {@code true} to measure the invocation
+     */
+    boolean sample()
+    {
+        if (++this.invocations >= this.sampleInterval)
+        {
+            this.invocations = 0;
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Returns the bytes allocated by the current thread.
+     * 
+     * @return allocated bytes
+     */
+    long allocatedBytes()
+    {
+        return this.threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    
+    /**
+     * Records a sampled listener invocation.
+     * 
+     * @param plugin
+     *            the plugin of the listener
+     * @param eventClass
+     * @param bytes
+     *            the bytes allocated during the invocation, including the measuring overhead
+     */
+    void record(Plugin plugin, Class<?> eventClass, long bytes)
+    {
+        final long estimate = Math.max(0, bytes - this.overhead) * this.sampleInterval;
+        this.samples.increment();
+        LongAdder adder = this.plugins.get(plugin.getName());
+        if (adder == null)
+        {
+            adder = this.plugins.computeIfAbsent(plugin.getName(), k -> new LongAdder());
+        }
+        adder.add(estimate);
+        adder = this.events.get(eventClass);
+        if (adder == null)
+        {
+            adder = this.events.computeIfAbsent(eventClass, k -> new LongAdder());
+        }
+        adder.add(estimate);
+    }
+    
+    /**
+     * Drops the statistics of the event types declared by given plugin.
+     * 
+     * @param plugin
+     */
+    void remove(Plugin plugin)
+    {
+        final ClassLoader loader = plugin.getClass().getClassLoader();
+        this.events.keySet().removeIf(c -> c.getClassLoader() == loader);
+    }
+    
+    @Override
+    public int getSampleInterval()
+    {
+        return this.sampleInterval;
+    }
+    
+    @Override
+    public long getSamples()
+    {
+        return this.samples.sum();
+    }
+    
+    @Override
+    public Map<String, Long> getPluginAllocations()
+    {
+        final Map<String, Long> result = new TreeMap<>();
+        this.plugins.forEach((k, v) -> result.put(k, Long.valueOf(v.sum())));
+        return result;
+    }
+    
+    @Override
+    public Map<String, Long> getEventAllocations()
+    {
+        final Map<String, Long> result = new TreeMap<>();
+        this.events.forEach((k, v) -> result.merge(k.getName(), Long.valueOf(v.sum()), (a, b) -> Long.valueOf(a.longValue() + b.longValue())));
+        return result;
+    }
+    
+    @Override
+    public void reset()
+    {
+        this.samples.reset();
+        this.plugins.clear();
+        this.events.clear();
+    }
+    
+}
@@ -0,0 +1,61 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.util.Map;
+
+/**
+ * The management interface of the allocation statistics of event listeners.
+ * 
+ * @author mepeisen
+ */
+public interface AllocationStatsMXBean
+{
+    
+    /**
+     * Returns the sample interval; one of this number of listener invocations is measured.
+     * 
+     * @return sample interval
+     */
+    int getSampleInterval();
+    
+    /**
+     * Returns the number of measured listener invocations.
+     * 
+     * @return number of samples
+     */
+    long getSamples();
+    
+    /**
+     * Returns the estimated bytes allocated by the listeners of each plugin.
+     * 
+     * @return bytes; key is the plugin name
+     */
+    Map<String, Long> getPluginAllocations();
+    
+    /**
+     * Returns the estimated bytes allocated by the listeners of each event type.
+     * 
+     * @return bytes; key is the event class name
+     */
+    Map<String, Long> getEventAllocations();
+    
+    /**
+     * Drops all statistics.
+     */
+    void reset();
+    
+}
@@ -0,0 +1,418 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bukkit.event.Event;
+import org.bukkit.event.EventException;
+import org.bukkit.plugin.EventExecutor;
+
+/**
+ * Generates event executors calling the listener method directly instead of through {@link Method#invoke(Object, Object...)}.
+ * 
+ * <p>
+ * The executor class is defined within the package and class loader of the listener class; it checks the event type, invokes the
+ * listener method by {@code invokevirtual} and wraps any throwable into an {@link EventException} like the executors of the java
+ * plugin loader. The class file version is 49; thus no stack map frames are required. Generated classes are cached per listener class
+ * and method and are collected together with the plugin class loader.
+ * </p>
+ * 
+ * <p>
+ * Only methods callable from the package of the listener class are supported: public methods and non private methods declared
+ * within the same package and class loader. Static and private listener methods keep the reflective executor.
+ * </p>
+ * 
+ * <p>
+ * Spigot wraps the reflective executors into a {@code CustomTimingsHandler}; the generated executors do not, thus project plugin
+ * listeners using them are missing from the spigot timings report. Therefore the generated executors are opt-in by the system
+ * property {@code mceclipse.executors=true}; the event profiler covers the listeners instead.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public final class EventExecutorGenerator
+{
+    
+    /** the name suffix of generated classes. */
+    private static final String                            SUFFIX  = "$$MceExecutor$"; //$NON-NLS-1$
+    
+    /** the counter for unique class names. */
+    private static final AtomicInteger                     COUNTER = new AtomicInteger();
+    
+    /** the generated classes per listener class; key is the listener method. */
+    private static final ClassValue<Map<Method, Class<?>>> CLASSES = new ClassValue<Map<Method, Class<?>>>() {
+        @Override
+        protected Map<Method, Class<?>> computeValue(Class<?> type)
+        {
+            return new ConcurrentHashMap<>();
+        }
+    };
+    
+    /**
+     * Hidden constructor
+     */
+    private EventExecutorGenerator()
+    {
+        // empty
+    }
+    
+    /**
+     * Checks if an executor can be generated for given listener method.
+     * 
+     * @param method
+     *            the listener method
+     * @param listenerClass
+     *            the class of the listener instance
+     * @return {@code true} if the method can be called directly from the package of the listener class
+     */
+    public static boolean canGenerate(Method method, Class<?> listenerClass)
+    {
+        if (Modifier.isStatic(method.getModifiers()) || Modifier.isPrivate(method.getModifiers()) || method.getParameterTypes().length != 1
+                || listenerClass.getClassLoader() == null || listenerClass.isArray() || listenerClass.isInterface())
+        {
+            return false;
+        }
+        return (Modifier.isPublic(method.getModifiers()) && Modifier.isPublic(method.getDeclaringClass().getModifiers()))
+                ? isAccessible(method.getParameterTypes()[0], listenerClass)
+                : samePackage(method.getDeclaringClass(), listenerClass) && isAccessible(method.getParameterTypes()[0], listenerClass);
+    }
+    
+    /**
+     * Creates an executor for given listener method.
+     * 
+     * @param method
+     *            the listener method
+     * @param listenerClass
+     *            the class of the listener instance
+     * @return executor
+     * @throws ReflectiveOperationException
+     *             thrown if the executor class cannot be defined
+     */
+    public static EventExecutor generate(Method method, Class<?> listenerClass) throws ReflectiveOperationException
+    {
+        final Map<Method, Class<?>> classes = CLASSES.get(listenerClass);
+        Class<?> cls = classes.get(method);
+        if (cls == null)
+        {
+            final String name = listenerClass.getName() + SUFFIX + COUNTER.incrementAndGet();
+            cls = define(listenerClass, name, classFile(name, listenerClass, method));
+            final Class<?> existing = classes.putIfAbsent(method, cls);
+            cls = existing == null ? cls : existing;
+        }
+        final EventExecutor result = (EventExecutor) cls.getConstructor().newInstance();
+        // reveals the listener method to the event profiler
+        cls.getField("method").set(result, method); //$NON-NLS-1$
+        return result;
+    }
+    
+    /**
+     * Checks if a class can be accessed from the package of the listener class.
+     * 
+     * @param type
+     * @param listenerClass
+     * @return {@code true} if the class is accessible
+     */
+    private static boolean isAccessible(Class<?> type, Class<?> listenerClass)
+    {
+        return !type.isPrimitive() && Event.class.isAssignableFrom(type) && (Modifier.isPublic(type.getModifiers()) || samePackage(type, listenerClass));
+    }
+    
+    /**
+     * Checks if two classes are members of the same runtime package.
+     * 
+     * @param a
+     * @param b
+     * @return {@code true} if the classes share the package and the class loader
+     */
+    private static boolean samePackage(Class<?> a, Class<?> b)
+    {
+        return a.getClassLoader() == b.getClassLoader() && Objects.equals(packageOf(a), packageOf(b));
+    }
+    
+    /**
+     * Returns the package name of given class.
+     * 
+     * @param cls
+     * @return package name; empty for the root package
+     */
+    private static String packageOf(Class<?> cls)
+    {
+        final int index = cls.getName().lastIndexOf('.');
+        return index == -1 ? "" : cls.getName().substring(0, index); //$NON-NLS-1$
+    }
+    
+    /**
+     * Defines a class within the package and class loader of the listener class.
+     * 
+     * @param listenerClass
+     * @param name
+     *            binary class name
+     * @param bytes
+     *            class file
+     * @return defined class
+     * @throws ReflectiveOperationException
+     */
+    private static Class<?> define(Class<?> listenerClass, String name, byte[] bytes) throws ReflectiveOperationException
+    {
+        Method privateLookupIn = null;
+        try
+        {
+            privateLookupIn = MethodHandles.class.getMethod("privateLookupIn", Class.class, MethodHandles.Lookup.class); //$NON-NLS-1$
+        }
+        catch (@SuppressWarnings("unused") NoSuchMethodException ex)
+        {
+            // java 8
+        }
+        if (privateLookupIn != null)
+        {
+            final Object lookup = privateLookupIn.invoke(null, listenerClass, MethodHandles.lookup());
+            return (Class<?>) MethodHandles.Lookup.class.getMethod("defineClass", byte[].class).invoke(lookup, bytes); //$NON-NLS-1$
+        }
+        final Method defineClass = ClassLoader.class.getDeclaredMethod("defineClass", String.class, byte[].class, int.class, int.class); //$NON-NLS-1$
+        defineClass.setAccessible(true);
+        return (Class<?>) defineClass.invoke(listenerClass.getClassLoader(), name, bytes, Integer.valueOf(0), Integer.valueOf(bytes.length));
+    }
+    
+    /**
+     * Creates the class file of an executor.
+     * 
+     * @param name
+     *            binary class name
+     * @param listenerClass
+     * @param method
+     * @return class file
+     */
+    private static byte[] classFile(String name, Class<?> listenerClass, Method method)
+    {
+        final Class<?> returnType = method.getReturnType();
+        final byte[] pop = returnType == void.class ? new byte[0]
+                : (returnType == long.class || returnType == double.class) ? new byte[] { 0x58 } // pop2
+                        : new byte[] { 0x57 }; // pop
+        
+        try (final ByteArrayOutputStream bos = new ByteArrayOutputStream(); final DataOutputStream out = new DataOutputStream(bos))
+        {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            
+            // constant pool
+            out.writeShort(32);
+            utf8(out, name.replace('.', '/')); // 1
+            ref(out, 7, 1); // 2 this class
+            utf8(out, "java/lang/Object"); //$NON-NLS-1$ 3
+            ref(out, 7, 3); // 4 super class
+            utf8(out, EventExecutor.class.getName().replace('.', '/')); // 5
+            ref(out, 7, 5); // 6 interface
+            utf8(out, "<init>"); //$NON-NLS-1$ 7
+            utf8(out, "()V"); //$NON-NLS-1$ 8
+            ref(out, 12, 7, 8); // 9
+            ref(out, 10, 4, 9); // 10 Object.<init>
+            utf8(out, "execute"); //$NON-NLS-1$ 11
+            utf8(out, "(Lorg/bukkit/event/Listener;Lorg/bukkit/event/Event;)V"); //$NON-NLS-1$ 12
+            utf8(out, "Code"); //$NON-NLS-1$ 13
+            utf8(out, listenerClass.getName().replace('.', '/')); // 14
+            ref(out, 7, 14); // 15 listener class
+            utf8(out, method.getParameterTypes()[0].getName().replace('.', '/')); // 16
+            ref(out, 7, 16); // 17 event class
+            utf8(out, method.getName()); // 18
+            utf8(out, descriptor(method)); // 19
+            ref(out, 12, 18, 19); // 20
+            ref(out, 10, 15, 20); // 21 listener method
+            utf8(out, EventException.class.getName().replace('.', '/')); // 22
+            ref(out, 7, 22); // 23
+            utf8(out, "(Ljava/lang/Throwable;)V"); //$NON-NLS-1$ 24
+            ref(out, 12, 7, 24); // 25
+            ref(out, 10, 23, 25); // 26 EventException.<init>
+            utf8(out, "java/lang/Throwable"); //$NON-NLS-1$ 27
+            ref(out, 7, 27); // 28
+            utf8(out, "method"); //$NON-NLS-1$ 29
+            utf8(out, "Ljava/lang/reflect/Method;"); //$NON-NLS-1$ 30
+            utf8(out, "Exceptions"); //$NON-NLS-1$ 31
+            
+            out.writeShort(0x0031); // public final super
+            out.writeShort(2);
+            out.writeShort(4);
+            out.writeShort(1);
+            out.writeShort(6);
+            
+            // public Method method
+            out.writeShort(1);
+            out.writeShort(0x0001);
+            out.writeShort(29);
+            out.writeShort(30);
+            out.writeShort(0);
+            
+            out.writeShort(2);
+            
+            // public <init>()
+            out.writeShort(0x0001);
+            out.writeShort(7);
+            out.writeShort(8);
+            out.writeShort(1);
+            code(out, 1, 1, new byte[] { 0x2a, (byte) 0xb7, 0, 10, (byte) 0xb1 }, null);
+            
+            // public void execute(Listener, Event) throws EventException
+            final ByteArrayOutputStream code = new ByteArrayOutputStream();
+            code.write(new byte[] { 0x2c, (byte) 0xc1, 0, 17 }); // aload_2, instanceof event
+            code.write(new byte[] { (byte) 0x9a, 0, 4, (byte) 0xb1 }); // ifne +4, return
+            final int start = code.size();
+            code.write(new byte[] { 0x2b, (byte) 0xc0, 0, 15 }); // aload_1, checkcast listener
+            code.write(new byte[] { 0x2c, (byte) 0xc0, 0, 17 }); // aload_2, checkcast event
+            code.write(new byte[] { (byte) 0xb6, 0, 21 }); // invokevirtual
+            code.write(pop);
+            code.write(0xb1); // return
+            final int handler = code.size();
+            code.write(new byte[] { 0x4e, (byte) 0xbb, 0, 23, 0x59, 0x2d }); // astore_3, new, dup, aload_3
+            code.write(new byte[] { (byte) 0xb7, 0, 26, (byte) 0xbf }); // invokespecial, athrow
+            out.writeShort(0x0001);
+            out.writeShort(11);
+            out.writeShort(12);
+            out.writeShort(2);
+            code(out, 3, 4, code.toByteArray(), new int[] { start, handler, handler, 28 });
+            out.writeShort(31);
+            out.writeInt(4);
+            out.writeShort(1);
+            out.writeShort(23);
+            
+            // class attributes
+            out.writeShort(0);
+            out.flush();
+            return bos.toByteArray();
+        }
+        catch (IOException ex)
+        {
+            // not thrown by byte array streams
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    /**
+     * Returns the jvm descriptor of given method.
+     * 
+     * @param method
+     * @return descriptor
+     */
+    private static String descriptor(Method method)
+    {
+        return '(' + descriptor(method.getParameterTypes()[0]) + ')' + descriptor(method.getReturnType());
+    }
+    
+    /**
+     * Returns the jvm descriptor of given type.
+     * 
+     * @param type
+     * @return descriptor
+     */
+    private static String descriptor(Class<?> type)
+    {
+        if (type.isArray())
+        {
+            return type.getName().replace('.', '/');
+        }
+        if (type.isPrimitive())
+        {
+            if (type == void.class)
+            {
+                return "V"; //$NON-NLS-1$
+            }
+            if (type == boolean.class)
+            {
+                return "Z"; //$NON-NLS-1$
+            }
+            if (type == long.class)
+            {
+                return "J"; //$NON-NLS-1$
+            }
+            // byte, char, double, float, int and short
+            return type.getName().substring(0, 1).toUpperCase(Locale.ROOT);
+        }
+        return 'L' + type.getName().replace('.', '/') + ';';
+    }
+    
+    /**
+     * Writes an utf8 constant.
+     * 
+     * @param out
+     * @param value
+     * @throws IOException
+     */
+    private static void utf8(DataOutputStream out, String value) throws IOException
+    {
+        out.writeByte(1);
+        out.writeUTF(value);
+    }
+    
+    /**
+     * Writes a constant referencing other constants.
+     * 
+     * @param out
+     * @param tag
+     *            the constant tag
+     * @param indices
+     *            the referenced constants
+     * @throws IOException
+     */
+    private static void ref(DataOutputStream out, int tag, int... indices) throws IOException
+    {
+        out.writeByte(tag);
+        for (final int index : indices)
+        {
+            out.writeShort(index);
+        }
+    }
+    
+    /**
+     * Writes a code attribute.
+     * 
+     * @param out
+     * @param maxStack
+     * @param maxLocals
+     * @param code
+     * @param exceptionTable
+     *            start, end, handler and catch type of a single handler; {@code null} for none
+     * @throws IOException
+     */
+    private static void code(DataOutputStream out, int maxStack, int maxLocals, byte[] code, int[] exceptionTable) throws IOException
+    {
+        out.writeShort(13);
+        out.writeInt(12 + code.length + (exceptionTable == null ? 0 : 8));
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(exceptionTable == null ? 0 : 1);
+        if (exceptionTable != null)
+        {
+            for (final int value : exceptionTable)
+            {
+                out.writeShort(value);
+            }
+        }
+        out.writeShort(0);
+    }
+    
+}
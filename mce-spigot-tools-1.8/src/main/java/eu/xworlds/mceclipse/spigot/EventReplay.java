@@ -0,0 +1,905 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
+import org.bukkit.entity.Player;
+import org.bukkit.event.Event;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.util.Vector;
+
+/**
+ * Feeds an event log written by {@link EventRecorder} back into the plugin manager and profiles each listener.
+ * 
+ * <p>
+ * The whole log is decoded before the first event is dispatched; thus the replay measures the listeners only. Events are
+ * instantiated without invoking their constructors and their recorded fields are restored. Players and other entities are
+ * replaced by proxies answering their uuid, name, type and recorded location; all other methods return default values. Worlds and
+ * blocks are resolved from the running server; values of types not recorded keep their default values.
+ * </p>
+ * 
+ * <p>
+ * All events are dispatched on the calling thread. Asynchronous events keep their async flag but are replayed on the main thread;
+ * listeners checking the current thread behave differently than during the recording.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public final class EventReplay
+{
+    
+    /** allocates objects without invoking a constructor; {@code null} if not supported by the jvm. */
+    private static final MethodHandle ALLOCATE = allocator();
+    
+    /** placeholder of values that are not restored. */
+    private static final Object       NO_VALUE = new Object();
+    
+    /** the plugin manager. */
+    private final ExtendedPluginManager manager;
+    
+    /** the replayed events; dispatched events are cleared. */
+    private final Event[]               events;
+    
+    /** the tick of each event relative to the start of the recording. */
+    private final int[]                 ticks;
+    
+    /** the number of events of unknown types. */
+    private final int                   skipped;
+    
+    /** the number of asynchronous events. */
+    private final int                   asynchronous;
+    
+    /** the listener profiles of the replay. */
+    private final EventProfiler         profiler = new EventProfiler();
+    
+    /** the index of the next event. */
+    private int                         next;
+    
+    /** the next tick. */
+    private int                         tick;
+    
+    /** the time spent dispatching events. */
+    private long                        busyTime;
+    
+    /**
+     * Constructor
+     * 
+     * @param manager
+     * @param events
+     * @param ticks
+     * @param skipped
+     * @param asynchronous
+     */
+    private EventReplay(ExtendedPluginManager manager, Event[] events, int[] ticks, int skipped, int asynchronous)
+    {
+        this.manager = manager;
+        this.events = events;
+        this.ticks = ticks;
+        this.skipped = skipped;
+        this.asynchronous = asynchronous;
+    }
+    
+    /**
+     * Resolves {@code Unsafe.allocateInstance}.
+     * 
+     * @return allocator or {@code null} if not supported by the jvm
+     */
+    private static MethodHandle allocator()
+    {
+        try
+        {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe"); //$NON-NLS-1$
+            final Field field = unsafeClass.getDeclaredField("theUnsafe"); //$NON-NLS-1$
+            field.setAccessible(true);
+            return MethodHandles.lookup().findVirtual(unsafeClass, "allocateInstance", MethodType.methodType(Object.class, Class.class)).bindTo(field.get(null)); //$NON-NLS-1$
+        }
+        catch (@SuppressWarnings("unused") ReflectiveOperationException | RuntimeException ex)
+        {
+            return null;
+        }
+    }
+    
+    /**
+     * Loads an event log.
+     * 
+     * @param file
+     *            the event log
+     * @param manager
+     *            the plugin manager dispatching the events
+     * @return the replay
+     * @throws IOException
+     *             thrown if the log cannot be read
+     */
+    public static EventReplay load(File file, ExtendedPluginManager manager) throws IOException
+    {
+        if (ALLOCATE == null)
+        {
+            throw new IOException("Events cannot be instantiated on this jvm"); //$NON-NLS-1$
+        }
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16)))
+        {
+            if (in.readInt() != EventRecorder.MAGIC || in.readUnsignedByte() != EventRecorder.VERSION)
+            {
+                throw new IOException(file + " is not an event log"); //$NON-NLS-1$
+            }
+            return new Decoder(in, manager).decode();
+        }
+    }
+    
+    /**
+     * Dispatches the events of the next tick.
+     * 
+     * @return {@code true} if events are left
+     */
+    public boolean tick()
+    {
+        final long start = System.nanoTime();
+        while (this.next < this.events.length && this.ticks[this.next] <= this.tick)
+        {
+            this.manager.replayEvent(this.events[this.next], this.profiler);
+            this.events[this.next++] = null;
+        }
+        this.busyTime += System.nanoTime() - start;
+        this.tick++;
+        return this.next < this.events.length;
+    }
+    
+    /**
+     * Dispatches all remaining events at full speed.
+     */
+    public void run()
+    {
+        final long start = System.nanoTime();
+        while (this.next < this.events.length)
+        {
+            this.manager.replayEvent(this.events[this.next], this.profiler);
+            this.events[this.next++] = null;
+        }
+        this.busyTime += System.nanoTime() - start;
+    }
+    
+    /**
+     * Returns the number of events.
+     * 
+     * @return events
+     */
+    public int getEvents()
+    {
+        return this.events.length;
+    }
+    
+    /**
+     * Returns the number of dispatched events.
+     * 
+     * @return dispatched events
+     */
+    public int getDispatched()
+    {
+        return this.next;
+    }
+    
+    /**
+     * Returns the number of recorded ticks.
+     * 
+     * @return ticks
+     */
+    public int getTicks()
+    {
+        return this.ticks.length == 0 ? 0 : this.ticks[this.ticks.length - 1] + 1;
+    }
+    
+    /**
+     * Returns the number of skipped events; the event classes are not known to the server.
+     * 
+     * @return skipped events
+     */
+    public int getSkipped()
+    {
+        return this.skipped;
+    }
+    
+    /**
+     * Returns the number of asynchronous events; they are replayed on the main thread.
+     * 
+     * @return asynchronous events
+     */
+    public int getAsynchronous()
+    {
+        return this.asynchronous;
+    }
+    
+    /**
+     * Returns the time spent dispatching events.
+     * 
+     * @return busy time in nanoseconds
+     */
+    public long getBusyTime()
+    {
+        return this.busyTime;
+    }
+    
+    /**
+     * Returns the listener profiles of the replay.
+     * 
+     * @return profiler
+     */
+    public EventProfiler getProfiler()
+    {
+        return this.profiler;
+    }
+    
+    /**
+     * Converts a decoded value to the type of a field.
+     * 
+     * @param value
+     * @param type
+     *            the field type
+     * @return converted value or {@link #NO_VALUE} if the value cannot be assigned
+     */
+    static Object convert(Object value, Class<?> type)
+    {
+        if (value == NO_VALUE || !type.isPrimitive())
+        {
+            return value == null || type.isInstance(value) ? value : NO_VALUE;
+        }
+        if (value instanceof Boolean)
+        {
+            return type == boolean.class ? value : NO_VALUE;
+        }
+        if (!(value instanceof Number))
+        {
+            return NO_VALUE;
+        }
+        final Number n = (Number) value;
+        if (type == int.class)
+        {
+            return Integer.valueOf(n.intValue());
+        }
+        if (type == long.class)
+        {
+            return Long.valueOf(n.longValue());
+        }
+        if (type == double.class)
+        {
+            return Double.valueOf(n.doubleValue());
+        }
+        if (type == float.class)
+        {
+            return Float.valueOf(n.floatValue());
+        }
+        if (type == short.class)
+        {
+            return Short.valueOf(n.shortValue());
+        }
+        if (type == byte.class)
+        {
+            return Byte.valueOf(n.byteValue());
+        }
+        return type == char.class ? Character.valueOf((char) n.intValue()) : NO_VALUE;
+    }
+    
+    /**
+     * Returns the default value of given return type.
+     * 
+     * @param type
+     * @return default value
+     */
+    static Object defaultValue(Class<?> type)
+    {
+        if (!type.isPrimitive() || type == void.class)
+        {
+            return null;
+        }
+        return type == boolean.class ? Boolean.FALSE : convert(Integer.valueOf(0), type);
+    }
+    
+    /**
+     * A recorded event type.
+     */
+    private static final class RecordedType
+    {
+        
+        /** the event class; {@code null} if the class is unknown. */
+        final Class<? extends Event> eventClass;
+        
+        /** the fields in recorded order; {@code null} for fields that no longer exist. */
+        final Field[]                fields;
+        
+        /**
+         * Constructor
+         * 
+         * @param eventClass
+         * @param fields
+         */
+        RecordedType(Class<? extends Event> eventClass, Field[] fields)
+        {
+            this.eventClass = eventClass;
+            this.fields = fields;
+        }
+        
+    }
+    
+    /**
+     * Decoder of event logs.
+     */
+    private static final class Decoder
+    {
+        
+        /** the input stream. */
+        private final DataInputStream       in;
+        
+        /** the plugin manager. */
+        private final ExtendedPluginManager manager;
+        
+        /** the strings; index {@code 0} is the null string. */
+        private final List<String>          strings = new ArrayList<>(Arrays.asList((String) null));
+        
+        /** the event types. */
+        private final List<RecordedType>    types   = new ArrayList<>();
+        
+        /** the resolved classes; {@code null} values for unknown classes. */
+        private final Map<String, Class<?>> classes = new HashMap<>();
+        
+        /** the async flag of events; {@code null} if not found. */
+        private final Field                 async;
+        
+        /**
+         * Constructor
+         * 
+         * @param in
+         * @param manager
+         */
+        Decoder(DataInputStream in, ExtendedPluginManager manager)
+        {
+            this.in = in;
+            this.manager = manager;
+            this.async = field(Event.class, "async"); //$NON-NLS-1$
+        }
+        
+        /**
+         * Decodes all events; a truncated last record is dropped.
+         * 
+         * @return the replay
+         * @throws IOException
+         */
+        EventReplay decode() throws IOException
+        {
+            final List<Event> events = new ArrayList<>();
+            int[] ticks = new int[1024];
+            int tick = 0;
+            int skipped = 0;
+            int asynchronous = 0;
+            try
+            {
+                while (true)
+                {
+                    final int delta = this.readVarInt();
+                    final int header = this.readVarInt();
+                    if (header >>> 1 == this.types.size())
+                    {
+                        this.types.add(this.readType());
+                    }
+                    else if (header >>> 1 > this.types.size())
+                    {
+                        throw new IOException("Corrupt event log; unknown type " + (header >>> 1)); //$NON-NLS-1$
+                    }
+                    final RecordedType type = this.types.get(header >>> 1);
+                    final Event event = type.eventClass == null ? null : allocate(type.eventClass);
+                    for (final Field field : type.fields)
+                    {
+                        final Object value = this.readValue();
+                        if (event != null && field != null)
+                        {
+                            set(event, field, value);
+                        }
+                    }
+                    tick += delta;
+                    if (event == null)
+                    {
+                        skipped++;
+                        continue;
+                    }
+                    if (this.async != null && (header & 1) != 0)
+                    {
+                        set(event, this.async, Boolean.TRUE);
+                        asynchronous++;
+                    }
+                    if (events.size() == ticks.length)
+                    {
+                        ticks = Arrays.copyOf(ticks, ticks.length << 1);
+                    }
+                    ticks[events.size()] = tick;
+                    events.add(event);
+                }
+            }
+            catch (@SuppressWarnings("unused") EOFException ex)
+            {
+                // end of log
+            }
+            return new EventReplay(this.manager, events.toArray(new Event[events.size()]), Arrays.copyOf(ticks, events.size()), skipped, asynchronous);
+        }
+        
+        /**
+         * Instantiates an event without invoking its constructor.
+         * 
+         * @param eventClass
+         * @return event or {@code null} if the event cannot be instantiated
+         */
+        private static Event allocate(Class<? extends Event> eventClass)
+        {
+            try
+            {
+                return (Event) ALLOCATE.invoke(eventClass);
+            }
+            catch (@SuppressWarnings("unused") Throwable ex)
+            {
+                return null;
+            }
+        }
+        
+        /**
+         * Restores a field of an event.
+         * 
+         * @param event
+         * @param field
+         * @param value
+         */
+        private static void set(Event event, Field field, Object value)
+        {
+            final Object converted = convert(value, field.getType());
+            if (converted == NO_VALUE || (converted == null && field.getType().isPrimitive()))
+            {
+                return;
+            }
+            try
+            {
+                field.set(event, converted);
+            }
+            catch (@SuppressWarnings("unused") IllegalAccessException ex)
+            {
+                // keep the default value
+            }
+        }
+        
+        /**
+         * Returns an accessible instance field.
+         * 
+         * @param owner
+         * @param name
+         * @return field or {@code null} if not found
+         */
+        private static Field field(Class<?> owner, String name)
+        {
+            try
+            {
+                final Field field = owner.getDeclaredField(name);
+                if (Modifier.isStatic(field.getModifiers()))
+                {
+                    return null;
+                }
+                field.setAccessible(true);
+                return field;
+            }
+            catch (@SuppressWarnings("unused") ReflectiveOperationException | RuntimeException ex)
+            {
+                return null;
+            }
+        }
+        
+        /**
+         * Reads an event type definition.
+         * 
+         * @return event type
+         * @throws IOException
+         */
+        private RecordedType readType() throws IOException
+        {
+            final Class<?> c = this.resolve(this.readString());
+            final Class<? extends Event> eventClass = c != null && Event.class.isAssignableFrom(c) ? c.asSubclass(Event.class) : null;
+            final Field[] fields = new Field[this.readVarInt()];
+            for (int i = 0; i < fields.length; i++)
+            {
+                final String declaring = this.readString();
+                final String name = this.readString();
+                for (Class<?> owner = eventClass; owner != null && fields[i] == null; owner = owner.getSuperclass())
+                {
+                    if (owner.getName().equals(declaring))
+                    {
+                        fields[i] = field(owner, name);
+                    }
+                }
+            }
+            return new RecordedType(eventClass, fields);
+        }
+        
+        /**
+         * Resolves a class through the server class loader and the plugin class loaders.
+         * 
+         * @param name
+         * @return class or {@code null} if the class is unknown
+         */
+        private Class<?> resolve(String name)
+        {
+            if (this.classes.containsKey(name))
+            {
+                return this.classes.get(name);
+            }
+            Class<?> result = null;
+            final List<ClassLoader> loaders = new ArrayList<>();
+            loaders.add(Event.class.getClassLoader());
+            for (final Plugin plugin : this.manager.getPlugins())
+            {
+                loaders.add(plugin.getClass().getClassLoader());
+            }
+            for (final ClassLoader loader : loaders)
+            {
+                try
+                {
+                    result = Class.forName(name, false, loader);
+                    break;
+                }
+                catch (@SuppressWarnings("unused") ClassNotFoundException | LinkageError ex)
+                {
+                    // try next loader
+                }
+            }
+            this.classes.put(name, result);
+            return result;
+        }
+        
+        /**
+         * Returns an enum constant.
+         * 
+         * @param enumClass
+         * @param name
+         * @return enum constant or {@code null} if the constant is unknown
+         */
+        private static Object constant(Class<?> enumClass, String name)
+        {
+            if (enumClass != null && enumClass.isEnum())
+            {
+                for (final Object constant : enumClass.getEnumConstants())
+                {
+                    if (((Enum<?>) constant).name().equals(name))
+                    {
+                        return constant;
+                    }
+                }
+            }
+            return null;
+        }
+        
+        /**
+         * Reads a value.
+         * 
+         * @return value; {@link #NO_VALUE} for values that were not recorded
+         * @throws IOException
+         */
+        private Object readValue() throws IOException
+        {
+            final int tag = this.in.readUnsignedByte();
+            switch (tag)
+            {
+                case EventRecorder.NULL:
+                    return null;
+                case EventRecorder.TRUE:
+                    return Boolean.TRUE;
+                case EventRecorder.FALSE:
+                    return Boolean.FALSE;
+                case EventRecorder.INT:
+                    return Integer.valueOf((int) this.readZigZag());
+                case EventRecorder.LONG:
+                    return Long.valueOf(this.readZigZag());
+                case EventRecorder.FLOAT:
+                    return Float.valueOf(this.in.readFloat());
+                case EventRecorder.DOUBLE:
+                    return Double.valueOf(this.in.readDouble());
+                case EventRecorder.STRING:
+                    return this.readString();
+                case EventRecorder.ENUM:
+                    return constant(this.resolve(this.readString()), this.readString());
+                case EventRecorder.ID:
+                    return this.readUuid();
+                case EventRecorder.WORLD:
+                    return this.readWorld();
+                case EventRecorder.LOCATION:
+                    return new Location(this.readWorld(), this.in.readDouble(), this.in.readDouble(), this.in.readDouble(), this.in.readFloat(), this.in.readFloat());
+                case EventRecorder.BLOCK:
+                {
+                    final World world = this.readWorld();
+                    final int x = (int) this.readZigZag();
+                    final int y = (int) this.readZigZag();
+                    final int z = (int) this.readZigZag();
+                    return world == null ? null : world.getBlockAt(x, y, z);
+                }
+                case EventRecorder.PLAYER:
+                {
+                    final UUID uuid = this.readUuid();
+                    final String name = this.readString();
+                    return ReplayedEntity.create(Player.class, uuid, name, EntityType.PLAYER, (Location) this.readValue());
+                }
+                case EventRecorder.ENTITY:
+                {
+                    final UUID uuid = this.readUuid();
+                    final EntityType type = (EntityType) constant(EntityType.class, this.readString());
+                    final Class<? extends Entity> entityClass = type == null ? null : type.getEntityClass();
+                    return ReplayedEntity.create(entityClass != null && entityClass.isInterface() ? entityClass : Entity.class, uuid, null, type, (Location) this.readValue());
+                }
+                case EventRecorder.ITEM:
+                {
+                    final Material material = (Material) constant(Material.class, this.readString());
+                    final int amount = this.readVarInt();
+                    final short durability = (short) this.readZigZag();
+                    return material == null ? null : new ItemStack(material, amount, durability);
+                }
+                case EventRecorder.VECTOR:
+                    return new Vector(this.in.readDouble(), this.in.readDouble(), this.in.readDouble());
+                case EventRecorder.LIST:
+                case EventRecorder.SET:
+                {
+                    final int size = this.readVarInt();
+                    final List<Object> elements = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++)
+                    {
+                        final Object element = this.readValue();
+                        elements.add(element == NO_VALUE ? null : element);
+                    }
+                    return tag == EventRecorder.LIST ? elements : new LinkedHashSet<>(elements);
+                }
+                case EventRecorder.UNSUPPORTED:
+                    return NO_VALUE;
+                default:
+                    throw new IOException("Corrupt event log; unknown tag " + tag); //$NON-NLS-1$
+            }
+        }
+        
+        /**
+         * Reads a world reference.
+         * 
+         * @return world or {@code null} if the world is not loaded
+         * @throws IOException
+         */
+        private World readWorld() throws IOException
+        {
+            final String name = this.readString();
+            return name == null ? null : Bukkit.getWorld(name);
+        }
+        
+        /**
+         * Reads a uuid.
+         * 
+         * @return uuid
+         * @throws IOException
+         */
+        private UUID readUuid() throws IOException
+        {
+            return new UUID(this.in.readLong(), this.in.readLong());
+        }
+        
+        /**
+         * Reads a string reference.
+         * 
+         * @return string
+         * @throws IOException
+         */
+        private String readString() throws IOException
+        {
+            final int index = this.readVarInt();
+            if (index < this.strings.size())
+            {
+                return this.strings.get(index);
+            }
+            if (index > this.strings.size())
+            {
+                throw new IOException("Corrupt event log; unknown string " + index); //$NON-NLS-1$
+            }
+            final byte[] bytes = new byte[this.readVarInt()];
+            this.in.readFully(bytes);
+            final String result = new String(bytes, StandardCharsets.UTF_8);
+            this.strings.add(result);
+            return result;
+        }
+        
+        /**
+         * Reads an unsigned variable length integer.
+         * 
+         * @return value
+         * @throws IOException
+         */
+        private int readVarInt() throws IOException
+        {
+            return (int) this.readVarLong();
+        }
+        
+        /**
+         * Reads a zig zag encoded variable length long.
+         * 
+         * @return value
+         * @throws IOException
+         */
+        private long readZigZag() throws IOException
+        {
+            final long v = this.readVarLong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+        
+        /**
+         * Reads an unsigned variable length long.
+         * 
+         * @return value
+         * @throws IOException
+         */
+        private long readVarLong() throws IOException
+        {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7)
+            {
+                final int b = this.in.readUnsignedByte();
+                result |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                {
+                    return result;
+                }
+            }
+            throw new IOException("Corrupt event log; malformed number"); //$NON-NLS-1$
+        }
+        
+    }
+    
+    /**
+     * A replayed player or entity; answers the recorded data and default values for all other methods.
+     */
+    private static final class ReplayedEntity implements InvocationHandler
+    {
+        
+        /** the uuid. */
+        private final UUID       uuid;
+        
+        /** the name; {@code null} for entities other than players. */
+        private final String     name;
+        
+        /** the entity type. */
+        private final EntityType type;
+        
+        /** the recorded location. */
+        private final Location   location;
+        
+        /**
+         * Constructor
+         * 
+         * @param uuid
+         * @param name
+         * @param type
+         * @param location
+         */
+        private ReplayedEntity(UUID uuid, String name, EntityType type, Location location)
+        {
+            this.uuid = uuid;
+            this.name = name;
+            this.type = type;
+            this.location = location;
+        }
+        
+        /**
+         * Creates a replayed entity.
+         * 
+         * @param entityInterface
+         *            the entity interface to implement
+         * @param uuid
+         * @param name
+         * @param type
+         * @param location
+         * @return proxy
+         */
+        static Entity create(Class<? extends Entity> entityInterface, UUID uuid, String name, EntityType type, Location location)
+        {
+            return (Entity) Proxy.newProxyInstance(entityInterface.getClassLoader(), new Class<?>[] { entityInterface }, new ReplayedEntity(uuid, name, type, location));
+        }
+        
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+            switch (method.getName())
+            {
+                case "getUniqueId": //$NON-NLS-1$
+                    return this.uuid;
+                case "getName": //$NON-NLS-1$
+                case "getDisplayName": //$NON-NLS-1$
+                case "getPlayerListName": //$NON-NLS-1$
+                    return this.name;
+                case "getType": //$NON-NLS-1$
+                    return this.type;
+                case "getEntityId": //$NON-NLS-1$
+                    return Integer.valueOf(this.uuid.hashCode());
+                case "getWorld": //$NON-NLS-1$
+                    return this.location == null ? null : this.location.getWorld();
+                case "getLocation": //$NON-NLS-1$
+                    return this.getLocation(args);
+                case "getServer": //$NON-NLS-1$
+                    return Bukkit.getServer();
+                case "isOnline": //$NON-NLS-1$
+                case "isValid": //$NON-NLS-1$
+                    return Boolean.TRUE;
+                case "equals": //$NON-NLS-1$
+                    return Boolean.valueOf(args[0] instanceof Entity && this.uuid.equals(((Entity) args[0]).getUniqueId()));
+                case "hashCode": //$NON-NLS-1$
+                    return Integer.valueOf(this.uuid.hashCode());
+                case "toString": //$NON-NLS-1$
+                    return "Replayed" + this.type + "{uuid=" + this.uuid + ", name=" + this.name + '}'; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        }
+        
+        /**
+         * Returns the recorded location.
+         * 
+         * @param args
+         *            the arguments; a location to be filled or {@code null}
+         * @return location
+         */
+        private Location getLocation(Object[] args)
+        {
+            if (this.location == null)
+            {
+                return null;
+            }
+            if (args == null || args.length == 0 || !(args[0] instanceof Location))
+            {
+                return this.location.clone();
+            }
+            final Location target = (Location) args[0];
+            target.setWorld(this.location.getWorld());
+            target.setX(this.location.getX());
+            target.setY(this.location.getY());
+            target.setZ(this.location.getZ());
+            target.setYaw(this.location.getYaw());
+            target.setPitch(this.location.getPitch());
+            return target;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,75 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+/**
+ * The management interface of the class loading statistics of a project plugin.
+ * 
+ * @author mepeisen
+ */
+public interface ClassLoadingStatsMXBean
+{
+    
+    /**
+     * Returns the plugin name.
+     * 
+     * @return plugin name
+     */
+    String getPluginName();
+    
+    /**
+     * Returns the number of classes defined by the class loaders of the plugin.
+     * 
+     * @return number of classes
+     */
+    long getDefinedClasses();
+    
+    /**
+     * Returns the number of class file bytes read.
+     * 
+     * @return bytes
+     */
+    long getBytesRead();
+    
+    /**
+     * Returns the time spent reading class files.
+     * 
+     * @return time in nanoseconds
+     */
+    long getFindTime();
+    
+    /**
+     * Returns the time spent defining classes, excluding the loading of other classes triggered by the definition.
+     * 
+     * @return time in nanoseconds
+     */
+    long getDefineTime();
+    
+    /**
+     * Returns the time spent resolving classes through other plugins.
+     * 
+     * @return time in nanoseconds
+     */
+    long getResolveTime();
+    
+    /**
+     * Returns the number of classes resolved through other plugins, including unsuccessful lookups.
+     * 
+     * @return number of lookups
+     */
+    long getResolveCount();
+    
+}
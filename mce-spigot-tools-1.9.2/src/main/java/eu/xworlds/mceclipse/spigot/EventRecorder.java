@@ -0,0 +1,560 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.bukkit.event.Event;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.util.Vector;
+
+/**
+ * Streams the events passing through the plugin manager to a compact binary log; see {@link EventReplay}.
+ * 
+ * <p>
+ * Each record holds the tick delta to the previous record, the event type and the values of the instance fields of the event
+ * class hierarchy as they were before the event was dispatched. Strings and types are written once and referenced by index
+ * afterwards; numbers are written as variable length integers. Worlds, blocks, players and entities are written by their
+ * identifying data only; values of other types are skipped and counted.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public final class EventRecorder implements Closeable
+{
+    
+    /** the magic number of event logs. */
+    static final int  MAGIC       = 0x4d43454c;
+    
+    /** the version of the log format. */
+    static final int  VERSION     = 1;
+    
+    /** tag of null values. */
+    static final int  NULL        = 0;
+    
+    /** tag of {@code true}. */
+    static final int  TRUE        = 1;
+    
+    /** tag of {@code false}. */
+    static final int  FALSE       = 2;
+    
+    /** tag of integers, shorts, bytes and chars. */
+    static final int  INT         = 3;
+    
+    /** tag of longs. */
+    static final int  LONG        = 4;
+    
+    /** tag of floats. */
+    static final int  FLOAT       = 5;
+    
+    /** tag of doubles. */
+    static final int  DOUBLE      = 6;
+    
+    /** tag of strings. */
+    static final int  STRING      = 7;
+    
+    /** tag of enum constants. */
+    static final int  ENUM        = 8;
+    
+    /** tag of uuids. */
+    static final int  ID          = 9;
+    
+    /** tag of worlds. */
+    static final int  WORLD       = 10;
+    
+    /** tag of locations. */
+    static final int  LOCATION    = 11;
+    
+    /** tag of blocks. */
+    static final int  BLOCK       = 12;
+    
+    /** tag of players. */
+    static final int  PLAYER      = 13;
+    
+    /** tag of other entities. */
+    static final int  ENTITY      = 14;
+    
+    /** tag of item stacks. */
+    static final int  ITEM        = 15;
+    
+    /** tag of vectors. */
+    static final int  VECTOR      = 16;
+    
+    /** tag of lists. */
+    static final int  LIST        = 17;
+    
+    /** tag of sets. */
+    static final int  SET         = 18;
+    
+    /** tag of values that are not recorded. */
+    static final int  UNSUPPORTED = 19;
+    
+    /** the length of a tick in nanoseconds. */
+    static final long TICK_NANOS  = TimeUnit.MILLISECONDS.toNanos(50);
+    
+    /** the log file. */
+    private final File                   file;
+    
+    /** the output stream. */
+    private final DataOutputStream       out;
+    
+    /** the logger. */
+    private final Logger                 logger;
+    
+    /** getter of the server tick counter; {@code null} to derive the ticks from the wall clock. */
+    private final MethodHandle           tickCounter;
+    
+    /** the start time. */
+    private final long                   startNanos = System.nanoTime();
+    
+    /** the written strings; value is the index. */
+    private final Map<String, Integer>   strings    = new HashMap<>();
+    
+    /** the written event types; value is the index. */
+    private final Map<Class<?>, Integer> types      = new HashMap<>();
+    
+    /** the recorded fields; the index is the event type index. */
+    private final List<Field[]>          fields     = new ArrayList<>();
+    
+    /** the tick of the previous record. */
+    private int                          lastTick;
+    
+    /** the number of recorded events. */
+    private long                         events;
+    
+    /** the number of values that were not recorded. */
+    private long                         unsupported;
+    
+    /** {@code true} if the recorder was closed or failed. */
+    private boolean                      closed;
+    
+    /**
+     * Constructor
+     * 
+     * @param file
+     *            the log file
+     * @param logger
+     * @throws IOException
+     *             thrown if the log file cannot be created
+     */
+    public EventRecorder(File file, Logger logger) throws IOException
+    {
+        this.file = file;
+        this.logger = logger;
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+        this.tickCounter = tickCounter();
+        this.lastTick = this.currentTick();
+    }
+    
+    /**
+     * Resolves the static tick counter of the spigot server.
+     * 
+     * @return getter of the tick counter or {@code null} if the server does not provide one
+     */
+    private static MethodHandle tickCounter()
+    {
+        try
+        {
+            final Object server = Bukkit.getServer().getClass().getMethod("getServer").invoke(Bukkit.getServer()); //$NON-NLS-1$
+            final Field field = server.getClass().getField("currentTick"); //$NON-NLS-1$
+            return field.getType() == int.class && Modifier.isStatic(field.getModifiers()) ? MethodHandles.publicLookup().unreflectGetter(field) : null;
+        }
+        catch (@SuppressWarnings("unused") ReflectiveOperationException | RuntimeException ex)
+        {
+            return null;
+        }
+    }
+    
+    /**
+     * Returns the current tick.
+     * 
+     * @return tick number
+     */
+    private int currentTick()
+    {
+        if (this.tickCounter != null)
+        {
+            try
+            {
+                return (int) this.tickCounter.invokeExact();
+            }
+            catch (Throwable ex)
+            {
+                throw new IllegalStateException(ex);
+            }
+        }
+        return (int) ((System.nanoTime() - this.startNanos) / TICK_NANOS);
+    }
+    
+    /**
+     * Returns the log file.
+     * 
+     * @return log file
+     */
+    public File getFile()
+    {
+        return this.file;
+    }
+    
+    /**
+     * Returns the number of recorded events.
+     * 
+     * @return recorded events
+     */
+    public synchronized long getEvents()
+    {
+        return this.events;
+    }
+    
+    /**
+     * Returns the number of values that were not recorded since their types are not supported.
+     * 
+     * @return skipped values
+     */
+    public synchronized long getUnsupported()
+    {
+        return this.unsupported;
+    }
+    
+    /**
+     * Records an event before it is dispatched; stops the recording on io errors.
+     * 
+     * @param event
+     */
+    public synchronized void record(Event event)
+    {
+        if (this.closed)
+        {
+            return;
+        }
+        try
+        {
+            final int tick = this.currentTick();
+            writeVarInt(this.out, Math.max(0, tick - this.lastTick));
+            this.lastTick = Math.max(tick, this.lastTick);
+            final Class<? extends Event> eventClass = event.getClass();
+            Integer type = this.types.get(eventClass);
+            final boolean defined = type != null;
+            if (!defined)
+            {
+                type = Integer.valueOf(this.types.size());
+                this.types.put(eventClass, type);
+                this.fields.add(recordedFields(eventClass));
+            }
+            writeVarInt(this.out, type.intValue() << 1 | (event.isAsynchronous() ? 1 : 0));
+            final Field[] recorded = this.fields.get(type.intValue());
+            if (!defined)
+            {
+                this.writeString(eventClass.getName());
+                writeVarInt(this.out, recorded.length);
+                for (final Field field : recorded)
+                {
+                    this.writeString(field.getDeclaringClass().getName());
+                    this.writeString(field.getName());
+                }
+            }
+            for (final Field field : recorded)
+            {
+                this.writeValue(field.get(event));
+            }
+            this.events++;
+        }
+        catch (IOException | IllegalAccessException ex)
+        {
+            this.logger.log(Level.SEVERE, "Event recording to " + this.file + " failed", ex); //$NON-NLS-1$ //$NON-NLS-2$
+            this.close();
+        }
+    }
+    
+    /**
+     * Returns the recorded fields of given event class; the instance fields declared by the event class and its super classes
+     * below {@link Event}.
+     * 
+     * @param eventClass
+     * @return recorded fields
+     */
+    static Field[] recordedFields(Class<?> eventClass)
+    {
+        final List<Field> result = new ArrayList<>();
+        for (Class<?> c = eventClass; c != null && c != Event.class; c = c.getSuperclass())
+        {
+            for (final Field field : c.getDeclaredFields())
+            {
+                if ((field.getModifiers() & (Modifier.STATIC | Modifier.TRANSIENT)) == 0 && !field.isSynthetic())
+                {
+                    field.setAccessible(true);
+                    result.add(field);
+                }
+            }
+        }
+        return result.toArray(new Field[result.size()]);
+    }
+    
+    /**
+     * Writes a value.
+     * 
+     * @param value
+     * @throws IOException
+     */
+    private void writeValue(Object value) throws IOException
+    {
+        if (value == null)
+        {
+            this.out.writeByte(NULL);
+        }
+        else if (value instanceof Boolean)
+        {
+            this.out.writeByte(((Boolean) value).booleanValue() ? TRUE : FALSE);
+        }
+        else if (value instanceof Integer || value instanceof Short || value instanceof Byte || value instanceof Character)
+        {
+            this.out.writeByte(INT);
+            writeVarLong(this.out, zigZag(value instanceof Character ? ((Character) value).charValue() : ((Number) value).intValue()));
+        }
+        else if (value instanceof Long)
+        {
+            this.out.writeByte(LONG);
+            writeVarLong(this.out, zigZag(((Long) value).longValue()));
+        }
+        else if (value instanceof Float)
+        {
+            this.out.writeByte(FLOAT);
+            this.out.writeFloat(((Float) value).floatValue());
+        }
+        else if (value instanceof Double)
+        {
+            this.out.writeByte(DOUBLE);
+            this.out.writeDouble(((Double) value).doubleValue());
+        }
+        else if (value instanceof String)
+        {
+            this.out.writeByte(STRING);
+            this.writeString((String) value);
+        }
+        else if (value instanceof Enum)
+        {
+            this.out.writeByte(ENUM);
+            this.writeString(((Enum<?>) value).getDeclaringClass().getName());
+            this.writeString(((Enum<?>) value).name());
+        }
+        else if (value instanceof UUID)
+        {
+            this.out.writeByte(ID);
+            this.writeUuid((UUID) value);
+        }
+        else if (value instanceof World)
+        {
+            this.out.writeByte(WORLD);
+            this.writeString(((World) value).getName());
+        }
+        else if (value instanceof Location)
+        {
+            final Location location = (Location) value;
+            this.out.writeByte(LOCATION);
+            this.writeString(location.getWorld() == null ? null : location.getWorld().getName());
+            this.out.writeDouble(location.getX());
+            this.out.writeDouble(location.getY());
+            this.out.writeDouble(location.getZ());
+            this.out.writeFloat(location.getYaw());
+            this.out.writeFloat(location.getPitch());
+        }
+        else if (value instanceof Block)
+        {
+            final Block block = (Block) value;
+            this.out.writeByte(BLOCK);
+            this.writeString(block.getWorld().getName());
+            writeVarLong(this.out, zigZag(block.getX()));
+            writeVarLong(this.out, zigZag(block.getY()));
+            writeVarLong(this.out, zigZag(block.getZ()));
+        }
+        else if (value instanceof Player)
+        {
+            final Player player = (Player) value;
+            this.out.writeByte(PLAYER);
+            this.writeUuid(player.getUniqueId());
+            this.writeString(player.getName());
+            this.writeValue(player.getLocation());
+        }
+        else if (value instanceof Entity)
+        {
+            final Entity entity = (Entity) value;
+            this.out.writeByte(ENTITY);
+            this.writeUuid(entity.getUniqueId());
+            this.writeString(entity.getType().name());
+            this.writeValue(entity.getLocation());
+        }
+        else if (value instanceof ItemStack)
+        {
+            final ItemStack item = (ItemStack) value;
+            this.out.writeByte(ITEM);
+            this.writeString(item.getType().name());
+            writeVarInt(this.out, item.getAmount());
+            writeVarLong(this.out, zigZag(item.getDurability()));
+        }
+        else if (value instanceof Vector)
+        {
+            final Vector vector = (Vector) value;
+            this.out.writeByte(VECTOR);
+            this.out.writeDouble(vector.getX());
+            this.out.writeDouble(vector.getY());
+            this.out.writeDouble(vector.getZ());
+        }
+        else if (value instanceof List || value instanceof Set)
+        {
+            final Collection<?> collection = (Collection<?>) value;
+            this.out.writeByte(value instanceof List ? LIST : SET);
+            // copy first; the size written must match the elements
+            final Object[] elements = collection.toArray();
+            writeVarInt(this.out, elements.length);
+            for (final Object element : elements)
+            {
+                this.writeValue(element);
+            }
+        }
+        else
+        {
+            this.out.writeByte(UNSUPPORTED);
+            this.unsupported++;
+        }
+    }
+    
+    /**
+     * Writes a uuid.
+     * 
+     * @param uuid
+     * @throws IOException
+     */
+    private void writeUuid(UUID uuid) throws IOException
+    {
+        this.out.writeLong(uuid.getMostSignificantBits());
+        this.out.writeLong(uuid.getLeastSignificantBits());
+    }
+    
+    /**
+     * Writes a string reference; the string itself is written on its first use. Index {@code 0} is the null string.
+     * 
+     * @param s
+     * @throws IOException
+     */
+    private void writeString(String s) throws IOException
+    {
+        if (s == null)
+        {
+            writeVarInt(this.out, 0);
+            return;
+        }
+        final Integer index = this.strings.get(s);
+        if (index != null)
+        {
+            writeVarInt(this.out, index.intValue());
+            return;
+        }
+        final int next = this.strings.size() + 1;
+        this.strings.put(s, Integer.valueOf(next));
+        writeVarInt(this.out, next);
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(this.out, bytes.length);
+        this.out.write(bytes);
+    }
+    
+    /**
+     * Zig zag encodes a signed value.
+     * 
+     * @param value
+     * @return unsigned value
+     */
+    private static long zigZag(long value)
+    {
+        return (value << 1) ^ (value >> 63);
+    }
+    
+    /**
+     * Writes an unsigned variable length integer.
+     * 
+     * @param out
+     * @param value
+     * @throws IOException
+     */
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException
+    {
+        writeVarLong(out, value & 0xffffffffL);
+    }
+    
+    /**
+     * Writes an unsigned variable length long.
+     * 
+     * @param out
+     * @param value
+     * @throws IOException
+     */
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException
+    {
+        long v = value;
+        while ((v & ~0x7fL) != 0)
+        {
+            out.writeByte((int) (v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+    
+    @Override
+    public synchronized void close()
+    {
+        if (this.closed)
+        {
+            return;
+        }
+        this.closed = true;
+        try
+        {
+            this.out.close();
+        }
+        catch (IOException ex)
+        {
+            this.logger.log(Level.WARNING, "Unable to close event log " + this.file, ex); //$NON-NLS-1$
+        }
+    }
+    
+}
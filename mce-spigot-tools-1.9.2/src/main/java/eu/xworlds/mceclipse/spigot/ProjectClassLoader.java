@@ -0,0 +1,607 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.Manifest;
+
+/**
+ * The class loader owning the classpath of a project plugin.
+ * 
+ * <p>
+ * Bukkit requires the main class of a plugin to be defined by its {@code PluginClassLoader}; that loader is final, package private
+ * and not parallel capable. Thus the project class loader is installed as the parent of the plugin class loader. The plugin class
+ * loader holds the class output folder while the project class loader owns the additional classpath entries and resolves them through
+ * a {@link ClassPathIndex}. The loader is parallel capable; classes are locked by name and jar files are acquired from the process
+ * wide {@link JarCache} on their first access without holding a monitor.
+ * </p>
+ * 
+ * <p>
+ * Classes of the packages of the class output folder are left to the plugin class loader; classes of the same package have to share
+ * the runtime package. Classpath entries providing such a package are appended to the plugin class loader as soon as it is bound
+ * through {@link #bind(URLClassLoader)}. Jars nested within other jars cannot be appended; neither can any entry if
+ * {@code URLClassLoader.addURL} is not accessible (java 9 or newer without {@code --add-opens java.base/java.net=ALL-UNNAMED}). The
+ * packages they provide are defined by the project class loader.
+ * </p>
+ * 
+ * <p>
+ * The plugin class loader delegates to the project class loader through {@link #loadClass(String, boolean)}; the virtual machine
+ * resolves the references of library classes through {@link #loadClass(String)}. Only the latter falls back to the plugin class
+ * loader; thus library classes see the classes of the plugin and the classes of other plugins. Other plugins find library classes
+ * through the {@link ClassLookupCache} calling {@link #findLibraryClass(String)}.
+ * </p>
+ * 
+ * <p>
+ * Project class loaders delegate to their parent first, then ask the {@link SharedLibraryLoader}s holding the jars shared with other
+ * plugins and finally resolve their own classpath entries. Packages listed as local packages are resolved from the own entries before
+ * the shared loaders are asked; they are used if a classpath entry could not be shared because it conflicts with a shared library.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public class ProjectClassLoader extends URLClassLoader
+{
+    
+    static
+    {
+        ClassLoader.registerAsParallelCapable();
+    }
+    
+    /** the classpath index. */
+    private volatile ClassPathIndex            index;
+    
+    /** the class output folder; {@code null} if the loader does not belong to a single plugin. */
+    private final ClassPathIndex.Entry         output;
+    
+    /** the packages (resource path notation) left to the plugin class loader. */
+    private final Set<String>                  outputPackages;
+    
+    /** the classpath entries to be appended to the plugin class loader; they provide packages of the class output folder. */
+    private final List<URL>                    splitUrls;
+    
+    /** the loaders of the jars shared with other plugins. */
+    private final List<SharedLibraryLoader>    shared;
+    
+    /** the packages (resource path notation) resolved before the shared loaders are asked. */
+    private final Set<String>                  localPackages;
+    
+    /** the transformers for classes of directory entries; {@code null} if disabled. */
+    private final TransformerChain             transformers;
+    
+    /** the class loading statistics; {@code null} if disabled. */
+    private final ClassLoadingStats            stats;
+    
+    /** the jar files acquired from the jar cache; acquired on their first access. */
+    private final ConcurrentMap<ClassPathIndex.Entry, MappedJar> jars = new ConcurrentHashMap<>();
+    
+    /** the plugin class loader; {@code null} until it is bound. */
+    private volatile URLClassLoader            owner;
+    
+    /** {@code true} if this loader was closed. */
+    private volatile boolean                   closed;
+    
+    /**
+     * Constructor
+     * 
+     * @param index
+     *            the classpath index
+     * @param output
+     *            the class output folder of the plugin; {@code null} if the loader does not belong to a single plugin
+     * @param shared
+     *            the loaders of the jars shared with other plugins
+     * @param localPackages
+     *            the packages (resource path notation) to be resolved before the shared loaders are asked
+     * @param transformers
+     *            the transformers for classes of directory entries; {@code null} to disable transformation
+     * @param stats
+     *            the class loading statistics; {@code null} to disable statistics
+     * @param parent
+     */
+    public ProjectClassLoader(ClassPathIndex index, ClassPathIndex.Entry output, List<SharedLibraryLoader> shared, Set<String> localPackages, TransformerChain transformers,
+            ClassLoadingStats stats, ClassLoader parent)
+    {
+        super(new URL[0], parent);
+        this.index = index;
+        this.output = output;
+        this.shared = shared;
+        this.localPackages = localPackages;
+        this.transformers = transformers;
+        this.stats = stats;
+        this.outputPackages = new HashSet<>();
+        this.splitUrls = new ArrayList<>();
+        if (output != null)
+        {
+            for (final String pkg : output.getPackages())
+            {
+                if (!ClassPathIndex.isCommon(pkg))
+                {
+                    this.outputPackages.add(pkg);
+                }
+            }
+        }
+        for (int i = 0; i < index.size(); i++)
+        {
+            final ClassPathIndex.Entry entry = index.getEntry(i);
+            this.addURL(entry.getUrl());
+            if (!Collections.disjoint(entry.getPackages(), this.outputPackages))
+            {
+                if (entry.isNested() || !BukkitAccessor.canAddURL())
+                {
+                    // cannot be appended to the plugin class loader
+                    this.outputPackages.removeAll(entry.getPackages());
+                }
+                else
+                {
+                    this.splitUrls.add(entry.getUrl());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns the class loading statistics.
+     * 
+     * @return statistics or {@code null} if disabled
+     */
+    public ClassLoadingStats getStats()
+    {
+        return this.stats;
+    }
+    
+    /**
+     * Returns the loaders of the jars shared with other plugins.
+     * 
+     * @return shared loaders
+     */
+    public List<SharedLibraryLoader> getSharedLoaders()
+    {
+        return this.shared;
+    }
+    
+    /**
+     * Binds the plugin class loader; appends the classpath entries providing packages of the class output folder. Invoked as soon as
+     * the first class of the plugin class loader is registered, that is before the main class of the plugin is initialized.
+     * 
+     * @param pluginLoader
+     *            the plugin class loader using this loader as parent
+     */
+    public void bind(URLClassLoader pluginLoader)
+    {
+        if (this.owner != null)
+        {
+            return;
+        }
+        synchronized (this.splitUrls)
+        {
+            if (this.owner == null)
+            {
+                for (final URL url : this.splitUrls)
+                {
+                    BukkitAccessor.addURL(pluginLoader, url);
+                }
+                this.owner = pluginLoader;
+            }
+        }
+    }
+    
+    /**
+     * Appends classpath entries.
+     * 
+     * @param entries
+     */
+    protected synchronized void addEntries(List<ClassPathIndex.Entry> entries)
+    {
+        final ClassPathIndex current = this.index;
+        final List<ClassPathIndex.Entry> all = new ArrayList<>(current.size() + entries.size());
+        for (int i = 0; i < current.size(); i++)
+        {
+            all.add(current.getEntry(i));
+        }
+        all.addAll(entries);
+        this.index = ClassPathIndex.of(all);
+        for (final ClassPathIndex.Entry entry : entries)
+        {
+            this.addURL(entry.getUrl());
+        }
+    }
+    
+    @Override
+    public Class<?> loadClass(String name) throws ClassNotFoundException
+    {
+        try
+        {
+            return super.loadClass(name, false);
+        }
+        catch (ClassNotFoundException ex)
+        {
+            // referenced by a library class; resolve it like the plugin does
+            final URLClassLoader pluginLoader = this.owner;
+            if (pluginLoader == null || this.closed)
+            {
+                throw ex;
+            }
+            return pluginLoader.loadClass(name);
+        }
+    }
+    
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException
+    {
+        try
+        {
+            return super.loadClass(name, resolve);
+        }
+        catch (ClassNotFoundException ex)
+        {
+            if (this.stats != null)
+            {
+                this.stats.getMonitor().parentMissed(this.stats, name);
+            }
+            throw ex;
+        }
+    }
+    
+    /**
+     * Finds a library class for the lookup of other plugins.
+     * 
+     * @param name
+     *            binary class name
+     * @return class or {@code null} if the class is not provided by the classpath entries
+     */
+    Class<?> findLibraryClass(String name)
+    {
+        final String path = name.replace('.', '/').concat(".class"); //$NON-NLS-1$
+        if (this.closed || this.outputPackages.contains(ClassPathIndex.packageOf(path)))
+        {
+            return null;
+        }
+        if (this.index.lookup(path).length == 0)
+        {
+            return this.findSharedClass(name);
+        }
+        try
+        {
+            return super.loadClass(name, false);
+        }
+        catch (@SuppressWarnings("unused") ClassNotFoundException ex)
+        {
+            return null;
+        }
+    }
+    
+    /**
+     * Finds a class within the shared loaders.
+     * 
+     * @param name
+     * @return class or {@code null} if no shared loader provides the class
+     */
+    private Class<?> findSharedClass(String name)
+    {
+        for (final SharedLibraryLoader loader : this.shared)
+        {
+            final Class<?> result = loader.findLibraryClass(name);
+            if (result != null)
+            {
+                return result;
+            }
+        }
+        return null;
+    }
+    
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException
+    {
+        final String path = name.replace('.', '/').concat(".class"); //$NON-NLS-1$
+        if (this.outputPackages.contains(ClassPathIndex.packageOf(path)))
+        {
+            // defined by the plugin class loader
+            throw new ClassNotFoundException(name);
+        }
+        final boolean local = this.localPackages.contains(ClassPathIndex.packageOf(path));
+        Class<?> result = local ? null : this.findSharedClass(name);
+        if (result == null)
+        {
+            result = this.findIndexedClass(name, path);
+        }
+        if (result == null && local)
+        {
+            result = this.findSharedClass(name);
+        }
+        if (result == null)
+        {
+            throw new ClassNotFoundException(name);
+        }
+        return result;
+    }
+    
+    /**
+     * Finds a class within the classpath entries.
+     * 
+     * @param name
+     *            binary class name
+     * @param path
+     *            class file name
+     * @return class or {@code null} if the entries do not contain the class
+     * @throws ClassNotFoundException
+     *             thrown if the class file cannot be read
+     */
+    private Class<?> findIndexedClass(String name, String path) throws ClassNotFoundException
+    {
+        final ClassPathIndex idx = this.index;
+        for (final int i : idx.lookup(path))
+        {
+            try
+            {
+                final ClassPathIndex.Entry cpEntry = idx.getEntry(i);
+                final File entry = cpEntry.getFile();
+                if (!cpEntry.isNested() && entry.isDirectory())
+                {
+                    final File file = new File(entry, path);
+                    if (file.isFile())
+                    {
+                        final long start = System.nanoTime();
+                        final byte[] bytes = Files.readAllBytes(file.toPath());
+                        final long find = System.nanoTime() - start;
+                        return this.define(name, this.transformers == null ? bytes : this.transformers.transform(this, name, bytes), entry.toURI().toURL(), null, find);
+                    }
+                }
+                else
+                {
+                    final long start = System.nanoTime();
+                    final MappedJar jar = this.getJar(cpEntry);
+                    final byte[] bytes = jar.read(path);
+                    if (bytes != null)
+                    {
+                        final long find = System.nanoTime() - start;
+                        return this.define(name, bytes, cpEntry.getUrl(), jar.getManifest(), find);
+                    }
+                }
+            }
+            catch (IOException ex)
+            {
+                throw new ClassNotFoundException(name, ex);
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Defines a class and its package.
+     * 
+     * @param name
+     * @param bytes
+     * @param url
+     *            the classpath entry url
+     * @param manifest
+     *            the jar manifest or {@code null}
+     * @param find
+     *            the time spent reading the class file
+     * @return defined class
+     */
+    private Class<?> define(String name, byte[] bytes, URL url, Manifest manifest, long find)
+    {
+        final int index = name.lastIndexOf('.');
+        if (index != -1)
+        {
+            final String pkgName = name.substring(0, index);
+            if (this.getPackage(pkgName) == null)
+            {
+                try
+                {
+                    if (manifest != null)
+                    {
+                        this.definePackage(pkgName, manifest, url);
+                    }
+                    else
+                    {
+                        this.definePackage(pkgName, null, null, null, null, null, null, null);
+                    }
+                }
+                catch (@SuppressWarnings("unused") IllegalArgumentException ex)
+                {
+                    // already defined
+                }
+            }
+        }
+        if (this.stats == null)
+        {
+            return this.defineClass(name, bytes, 0, bytes.length, new CodeSource(url, (CodeSigner[]) null));
+        }
+        final ClassLoadingMonitor.Frame frame = this.stats.getMonitor().enter(this.stats, name);
+        Class<?> result = null;
+        try
+        {
+            result = this.defineClass(name, bytes, 0, bytes.length, new CodeSource(url, (CodeSigner[]) null));
+            return result;
+        }
+        finally
+        {
+            this.stats.getMonitor().exit(frame, result, bytes.length, find);
+        }
+    }
+    
+    @Override
+    public URL findResource(String name)
+    {
+        if (this.output != null && new File(this.output.getFile(), name).exists())
+        {
+            // served from the class output folder by the plugin class loader
+            return null;
+        }
+        final boolean local = this.localPackages.contains(ClassPathIndex.packageOf(name));
+        URL result = local ? null : this.findSharedResource(name);
+        if (result == null)
+        {
+            result = this.findIndexedResource(name);
+        }
+        if (result == null && local)
+        {
+            result = this.findSharedResource(name);
+        }
+        return result;
+    }
+    
+    /**
+     * Finds a resource within the shared loaders.
+     * 
+     * @param name
+     * @return resource url or {@code null} if no shared loader provides the resource
+     */
+    private URL findSharedResource(String name)
+    {
+        for (final SharedLibraryLoader loader : this.shared)
+        {
+            final URL url = loader.findResource(name);
+            if (url != null)
+            {
+                return url;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Finds a resource within the classpath entries.
+     * 
+     * @param name
+     * @return resource url or {@code null} if the entries do not contain the resource
+     */
+    private URL findIndexedResource(String name)
+    {
+        final ClassPathIndex idx = this.index;
+        for (final int i : idx.lookup(name))
+        {
+            final URL url = this.findResource(idx.getEntry(i), name);
+            if (url != null)
+            {
+                return url;
+            }
+        }
+        return null;
+    }
+    
+    @Override
+    public Enumeration<URL> findResources(String name) throws IOException
+    {
+        final List<URL> result = new ArrayList<>();
+        for (final SharedLibraryLoader loader : this.shared)
+        {
+            result.addAll(Collections.list(loader.findResources(name)));
+        }
+        final ClassPathIndex idx = this.index;
+        for (final int i : idx.lookup(name))
+        {
+            final URL url = this.findResource(idx.getEntry(i), name);
+            if (url != null)
+            {
+                result.add(url);
+            }
+        }
+        return Collections.enumeration(result);
+    }
+    
+    /**
+     * Returns the resource url from given classpath entry.
+     * 
+     * @param cpEntry
+     *            classpath entry
+     * @param name
+     *            resource name
+     * @return resource url or {@code null} if the entry does not contain the resource
+     */
+    private URL findResource(ClassPathIndex.Entry cpEntry, String name)
+    {
+        try
+        {
+            final File entry = cpEntry.getFile();
+            if (!cpEntry.isNested() && entry.isDirectory())
+            {
+                final File file = new File(entry, name);
+                return file.exists() ? file.toURI().toURL() : null;
+            }
+            return this.getJar(cpEntry).getResource(name);
+        }
+        catch (@SuppressWarnings("unused") IOException ex)
+        {
+            return null;
+        }
+    }
+    
+    /**
+     * Returns the mapped jar file; acquires it from the jar cache on the first access.
+     * 
+     * @param entry
+     * @return mapped jar file
+     * @throws IOException
+     */
+    private MappedJar getJar(ClassPathIndex.Entry entry) throws IOException
+    {
+        final MappedJar jar = this.jars.get(entry);
+        if (jar != null)
+        {
+            return jar;
+        }
+        if (this.closed)
+        {
+            throw new IOException("Class loader closed"); //$NON-NLS-1$
+        }
+        final MappedJar newJar = JarCache.getInstance().acquire(entry.getFile(), entry.getNestedPath());
+        final MappedJar old = this.jars.putIfAbsent(entry, newJar);
+        if (old != null)
+        {
+            // acquired concurrently
+            JarCache.getInstance().release(newJar);
+            return old;
+        }
+        if (this.closed && this.jars.remove(entry, newJar))
+        {
+            // closed concurrently
+            JarCache.getInstance().release(newJar);
+            throw new IOException("Class loader closed"); //$NON-NLS-1$
+        }
+        return newJar;
+    }
+    
+    @Override
+    public void close() throws IOException
+    {
+        this.closed = true;
+        for (final ClassPathIndex.Entry entry : this.jars.keySet())
+        {
+            final MappedJar jar = this.jars.remove(entry);
+            if (jar != null)
+            {
+                JarCache.getInstance().release(jar);
+            }
+        }
+        super.close();
+    }
+    
+}
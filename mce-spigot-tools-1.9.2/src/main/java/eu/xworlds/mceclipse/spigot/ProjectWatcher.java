@@ -0,0 +1,520 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Background watcher for the class output folders and classpath files of project plugins.
+ * 
+ * <p>
+ * Bursts of file system events (for example caused by the eclipse builder) are collected until the file system was quiet for the
+ * debounce period; while events keep arriving the outputs are checked at the latest after {@link #MAX_DELAY} debounce periods.
+ * Afterwards the watched files are compared against the last snapshot; only plugins whose outputs actually changed are reported to
+ * the change listener. Files are compared by size and content hash; the hash is only calculated again if the modification time or
+ * the size changed.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public class ProjectWatcher implements Closeable
+{
+    
+    /** the maximum delay of a check while file system events keep arriving; in debounce periods. */
+    private static final int                          MAX_DELAY = 10;
+    
+    /** the watch service. */
+    private final WatchService                        watchService;
+    
+    /** the watched directories. */
+    private final Map<WatchKey, Path>                 keys     = new ConcurrentHashMap<>();
+    
+    /** the registered directories. */
+    private final Set<Path>                           dirs     = ConcurrentHashMap.newKeySet();
+    
+    /** the watched plugins; key is the plugin name. */
+    private final Map<String, Watched>                plugins  = new ConcurrentHashMap<>();
+    
+    /** the change listener; invoked from the watcher thread with the plugin name. */
+    private final Consumer<String>                    listener;
+    
+    /** the logger. */
+    private final Logger                              logger;
+    
+    /** the debounce period in milliseconds. */
+    private final long                                debounce;
+    
+    /** the watcher thread. */
+    private final Thread                              thread;
+    
+    /** {@code true} if watch keys of directories no longer watched have to be cancelled. */
+    private volatile boolean                          prune;
+    
+    /**
+     * Constructor
+     * 
+     * @param listener
+     *            change listener
+     * @param logger
+     * @param debounce
+     *            debounce period in milliseconds
+     * @throws IOException
+     */
+    public ProjectWatcher(Consumer<String> listener, Logger logger, long debounce) throws IOException
+    {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.listener = listener;
+        this.logger = logger;
+        this.debounce = debounce;
+        this.thread = new Thread(this::run, "mce-project-watcher"); //$NON-NLS-1$
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+    
+    /**
+     * Starts watching the outputs of given plugin. Replaces the roots of a previous registration for the same plugin; the last
+     * snapshot is kept so that changes written during a reload are not lost.
+     * 
+     * @param pluginName
+     * @param classesDir
+     *            the class output folder
+     * @param cpUrls
+     *            the additional classpath urls; only local files are watched, the outer jar file for nested jars
+     */
+    public void watch(String pluginName, File classesDir, URL[] cpUrls)
+    {
+        final Set<Path> files = new HashSet<>();
+        for (final URL url : cpUrls)
+        {
+            final File file = ClassPathIndex.fileOf(url);
+            if (file != null)
+            {
+                files.add(file.toPath().toAbsolutePath().normalize());
+            }
+        }
+        final Watched watched = new Watched(classesDir.toPath().toAbsolutePath().normalize(), files);
+        final Watched old = this.plugins.put(pluginName, watched);
+        if (old != null && old.classesDir.equals(watched.classesDir) && old.cpFiles.equals(watched.cpFiles))
+        {
+            watched.snapshot = old.snapshot;
+        }
+        else if (old != null)
+        {
+            this.prune = true;
+        }
+        watched.registered = false;
+    }
+    
+    /**
+     * Stops watching given plugin. The watch keys of directories that are no longer watched are cancelled by the watcher thread.
+     * 
+     * @param pluginName
+     */
+    public void unwatch(String pluginName)
+    {
+        if (this.plugins.remove(pluginName) != null)
+        {
+            this.prune = true;
+        }
+    }
+    
+    @Override
+    public void close() throws IOException
+    {
+        this.thread.interrupt();
+        this.watchService.close();
+    }
+    
+    /**
+     * The watcher thread loop.
+     */
+    private void run()
+    {
+        final long period = TimeUnit.MILLISECONDS.toNanos(this.debounce);
+        boolean pending = false;
+        long deadline = 0;
+        try
+        {
+            while (!Thread.currentThread().isInterrupted())
+            {
+                final long timeout = pending ? Math.max(0, Math.min(period, deadline - System.nanoTime())) : period;
+                final WatchKey key = this.watchService.poll(timeout, TimeUnit.NANOSECONDS);
+                if (key != null)
+                {
+                    this.process(key);
+                    if (!pending)
+                    {
+                        pending = true;
+                        deadline = System.nanoTime() + period * MAX_DELAY;
+                    }
+                }
+                if (key == null || System.nanoTime() - deadline >= 0)
+                {
+                    // quiet period or events arriving for too long
+                    pending = false;
+                    this.flush();
+                }
+            }
+        }
+        catch (@SuppressWarnings("unused") InterruptedException | ClosedWatchServiceException ex)
+        {
+            // closed
+        }
+    }
+    
+    /**
+     * Marks the plugins affected by the events of a watch key as dirty.
+     * 
+     * @param key
+     */
+    private void process(WatchKey key)
+    {
+        final Path dir = this.keys.get(key);
+        for (final WatchEvent<?> event : key.pollEvents())
+        {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null)
+            {
+                this.plugins.values().forEach(w -> w.dirty = true);
+                continue;
+            }
+            final Path child = dir.resolve((Path) event.context());
+            for (final Watched watched : this.plugins.values())
+            {
+                if (child.startsWith(watched.classesDir) || watched.cpFiles.contains(child))
+                {
+                    watched.dirty = true;
+                }
+            }
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child))
+            {
+                try
+                {
+                    this.registerTree(child);
+                }
+                catch (IOException ex)
+                {
+                    this.logger.log(Level.WARNING, "Error watching " + child, ex); //$NON-NLS-1$
+                }
+            }
+        }
+        if (!key.reset())
+        {
+            this.dirs.remove(this.keys.remove(key));
+        }
+    }
+    
+    /**
+     * Cancels the watch keys of directories that are no longer covered by a watched plugin.
+     */
+    private void prune()
+    {
+        final Iterator<Map.Entry<WatchKey, Path>> iter = this.keys.entrySet().iterator();
+        while (iter.hasNext())
+        {
+            final Map.Entry<WatchKey, Path> entry = iter.next();
+            final Path dir = entry.getValue();
+            boolean used = false;
+            for (final Watched watched : this.plugins.values())
+            {
+                if (dir.startsWith(watched.classesDir) || watched.cpFiles.stream().anyMatch(f -> dir.equals(f.getParent())))
+                {
+                    used = true;
+                    break;
+                }
+            }
+            if (!used)
+            {
+                entry.getKey().cancel();
+                iter.remove();
+                this.dirs.remove(dir);
+            }
+        }
+    }
+    
+    /**
+     * Registers new plugins and checks dirty plugins for changed outputs.
+     */
+    private void flush()
+    {
+        if (this.prune)
+        {
+            this.prune = false;
+            this.prune();
+        }
+        for (final Map.Entry<String, Watched> entry : this.plugins.entrySet())
+        {
+            final Watched watched = entry.getValue();
+            try
+            {
+                if (!watched.registered)
+                {
+                    watched.registered = true;
+                    this.registerTree(watched.classesDir);
+                    for (final Path file : watched.cpFiles)
+                    {
+                        if (file.getParent() != null && Files.isDirectory(file.getParent()))
+                        {
+                            this.register(file.getParent());
+                        }
+                    }
+                    if (watched.snapshot == null)
+                    {
+                        watched.snapshot = this.snapshot(watched, null);
+                        continue;
+                    }
+                    watched.dirty = true;
+                }
+                if (watched.dirty)
+                {
+                    watched.dirty = false;
+                    final Map<Path, FileState> old = watched.snapshot;
+                    final Map<Path, FileState> current = this.snapshot(watched, old);
+                    watched.snapshot = current;
+                    if (changed(old, current))
+                    {
+                        this.listener.accept(entry.getKey());
+                    }
+                }
+            }
+            catch (IOException ex)
+            {
+                this.logger.log(Level.WARNING, "Error watching outputs of " + entry.getKey(), ex); //$NON-NLS-1$
+            }
+        }
+    }
+    
+    /**
+     * Registers the directory and all sub directories at the watch service.
+     * 
+     * @param root
+     * @throws IOException
+     */
+    private void registerTree(Path root) throws IOException
+    {
+        if (!Files.isDirectory(root))
+        {
+            return;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+            {
+                ProjectWatcher.this.register(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+    
+    /**
+     * Registers a single directory at the watch service.
+     * 
+     * @param dir
+     * @throws IOException
+     */
+    private void register(Path dir) throws IOException
+    {
+        if (this.dirs.add(dir))
+        {
+            this.keys.put(dir.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+        }
+    }
+    
+    /**
+     * Creates a snapshot of the watched files.
+     * 
+     * @param watched
+     * @param old
+     *            the previous snapshot; used to compare content hashes if only the modification time changed
+     * @return snapshot
+     * @throws IOException
+     */
+    private Map<Path, FileState> snapshot(Watched watched, Map<Path, FileState> old) throws IOException
+    {
+        final Map<Path, FileState> result = new HashMap<>();
+        if (Files.isDirectory(watched.classesDir))
+        {
+            Files.walkFileTree(watched.classesDir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+                {
+                    result.put(file, state(file, attrs, old));
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        for (final Path file : watched.cpFiles)
+        {
+            if (Files.isRegularFile(file))
+            {
+                result.put(file, state(file, Files.readAttributes(file, BasicFileAttributes.class), old));
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the state of a single file. The content hash is taken from the previous snapshot if neither the modification time nor
+     * the size changed.
+     * 
+     * @param file
+     * @param attrs
+     * @param old
+     *            the previous snapshot or {@code null}
+     * @return file state
+     * @throws IOException
+     */
+    static FileState state(Path file, BasicFileAttributes attrs, Map<Path, FileState> old) throws IOException
+    {
+        final long mtime = attrs.lastModifiedTime().toMillis();
+        final long size = attrs.size();
+        final FileState oldState = old == null ? null : old.get(file);
+        if (oldState != null && oldState.mtime == mtime && oldState.size == size)
+        {
+            return oldState;
+        }
+        return new FileState(mtime, size, hash(file));
+    }
+    
+    /**
+     * Checks if the snapshots differ.
+     * 
+     * @param old
+     * @param current
+     * @return {@code true} if at least one file was added, removed or changed
+     */
+    static boolean changed(Map<Path, FileState> old, Map<Path, FileState> current)
+    {
+        if (old.size() != current.size())
+        {
+            return true;
+        }
+        for (final Map.Entry<Path, FileState> entry : current.entrySet())
+        {
+            final FileState oldState = old.get(entry.getKey());
+            final FileState state = entry.getValue();
+            if (oldState == null || oldState.size != state.size || oldState.hash != state.hash)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Calculates the content hash of given file.
+     * 
+     * @param file
+     * @return hash
+     * @throws IOException
+     */
+    private static long hash(Path file) throws IOException
+    {
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[8192];
+        try (final InputStream is = Files.newInputStream(file))
+        {
+            int len;
+            while ((len = is.read(buffer)) != -1)
+            {
+                crc.update(buffer, 0, len);
+            }
+        }
+        return crc.getValue();
+    }
+    
+    /**
+     * A watched plugin.
+     */
+    private static final class Watched
+    {
+        /** the class output folder. */
+        final Path                    classesDir;
+        /** the additional classpath files. */
+        final Set<Path>               cpFiles;
+        /** the last snapshot. */
+        volatile Map<Path, FileState> snapshot;
+        /** {@code true} if the roots were registered at the watch service. */
+        volatile boolean              registered;
+        /** {@code true} if file system events were received since the last snapshot. */
+        volatile boolean              dirty;
+        
+        /**
+         * Constructor
+         * 
+         * @param classesDir
+         * @param cpFiles
+         */
+        Watched(Path classesDir, Set<Path> cpFiles)
+        {
+            this.classesDir = classesDir;
+            this.cpFiles = cpFiles;
+        }
+    }
+    
+    /**
+     * State of a single file.
+     */
+    static final class FileState
+    {
+        /** the modification time. */
+        final long mtime;
+        /** the file size. */
+        final long size;
+        /** the content hash. */
+        final long hash;
+        
+        /**
+         * Constructor
+         * 
+         * @param mtime
+         * @param size
+         * @param hash
+         */
+        FileState(long mtime, long size, long hash)
+        {
+            this.mtime = mtime;
+            this.size = size;
+            this.hash = hash;
+        }
+    }
+    
+}
@@ -0,0 +1,351 @@
+/*
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package eu.xworlds.mceclipse.spigot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.plugin.InvalidDescriptionException;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.yaml.snakeyaml.error.YAMLException;
+
+/**
+ * A cache for parsed plugin descriptions.
+ * 
+ * <p>
+ * Descriptions are cached in memory for the lifetime of the process and within a cache directory. Both caches are keyed by the path,
+ * the modification time and the size of the plugin.yml file. The disk cache stores the yaml tree in a compact binary form; a hit
+ * skips the yaml parser and feeds the tree directly into the description. Files are parsed with the yaml parser of
+ * {@link PluginDescriptionFile}; if it is not accessible the description constructor is used and nothing is persisted.
+ * </p>
+ * 
+ * @author mepeisen
+ */
+public class DescriptionCache
+{
+    
+    /** the cache file format version. */
+    private static final int                         VERSION = 1;
+    
+    /** the logger. */
+    private static final Logger                      LOGGER  = Logger.getLogger(DescriptionCache.class.getName());
+    
+    /** the cached descriptions; key is the canonical path of the plugin.yml. */
+    private final ConcurrentMap<String, Description> entries = new ConcurrentHashMap<>();
+    
+    /**
+     * Returns the description of given plugin.yml file.
+     * 
+     * @param file
+     *            the plugin.yml file
+     * @param cacheDir
+     *            the directory for the persisted descriptions; {@code null} to disable persistence
+     * @return plugin description
+     * @throws IOException
+     * @throws InvalidDescriptionException
+     */
+    public PluginDescriptionFile get(File file, File cacheDir) throws IOException, InvalidDescriptionException
+    {
+        final String path = file.getCanonicalPath();
+        final long mtime = file.lastModified();
+        final long length = file.length();
+        
+        final Description cached = this.entries.get(path);
+        if (cached != null && cached.mtime == mtime && cached.length == length)
+        {
+            return cached.description;
+        }
+        
+        if (!BukkitAccessor.canLoadMap() || !BukkitAccessor.canLoadYaml())
+        {
+            final PluginDescriptionFile result;
+            try (final InputStream is = new FileInputStream(file))
+            {
+                result = new PluginDescriptionFile(is);
+            }
+            this.entries.put(path, new Description(mtime, length, result));
+            return result;
+        }
+        
+        final File cacheFile = cacheDir == null ? null : new File(cacheDir, Integer.toHexString(path.hashCode()) + '-' + file.getParentFile().getName() + ".desc"); //$NON-NLS-1$
+        Object tree = null;
+        if (cacheFile != null && cacheFile.isFile())
+        {
+            try (final DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile))))
+            {
+                if (dis.readInt() == VERSION && path.equals(dis.readUTF()) && dis.readLong() == mtime && dis.readLong() == length)
+                {
+                    tree = read(dis);
+                }
+            }
+            catch (@SuppressWarnings("unused") IOException ex)
+            {
+                // broken cache file; rebuild
+            }
+        }
+        
+        if (tree == null)
+        {
+            try (final InputStream is = new FileInputStream(file))
+            {
+                tree = BukkitAccessor.loadYaml(is);
+            }
+            catch (YAMLException ex)
+            {
+                throw new InvalidDescriptionException(ex);
+            }
+            if (cacheFile != null && tree instanceof Map)
+            {
+                write(cacheFile, path, mtime, length, tree);
+            }
+        }
+        
+        if (!(tree instanceof Map))
+        {
+            throw new InvalidDescriptionException(tree + " is not properly structured."); //$NON-NLS-1$
+        }
+        final PluginDescriptionFile result = create((Map<?, ?>) tree);
+        this.entries.put(path, new Description(mtime, length, result));
+        return result;
+    }
+    
+    /**
+     * Creates the description from given yaml tree.
+     * 
+     * @param map
+     * @return description
+     * @throws InvalidDescriptionException
+     */
+    private static PluginDescriptionFile create(Map<?, ?> map) throws InvalidDescriptionException
+    {
+        final PluginDescriptionFile result = new PluginDescriptionFile("mce", "0", "mce"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        BukkitAccessor.loadMap(result, map);
+        return result;
+    }
+    
+    /**
+     * Writes the cache file; trees containing unsupported value types are not persisted. Failures are logged and ignored since the
+     * disk cache is optional.
+     * 
+     * @param cacheFile
+     * @param path
+     * @param mtime
+     * @param length
+     * @param tree
+     */
+    private static void write(File cacheFile, String path, long mtime, long length, Object tree)
+    {
+        File tmpFile = null;
+        try
+        {
+            final File cacheDir = cacheFile.getParentFile();
+            cacheDir.mkdirs();
+            tmpFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheDir); //$NON-NLS-1$
+            boolean written = false;
+            try (final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile))))
+            {
+                dos.writeInt(VERSION);
+                dos.writeUTF(path);
+                dos.writeLong(mtime);
+                dos.writeLong(length);
+                written = write(dos, tree);
+            }
+            if (written)
+            {
+                Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                tmpFile = null;
+            }
+        }
+        catch (IOException ex)
+        {
+            // strings longer than 64k are not supported by writeUTF
+            LOGGER.log(Level.FINE, "Unable to write the description cache " + cacheFile, ex); //$NON-NLS-1$
+        }
+        finally
+        {
+            if (tmpFile != null)
+            {
+                tmpFile.delete();
+            }
+        }
+    }
+    
+    /**
+     * Writes a yaml node.
+     * 
+     * @param dos
+     * @param node
+     * @return {@code false} if the node contains unsupported value types
+     * @throws IOException
+     */
+    private static boolean write(DataOutputStream dos, Object node) throws IOException
+    {
+        if (node == null)
+        {
+            dos.writeByte('N');
+        }
+        else if (node instanceof String)
+        {
+            dos.writeByte('S');
+            dos.writeUTF((String) node);
+        }
+        else if (node instanceof Integer)
+        {
+            dos.writeByte('I');
+            dos.writeInt(((Integer) node).intValue());
+        }
+        else if (node instanceof Long)
+        {
+            dos.writeByte('J');
+            dos.writeLong(((Long) node).longValue());
+        }
+        else if (node instanceof Double)
+        {
+            dos.writeByte('D');
+            dos.writeDouble(((Double) node).doubleValue());
+        }
+        else if (node instanceof Boolean)
+        {
+            dos.writeByte('Z');
+            dos.writeBoolean(((Boolean) node).booleanValue());
+        }
+        else if (node instanceof List)
+        {
+            final List<?> list = (List<?>) node;
+            dos.writeByte('L');
+            dos.writeInt(list.size());
+            for (final Object child : list)
+            {
+                if (!write(dos, child))
+                {
+                    return false;
+                }
+            }
+        }
+        else if (node instanceof Map)
+        {
+            final Map<?, ?> map = (Map<?, ?>) node;
+            dos.writeByte('M');
+            dos.writeInt(map.size());
+            for (final Map.Entry<?, ?> entry : map.entrySet())
+            {
+                if (!write(dos, entry.getKey()) || !write(dos, entry.getValue()))
+                {
+                    return false;
+                }
+            }
+        }
+        else
+        {
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Reads a yaml node.
+     * 
+     * @param dis
+     * @return node
+     * @throws IOException
+     */
+    private static Object read(DataInputStream dis) throws IOException
+    {
+        final int type = dis.readByte();
+        switch (type)
+        {
+            case 'N':
+                return null;
+            case 'S':
+                return dis.readUTF();
+            case 'I':
+                return Integer.valueOf(dis.readInt());
+            case 'J':
+                return Long.valueOf(dis.readLong());
+            case 'D':
+                return Double.valueOf(dis.readDouble());
+            case 'Z':
+                return Boolean.valueOf(dis.readBoolean());
+            case 'L':
+            {
+                final int size = dis.readInt();
+                final List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++)
+                {
+                    list.add(read(dis));
+                }
+                return list;
+            }
+            case 'M':
+            {
+                final int size = dis.readInt();
+                final Map<Object, Object> map = new LinkedHashMap<>(size * 2);
+                for (int i = 0; i < size; i++)
+                {
+                    map.put(read(dis), read(dis));
+                }
+                return map;
+            }
+            default:
+                throw new IOException("Invalid node type " + type); //$NON-NLS-1$
+        }
+    }
+    
+    /**
+     * A cached description.
+     */
+    private static final class Description
+    {
+        /** the modification time of the plugin.yml. */
+        final long                  mtime;
+        /** the size of the plugin.yml. */
+        final long                  length;
+        /** the parsed description. */
+        final PluginDescriptionFile description;
+        
+        /**
+         * Constructor
+         * 
+         * @param mtime
+         * @param length
+         * @param description
+         */
+        Description(long mtime, long length, PluginDescriptionFile description)
+        {
+            this.mtime = mtime;
+            this.length = length;
+            this.description = description;
+        }
+    }
+    
+}